@@ -0,0 +1,33 @@
+package pl.pluszkiewicz.przecompany.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.pluszkiewicz.przecompany.pdf.InvoiceTextParser;
+
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AmountParseBenchmark {
+    @Param({"46,00", "1 476,00", "12 345 678,90"})
+    private String amount;
+
+    @Benchmark
+    public BigDecimal parseAmount() throws ParseException {
+        return InvoiceTextParser.parseAmount(amount);
+    }
+}
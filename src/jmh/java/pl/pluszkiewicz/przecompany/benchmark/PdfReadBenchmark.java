@@ -0,0 +1,56 @@
+package pl.pluszkiewicz.przecompany.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.unit.DataSize;
+import pl.pluszkiewicz.przecompany.invoice.Invoice;
+import pl.pluszkiewicz.przecompany.pdf.LayoutTemplateRegistry;
+import pl.pluszkiewicz.przecompany.pdf.PdfReadService;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PdfReadBenchmark {
+    @Param
+    private SampleInvoices.Size size;
+
+    private PdfReadService pdfReadService;
+    private byte[] pdf;
+    private String[] pdfText;
+
+    @Setup
+    public void setUp() {
+        pdfReadService = new PdfReadService(DataSize.ofMegabytes(16), new LayoutTemplateRegistry(List.of()), new SimpleMeterRegistry());
+        pdf = SampleInvoices.pdf(size.getPositions());
+        pdfText = SampleInvoices.text(size.getPositions());
+    }
+
+    @Benchmark
+    public String[] readPdf() throws IOException {
+        return pdfReadService.readPdf(new ByteArrayInputStream(pdf));
+    }
+
+    @Benchmark
+    public Invoice mapToInvoice() throws ParseException {
+        return pdfReadService.mapToInvoice(pdfText);
+    }
+}
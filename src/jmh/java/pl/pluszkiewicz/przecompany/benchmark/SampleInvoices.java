@@ -0,0 +1,144 @@
+package pl.pluszkiewicz.przecompany.benchmark;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import pl.pluszkiewicz.przecompany.company.Address;
+import pl.pluszkiewicz.przecompany.company.Company;
+import pl.pluszkiewicz.przecompany.invoice.Invoice;
+import pl.pluszkiewicz.przecompany.invoice.Position;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generated invoices in the layout {@link pl.pluszkiewicz.przecompany.pdf.InvoiceTextParser} reads in a single pass.
+ * Only ASCII text is used, the standard PDF fonts cannot encode Polish letters.
+ */
+public final class SampleInvoices {
+    public static final String PDF_BLANK_LINE = "\u00A0";
+
+    private static final float FONT_SIZE = 10;
+    private static final float LEADING = 12;
+    private static final float MARGIN = 40;
+    private static final int LINES_PER_PAGE = 55;
+    private static final BigDecimal UNIT_PRICE = new BigDecimal("1250.00");
+    private static final BigDecimal VAT_RATE = new BigDecimal("0.23");
+
+    public enum Size {
+        SMALL(2), POSITIONS_100(100), MULTI_PAGE(400);
+
+        private final int positions;
+
+        Size(int positions) {
+            this.positions = positions;
+        }
+
+        public int getPositions() {
+            return positions;
+        }
+    }
+
+    private SampleInvoices() {
+    }
+
+    public static String[] text(int positions) {
+        List<String> lines = new ArrayList<>(List.of(
+                "Faktura: FV/" + positions + "/2020",
+                "Data wystawienia: 13.12.2020",
+                "Sprzedawca",
+                "ACME Sp. z o.o.",
+                "ul. Prosta 12/3",
+                "00-001 Warszawa",
+                "Polska",
+                "NIP: 1234567890",
+                PDF_BLANK_LINE,
+                "Jan Kowalski Software",
+                "ul. Krzywa 5",
+                "30-001 Nowy Targ",
+                "Polska",
+                "NIP: 9876543210",
+                PDF_BLANK_LINE,
+                "Lp Nazwa Ilosc J.m. Cena netto VAT GTU Wartosc netto Wartosc VAT Wartosc brutto",
+                "", "", "", ""));
+        BigDecimal netto = BigDecimal.ZERO;
+        for (int i = 1; i <= positions; i++) {
+            BigDecimal positionNetto = UNIT_PRICE.multiply(BigDecimal.valueOf(i));
+            BigDecimal positionVat = positionNetto.multiply(VAT_RATE).setScale(2);
+            lines.add(i + " Usluga programistyczna " + i + ",00 szt. " + amount(UNIT_PRICE) + " 23 % GTU_12 "
+                    + amount(positionNetto) + " " + amount(positionVat) + " " + amount(positionNetto.add(positionVat)));
+            netto = netto.add(positionNetto);
+        }
+        BigDecimal vat = netto.multiply(VAT_RATE).setScale(2);
+        lines.add(PDF_BLANK_LINE);
+        lines.add("Razem: " + amount(netto) + " " + amount(vat) + " " + amount(netto.add(vat)));
+        return lines.toArray(String[]::new);
+    }
+
+    public static byte[] pdf(int positions) {
+        String[] lines = text(positions);
+        try (PDDocument document = new PDDocument(); ByteArrayOutputStream output = new ByteArrayOutputStream()) {
+            for (int first = 0; first < lines.length; first += LINES_PER_PAGE) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, FONT_SIZE);
+                    content.setLeading(LEADING);
+                    content.newLineAtOffset(MARGIN, page.getMediaBox().getHeight() - MARGIN - FONT_SIZE);
+                    for (int line = first; line < Math.min(lines.length, first + LINES_PER_PAGE); line++) {
+                        content.showText(lines[line]);
+                        content.newLine();
+                    }
+                    content.endText();
+                }
+            }
+            document.save(output);
+            return output.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static Invoice invoice(int positions) {
+        List<Position> invoicePositions = new ArrayList<>(positions);
+        for (int i = 1; i <= positions; i++) {
+            BigDecimal netto = UNIT_PRICE.multiply(BigDecimal.valueOf(i));
+            BigDecimal vat = netto.multiply(VAT_RATE).setScale(2);
+            invoicePositions.add(Position.builder()
+                    .name("Usluga programistyczna")
+                    .amount(i)
+                    .unitType("szt.")
+                    .unitPriceNetto(UNIT_PRICE)
+                    .vatPercent(23)
+                    .gtuCode("GTU_12")
+                    .totalAmountNetto(netto)
+                    .totalVat(vat)
+                    .totalAmountBrutto(netto.add(vat))
+                    .build());
+        }
+        Address address = Address.builder().street("ul. Prosta").houseNumber("12").apartmentNumber("3").zipCode("00-001").city("Warszawa").build();
+        return Invoice.builder()
+                .id("5fd5f7c1a6b3a12e4c8b4567")
+                .title("FV/" + positions + "/2020")
+                .settlementDate(LocalDate.of(2020, 12, 13))
+                .amountNetto(new BigDecimal("1200.00"))
+                .vat(new BigDecimal("276.00"))
+                .amountBrutto(new BigDecimal("1476.00"))
+                .seller(Company.builder().name("ACME Sp. z o.o.").country("Polska").nip(1234567890L).address(address).build())
+                .buyer(Company.builder().name("Jan Kowalski Software").nip(9876543210L).build())
+                .positions(invoicePositions)
+                .version(0L)
+                .build();
+    }
+
+    private static String amount(BigDecimal amount) {
+        return amount.toPlainString().replace('.', ',');
+    }
+}
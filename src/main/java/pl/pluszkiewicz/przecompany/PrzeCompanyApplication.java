@@ -3,12 +3,14 @@ package pl.pluszkiewicz.przecompany;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.data.mongodb.repository.config.EnableReactiveMongoRepositories;
+import reactor.core.scheduler.Schedulers;
 
 @SpringBootApplication
 @EnableReactiveMongoRepositories
 public class PrzeCompanyApplication {
 
     public static void main(String[] args) {
+        Schedulers.enableMetrics();
         SpringApplication.run(PrzeCompanyApplication.class, args);
     }
 
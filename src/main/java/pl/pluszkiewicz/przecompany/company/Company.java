@@ -5,6 +5,7 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.TextIndexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 @Document
@@ -15,6 +16,7 @@ import org.springframework.data.mongodb.core.mapping.Document;
 public class Company {
     @Id
     private String id;
+    @TextIndexed(weight = 2)
     private String name;
     private Address address;
     private String country;
@@ -0,0 +1,35 @@
+package pl.pluszkiewicz.przecompany.company;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+@RestController
+@RequestMapping(value = "companies")
+public class CompanyController {
+    private final CompanyService companyService;
+
+    public CompanyController(CompanyService companyService) {
+        this.companyService = companyService;
+    }
+
+    @GetMapping
+    public Flux<Company> getCompanies() {
+        return companyService.getCompanies();
+    }
+
+    @GetMapping("/{nip}")
+    public Mono<Company> getCompany(@PathVariable(value = "nip") long nip) {
+        return companyService.getCompany(nip);
+    }
+
+    @PutMapping("/{nip}")
+    public Mono<Company> saveCompany(@PathVariable(value = "nip") long nip, @RequestBody Company company) {
+        return companyService.saveCompany(nip, company);
+    }
+}
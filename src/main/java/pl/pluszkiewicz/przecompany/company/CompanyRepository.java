@@ -0,0 +1,6 @@
+package pl.pluszkiewicz.przecompany.company;
+
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+
+public interface CompanyRepository extends ReactiveMongoRepository<Company, String> {
+}
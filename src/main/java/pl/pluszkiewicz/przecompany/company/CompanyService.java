@@ -0,0 +1,106 @@
+package pl.pluszkiewicz.przecompany.company;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Registry of counterparties keyed by NIP. Invoices keep only {@link #reference(Company) references} of registered
+ * companies and details are {@link #join(Company) joined} from here, so a changed address is updated in one place.
+ * There are few counterparties, so registered companies are kept in memory and equal companies are interned - invoices
+ * read or written together share one instance, which therefore must not be modified.
+ */
+@Service
+public class CompanyService {
+    private final CompanyRepository companyRepository;
+    private final AsyncCache<Long, Company> companiesByNip;
+    private final Cache<Company, Company> internedCompanies;
+
+    public CompanyService(CompanyRepository companyRepository, @Value("${company.cache.maximum-size:10000}") long maximumSize) {
+        this.companyRepository = companyRepository;
+        this.companiesByNip = Caffeine.newBuilder().maximumSize(maximumSize).buildAsync();
+        this.internedCompanies = Caffeine.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    public Flux<Company> getCompanies() {
+        return companyRepository.findAll();
+    }
+
+    public Mono<Company> getCompany(long nip) {
+        return Mono.defer(() -> Mono.fromFuture(companiesByNip.get(nip, (key, executor) -> companyRepository.findById(idOf(key))
+                .map(this::intern)
+                .toFuture()).copy()));
+    }
+
+    public Mono<Company> saveCompany(long nip, Company company) {
+        Company registered = new Company(idOf(nip), company.getName(), company.getAddress(), company.getCountry(), nip);
+        return companyRepository.save(registered)
+                .map(this::intern)
+                .doOnNext(saved -> companiesByNip.put(nip, CompletableFuture.completedFuture(saved)));
+    }
+
+    /**
+     * Registers companies that are not known yet and updates details of those that changed since. References and
+     * companies without NIP are skipped.
+     */
+    public Mono<Void> register(Collection<Company> companies) {
+        return Flux.fromIterable(companies)
+                .filter(company -> nonNull(company.getNip()) && !isReference(company))
+                .distinct(Company::getNip)
+                .concatMap(company -> getCompany(company.getNip())
+                        .filter(registered -> hasSameDetails(registered, company))
+                        .switchIfEmpty(Mono.defer(() -> saveCompany(company.getNip(), company))))
+                .then();
+    }
+
+    /**
+     * Returns the company in the form stored in invoices - NIP and name, as printed on the invoice and searched by, of a
+     * company that has NIP, any other as it is.
+     */
+    public Company reference(Company company) {
+        if (isNull(company) || isNull(company.getNip())) {
+            return company;
+        }
+        return intern(Company.builder().nip(company.getNip()).name(company.getName()).build());
+    }
+
+    /**
+     * Replaces a reference with the registered company. Companies not in the registry are returned as they are.
+     */
+    public Mono<Company> join(Company company) {
+        if (isNull(company) || isNull(company.getNip())) {
+            return Mono.justOrEmpty(company);
+        }
+        return getCompany(company.getNip()).defaultIfEmpty(company);
+    }
+
+    public Company intern(Company company) {
+        return isNull(company) ? null : internedCompanies.get(company, Function.identity());
+    }
+
+    private static boolean isReference(Company company) {
+        return isNull(company.getAddress()) && isNull(company.getCountry());
+    }
+
+    private static boolean hasSameDetails(Company registered, Company company) {
+        return Objects.equals(registered.getName(), company.getName())
+                && Objects.equals(registered.getAddress(), company.getAddress())
+                && Objects.equals(registered.getCountry(), company.getCountry());
+    }
+
+    private static String idOf(long nip) {
+        return String.valueOf(nip);
+    }
+}
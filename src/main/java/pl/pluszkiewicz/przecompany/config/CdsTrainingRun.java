@@ -0,0 +1,23 @@
+package pl.pluszkiewicz.przecompany.config;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Stops the application as soon as its context is started. The Dockerfile starts the application once with this
+ * profile to record the loaded classes into a class data sharing archive. There is no Mongo at image build time, so
+ * startup tasks touching the database are disabled in this profile and the application exits before it is ready.
+ */
+@Component
+@Profile(CdsTrainingRun.PROFILE)
+public class CdsTrainingRun {
+    public static final String PROFILE = "cds-training";
+
+    @EventListener(ApplicationStartedEvent.class)
+    public void exit(ApplicationStartedEvent event) {
+        System.exit(SpringApplication.exit(event.getApplicationContext()));
+    }
+}
@@ -0,0 +1,130 @@
+package pl.pluszkiewicz.przecompany.config;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+import pl.pluszkiewicz.przecompany.invoice.Invoice;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Converts invoice and position amounts written as strings by earlier versions to Decimal128. Runs once in the
+ * background after startup and is recorded in the schema_migrations collection - until then reads accept both
+ * representations, but totals summed by Mongo skip the string amounts. Every amount is set only if it is still a string,
+ * so an invoice written in the meantime keeps its amounts.
+ */
+@Component
+@Profile("!" + CdsTrainingRun.PROFILE)
+@Slf4j
+public class DecimalAmountMigration {
+    public static final String MIGRATIONS_COLLECTION = "schema_migrations";
+    public static final String MIGRATION_ID = "decimal128-amounts";
+    private static final String ID = "_id";
+    private static final String POSITIONS = "positions";
+    private static final List<String> INVOICE_AMOUNTS = List.of("amountNetto", "amountBrutto", "vat");
+    private static final List<String> POSITION_AMOUNTS = List.of("unitPriceNetto", "totalAmountNetto", "totalAmountBrutto", "totalVat");
+    private static final int BATCH_SIZE = 500;
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private Disposable migration = Disposables.disposed();
+
+    public DecimalAmountMigration(ReactiveMongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        migration = migrate().subscribe(
+                amounts -> log.info("Converted {} string amounts of invoices to Decimal128", amounts),
+                e -> log.warn("Converting string amounts of invoices to Decimal128 failed, it is retried on the next start", e));
+    }
+
+    @PreDestroy
+    public void stop() {
+        migration.dispose();
+    }
+
+    Mono<Long> migrate() {
+        return mongoTemplate.exists(Query.query(where(ID).is(MIGRATION_ID)), MIGRATIONS_COLLECTION)
+                .filter(migrated -> !migrated)
+                .flatMap(migrated -> migrateInvoices())
+                .flatMap(amounts -> mongoTemplate.save(new Document(ID, MIGRATION_ID)
+                        .append("migratedAt", Date.from(Instant.now()))
+                        .append("amounts", amounts), MIGRATIONS_COLLECTION)
+                        .thenReturn(amounts));
+    }
+
+    private Mono<Long> migrateInvoices() {
+        String collection = mongoTemplate.getCollectionName(Invoice.class);
+        Criteria[] stringAmounts = Stream.concat(INVOICE_AMOUNTS.stream(), POSITION_AMOUNTS.stream().map(field -> POSITIONS + "." + field))
+                .map(field -> where(field).type(BsonType.STRING.getValue()))
+                .toArray(Criteria[]::new);
+        return mongoTemplate.find(Query.query(new Criteria().orOperator(stringAmounts)), Document.class, collection)
+                .flatMapIterable(DecimalAmountMigration::migrationUpdates)
+                .buffer(BATCH_SIZE)
+                .concatMap(batch -> mongoTemplate.getCollection(collection)
+                        .flatMap(invoices -> Mono.from(invoices.bulkWrite(batch, new BulkWriteOptions().ordered(false)))))
+                .map(BulkWriteResult::getModifiedCount)
+                .reduce(0L, Long::sum);
+    }
+
+    /**
+     * One update per string amount of the invoice document, each applied only while the amount is still a string.
+     */
+    static List<WriteModel<Document>> migrationUpdates(Document invoice) {
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        Object id = invoice.get(ID);
+        for (String field : INVOICE_AMOUNTS) {
+            addUpdate(updates, id, field, invoice.get(field));
+        }
+        if (invoice.get(POSITIONS) instanceof List) {
+            List<Object> positions = invoice.getList(POSITIONS, Object.class);
+            for (int i = 0; i < positions.size(); i++) {
+                if (positions.get(i) instanceof Document) {
+                    Document position = (Document) positions.get(i);
+                    for (String field : POSITION_AMOUNTS) {
+                        addUpdate(updates, id, POSITIONS + "." + i + "." + field, position.get(field));
+                    }
+                }
+            }
+        }
+        return updates;
+    }
+
+    // the application writes amounts only as Decimal128, so a string still found at the path is the amount read above
+    private static void addUpdate(List<WriteModel<Document>> updates, Object id, String field, Object amount) {
+        if (amount instanceof String) {
+            updates.add(new UpdateOneModel<>(Filters.and(Filters.eq(ID, id), Filters.type(field, BsonType.STRING)),
+                    Updates.set(field, decimal((String) amount))));
+        }
+    }
+
+    private static Decimal128 decimal(String amount) {
+        return new Decimal128(new BigDecimal(amount));
+    }
+}
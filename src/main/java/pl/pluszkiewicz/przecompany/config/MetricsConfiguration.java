@@ -0,0 +1,21 @@
+package pl.pluszkiewicz.przecompany.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsCommandListener;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Metrics Spring Boot does not register on its own - timings of Mongo commands, tagged with command and collection.
+ * Reactor scheduler metrics are enabled in {@link pl.pluszkiewicz.przecompany.PrzeCompanyApplication#main}, before
+ * any scheduler is created.
+ */
+@Configuration
+public class MetricsConfiguration {
+
+    @Bean
+    public MongoClientSettingsBuilderCustomizer mongoMetricsCustomizer(MeterRegistry meterRegistry) {
+        return settings -> settings.addCommandListener(new MongoMetricsCommandListener(meterRegistry));
+    }
+}
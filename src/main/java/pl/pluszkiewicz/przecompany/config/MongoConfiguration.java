@@ -0,0 +1,46 @@
+package pl.pluszkiewicz.przecompany.config;
+
+import org.bson.types.Decimal128;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.data.convert.ReadingConverter;
+import org.springframework.data.convert.WritingConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * Stores amounts as Decimal128 instead of the strings Spring Data writes for {@link BigDecimal} by default, so Mongo
+ * compares and sums them as exact decimal numbers. Amounts still stored as strings are read as well, until
+ * {@link DecimalAmountMigration} converts them.
+ */
+@Configuration
+public class MongoConfiguration {
+
+    @Bean
+    public MongoCustomConversions mongoCustomConversions() {
+        return new MongoCustomConversions(List.of(BigDecimalToDecimal128Converter.INSTANCE, Decimal128ToBigDecimalConverter.INSTANCE));
+    }
+
+    @WritingConverter
+    enum BigDecimalToDecimal128Converter implements Converter<BigDecimal, Decimal128> {
+        INSTANCE;
+
+        @Override
+        public Decimal128 convert(BigDecimal source) {
+            return new Decimal128(source);
+        }
+    }
+
+    @ReadingConverter
+    enum Decimal128ToBigDecimalConverter implements Converter<Decimal128, BigDecimal> {
+        INSTANCE;
+
+        @Override
+        public BigDecimal convert(Decimal128 source) {
+            return source.bigDecimalValue();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package pl.pluszkiewicz.przecompany.config;
+
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexResolver;
+import org.springframework.data.mongodb.core.index.MongoPersistentEntityIndexResolver;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+
+/**
+ * Creates indexes declared on {@link Document} classes before the application starts serving requests. Spring Data no
+ * longer creates them on its own, and the queries on settlement date and NIP rely on them.
+ */
+@Component
+@Profile("!" + CdsTrainingRun.PROFILE)
+public class MongoIndexInitializer {
+    private static final Duration INDEX_CREATION_TIMEOUT = Duration.ofMinutes(1);
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final MongoMappingContext mappingContext;
+
+    public MongoIndexInitializer(ReactiveMongoTemplate mongoTemplate, MongoMappingContext mappingContext) {
+        this.mongoTemplate = mongoTemplate;
+        this.mappingContext = mappingContext;
+    }
+
+    @EventListener(ContextRefreshedEvent.class)
+    public void ensureIndexes() {
+        IndexResolver indexResolver = new MongoPersistentEntityIndexResolver(mappingContext);
+        Flux.fromIterable(mappingContext.getPersistentEntities())
+                .filter(entity -> entity.isAnnotationPresent(Document.class))
+                .concatMap(entity -> Flux.fromIterable(indexResolver.resolveIndexFor(entity.getTypeInformation()))
+                        .concatMap(index -> mongoTemplate.indexOps(entity.getType()).ensureIndex(index)))
+                .blockLast(INDEX_CREATION_TIMEOUT);
+    }
+}
@@ -3,17 +3,24 @@ package pl.pluszkiewicz.przecompany.invoice;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.index.TextIndexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 import pl.pluszkiewicz.przecompany.company.Company;
 
 import java.math.BigDecimal;
-import java.sql.Blob;
 import java.time.LocalDate;
 import java.util.List;
 
-@Document
+@Document(language = "none")
+@CompoundIndex(name = "settlementDate_id", def = "{'settlementDate': 1, '_id': 1}")
+@CompoundIndex(name = "seller_nip_settlementDate", def = "{'seller.nip': 1, 'settlementDate': 1}")
+@CompoundIndex(name = "buyer_nip_settlementDate", def = "{'buyer.nip': 1, 'settlementDate': 1}")
 @Data
 @AllArgsConstructor
 @NoArgsConstructor
@@ -21,19 +28,24 @@ import java.util.List;
 public class Invoice {
     @Id
     private String id;
+    @Indexed
+    @TextIndexed(weight = 3)
     private String title;
     private LocalDate settlementDate;
     private BigDecimal amountNetto;
     private BigDecimal amountBrutto;
     private BigDecimal vat;
-    private Blob image;
+    private String imageId;
     private Company seller;
     private Company buyer;
     private List<Position> positions;
+    @Version
+    @EqualsAndHashCode.Exclude
+    private Long version;
 
     public Invoice(Invoice invoice) {
         this(invoice.getId(), invoice.getTitle(), invoice.getSettlementDate(), invoice.getAmountNetto(),
-                invoice.getAmountBrutto(), invoice.getVat(), invoice.getImage(), invoice.getSeller(), invoice.getBuyer(),
-                invoice.getPositions());
+                invoice.getAmountBrutto(), invoice.getVat(), invoice.getImageId(), invoice.getSeller(), invoice.getBuyer(),
+                invoice.getPositions(), invoice.getVersion());
     }
 }
@@ -0,0 +1,21 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class InvoiceBatchResult {
+    private long index;
+    private Status status;
+    private String invoiceId;
+    private String error;
+
+    public enum Status {
+        CREATED, FAILED
+    }
+}
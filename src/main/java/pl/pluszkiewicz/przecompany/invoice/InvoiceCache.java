@@ -0,0 +1,113 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.YearMonth;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * Read-through cache of single invoices and of invoices settled in a month. Entries expire after a fixed time and
+ * are evicted by size - month lists by the number of invoices they hold. Concurrent lookups of the same key share
+ * one Mongo query. Writers invalidate an invoice after their write completes - invalidation also drops a lookup still
+ * in flight, so a read that started before the write cannot put the old invoice back.
+ */
+@Component
+public class InvoiceCache implements MeterBinder {
+    public static final String INVOICES_BY_ID = "invoicesById";
+    public static final String INVOICES_BY_MONTH = "invoicesByMonth";
+
+    private final AsyncCache<String, Invoice> invoicesById;
+    private final AsyncCache<YearMonth, List<Invoice>> invoicesByMonth;
+
+    public InvoiceCache(@Value("${invoice.cache.ttl:10m}") Duration ttl, @Value("${invoice.cache.maximum-size:10000}") long maximumSize,
+            @Value("${invoice.cache.month-maximum-invoices:50000}") long monthMaximumInvoices) {
+        this.invoicesById = Caffeine.newBuilder()
+                .expireAfterWrite(ttl)
+                .maximumSize(maximumSize)
+                .recordStats()
+                .buildAsync();
+        this.invoicesByMonth = Caffeine.newBuilder()
+                .expireAfterWrite(ttl)
+                .maximumWeight(monthMaximumInvoices)
+                .<YearMonth, List<Invoice>>weigher((month, invoices) -> invoices.size())
+                .recordStats()
+                .buildAsync();
+    }
+
+    public Mono<Invoice> getInvoice(String id, Function<String, Mono<Invoice>> loader) {
+        return get(() -> invoicesById.get(id, (key, executor) -> loader.apply(key).toFuture()));
+    }
+
+    public Flux<Invoice> getMonth(YearMonth month, Function<YearMonth, Flux<Invoice>> loader) {
+        return get(() -> invoicesByMonth.get(month, (key, executor) -> loader.apply(key).collectList().toFuture()))
+                .flatMapIterable(invoices -> invoices);
+    }
+
+    /**
+     * Drops cached state of an invoice - the invoice itself and the month it is settled in. A writer that moves an
+     * invoice to another month invalidates both its previous and its current state.
+     */
+    public void invalidate(Invoice invoice) {
+        if (nonNull(invoice.getId())) {
+            invoicesById.synchronous().invalidate(invoice.getId());
+        }
+        if (nonNull(invoice.getSettlementDate())) {
+            invoicesByMonth.synchronous().invalidate(YearMonth.from(invoice.getSettlementDate()));
+        }
+    }
+
+    /**
+     * Drops every cached invoice and month, for writes that bypass the service.
+     */
+    public void invalidateAll() {
+        invoicesById.synchronous().invalidateAll();
+        invoicesByMonth.synchronous().invalidateAll();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, invoicesById.synchronous(), INVOICES_BY_ID);
+        CaffeineCacheMetrics.monitor(registry, invoicesByMonth.synchronous(), INVOICES_BY_MONTH);
+    }
+
+    public Map<String, InvoiceCacheStats> getStats() {
+        Map<String, InvoiceCacheStats> stats = new LinkedHashMap<>();
+        stats.put(INVOICES_BY_ID, toStats(invoicesById));
+        stats.put(INVOICES_BY_MONTH, toStats(invoicesByMonth));
+        return stats;
+    }
+
+    private static InvoiceCacheStats toStats(AsyncCache<?, ?> cache) {
+        CacheStats stats = cache.synchronous().stats();
+        return InvoiceCacheStats.builder()
+                .size(cache.synchronous().estimatedSize())
+                .hitCount(stats.hitCount())
+                .missCount(stats.missCount())
+                .hitRate(stats.hitRate())
+                .evictionCount(stats.evictionCount())
+                .loadFailureCount(stats.loadFailureCount())
+                .build();
+    }
+
+    // a cancelled subscriber must not cancel the shared future other subscribers are waiting for
+    private static <T> Mono<T> get(Supplier<CompletableFuture<T>> future) {
+        return Mono.defer(() -> Mono.fromFuture(future.get().copy()));
+    }
+}
@@ -0,0 +1,82 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import org.springframework.stereotype.Component;
+import pl.pluszkiewicz.przecompany.company.Company;
+import pl.pluszkiewicz.przecompany.company.CompanyService;
+import reactor.core.publisher.Mono;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Swaps sellers and buyers of invoices for references to the company registry before they are stored and back for
+ * registered companies when they are read with the companies join.
+ */
+@Component
+public class InvoiceCompanies {
+    public static final String SELLER_FIELD = "seller";
+    public static final String BUYER_FIELD = "buyer";
+
+    private final CompanyService companyService;
+
+    public InvoiceCompanies(CompanyService companyService) {
+        this.companyService = companyService;
+    }
+
+    /**
+     * Registers sellers and buyers of the invoices and replaces them in place with references.
+     */
+    public Mono<Void> register(List<Invoice> invoices) {
+        List<Company> companies = invoices.stream()
+                .flatMap(invoice -> Stream.of(invoice.getSeller(), invoice.getBuyer()))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        return companyService.register(companies)
+                .then(Mono.fromRunnable(() -> invoices.forEach(invoice -> {
+                    invoice.setSeller(companyService.reference(invoice.getSeller()));
+                    invoice.setBuyer(companyService.reference(invoice.getBuyer()));
+                })));
+    }
+
+    /**
+     * Same as {@link #register(List)} for changes of invoice properties.
+     */
+    public Mono<Map<String, Object>> register(Map<String, Object> changes) {
+        List<Company> companies = Stream.of(changes.get(SELLER_FIELD), changes.get(BUYER_FIELD))
+                .filter(Objects::nonNull)
+                .map(Company.class::cast)
+                .collect(Collectors.toList());
+        if (companies.isEmpty()) {
+            return Mono.just(changes);
+        }
+        return companyService.register(companies)
+                .then(Mono.fromCallable(() -> {
+                    Map<String, Object> referenced = new LinkedHashMap<>(changes);
+                    referenced.computeIfPresent(SELLER_FIELD, (field, company) -> companyService.reference((Company) company));
+                    referenced.computeIfPresent(BUYER_FIELD, (field, company) -> companyService.reference((Company) company));
+                    return referenced;
+                }));
+    }
+
+    /**
+     * Returns a copy of the invoice with registered sellers and buyers in place of references.
+     */
+    public Mono<Invoice> join(Invoice invoice) {
+        return Mono.zip(joined(invoice.getSeller()), joined(invoice.getBuyer()))
+                .map(companies -> {
+                    Invoice joined = new Invoice(invoice);
+                    joined.setSeller(companies.getT1().orElse(null));
+                    joined.setBuyer(companies.getT2().orElse(null));
+                    return joined;
+                });
+    }
+
+    private Mono<Optional<Company>> joined(Company company) {
+        return companyService.join(company).map(Optional::of).defaultIfEmpty(Optional.empty());
+    }
+}
@@ -0,0 +1,27 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Content hash of an imported PDF. An entry without invoice id is a claim of an import still in progress.
+ */
+@Document(collection = "invoice_content_hashes")
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class InvoiceContentHash {
+    @Id
+    private String hash;
+    @Indexed
+    private String invoiceId;
+    private Instant claimedAt;
+}
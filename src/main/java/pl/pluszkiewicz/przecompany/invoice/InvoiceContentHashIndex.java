@@ -0,0 +1,107 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps SHA-256 of uploaded PDF content to the invoice created from it. Recently used hashes are kept in a bounded
+ * LRU map, the full index lives in the invoice_content_hashes collection. The hash is its _id, so of concurrent imports of
+ * the same content only one can claim it.
+ */
+@Component
+public class InvoiceContentHashIndex {
+    private final InvoiceContentHashRepository invoiceContentHashRepository;
+    private final Duration claimTimeout;
+    private final Map<String, String> recentHashes;
+
+    public InvoiceContentHashIndex(InvoiceContentHashRepository invoiceContentHashRepository,
+            @Value("${invoice.import.hash-cache-size:10000}") int cacheSize, @Value("${invoice.import.claim-timeout:10m}") Duration claimTimeout) {
+        this.invoiceContentHashRepository = invoiceContentHashRepository;
+        this.claimTimeout = claimTimeout;
+        this.recentHashes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Claims the hash for an import of its content. Completes empty if the claim succeeded - the caller then either
+     * {@link #register registers} the created invoice or {@link #release releases} the hash. Otherwise emits the
+     * existing entry, its invoice id is null while another import of the same content is still running. A claim left by
+     * a crashed import expires after invoice.import.claim-timeout.
+     */
+    public Mono<InvoiceContentHash> claim(String hash) {
+        String invoiceId = getCached(hash);
+        if (invoiceId != null) {
+            return Mono.just(InvoiceContentHash.builder().hash(hash).invoiceId(invoiceId).build());
+        }
+        return insertClaim(hash)
+                .onErrorResume(DuplicateKeyException.class, e -> invoiceContentHashRepository
+                        .deleteByHashAndInvoiceIdIsNullAndClaimedAtBefore(hash, Instant.now().minus(claimTimeout))
+                        .flatMap(expired -> expired > 0 ? insertClaim(hash) : Mono.error(e)))
+                .onErrorResume(DuplicateKeyException.class, e -> invoiceContentHashRepository.findById(hash)
+                        .doOnNext(existing -> {
+                            if (existing.getInvoiceId() != null) {
+                                putCached(hash, existing.getInvoiceId());
+                            }
+                        })
+                        // released in the meantime
+                        .switchIfEmpty(Mono.defer(() -> insertClaim(hash))));
+    }
+
+    /**
+     * Releases claims of imports that did not create an invoice, so the same content can be imported again.
+     */
+    public Mono<Void> release(Collection<String> hashes) {
+        if (hashes.isEmpty()) {
+            return Mono.empty();
+        }
+        return invoiceContentHashRepository.deleteByHashInAndInvoiceIdIsNull(hashes).then();
+    }
+
+    public Mono<Void> register(List<InvoiceContentHash> contentHashes) {
+        if (contentHashes.isEmpty()) {
+            return Mono.empty();
+        }
+        return invoiceContentHashRepository.saveAll(contentHashes)
+                .doOnNext(contentHash -> putCached(contentHash.getHash(), contentHash.getInvoiceId()))
+                .then();
+    }
+
+    public Mono<Void> removeInvoice(String invoiceId) {
+        return invoiceContentHashRepository.deleteByInvoiceId(invoiceId)
+                .map(InvoiceContentHash::getHash)
+                .collectList()
+                .doOnNext(hashes -> evict(invoiceId, hashes))
+                .then();
+    }
+
+    private Mono<InvoiceContentHash> insertClaim(String hash) {
+        return invoiceContentHashRepository.insert(InvoiceContentHash.builder().hash(hash).claimedAt(Instant.now()).build())
+                .then(Mono.empty());
+    }
+
+    private synchronized String getCached(String hash) {
+        return recentHashes.get(hash);
+    }
+
+    private synchronized void putCached(String hash, String invoiceId) {
+        recentHashes.put(hash, invoiceId);
+    }
+
+    private synchronized void evict(String invoiceId, List<String> hashes) {
+        hashes.forEach(recentHashes::remove);
+        recentHashes.values().removeIf(invoiceId::equals);
+    }
+}
@@ -0,0 +1,16 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.Collection;
+
+public interface InvoiceContentHashRepository extends ReactiveMongoRepository<InvoiceContentHash, String> {
+    Flux<InvoiceContentHash> deleteByInvoiceId(String invoiceId);
+
+    Mono<Long> deleteByHashAndInvoiceIdIsNullAndClaimedAtBefore(String hash, Instant claimedBefore);
+
+    Mono<Long> deleteByHashInAndInvoiceIdIsNull(Collection<String> hashes);
+}
@@ -1,58 +1,332 @@
 package pl.pluszkiewicz.przecompany.invoice;
 
+import com.mongodb.client.gridfs.model.GridFSFile;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.codec.multipart.Part;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import javax.naming.directory.InvalidAttributeIdentifierException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
+import java.time.Month;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.Map;
 
+import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
 
 @RestController
 @RequestMapping(value = "invoices")
 public class InvoiceController {
+    public static final String BYTES_RANGE_UNIT = "bytes";
+    public static final String SUMMARY_VIEW = "summary";
+    public static final String NEXT_PAGE_TOKEN_HEADER = "X-Next-Page-Token";
+    public static final String MERGE_PATCH_JSON_VALUE = "application/merge-patch+json";
+    public static final String COMPANIES_JOIN = "companies";
+    public static final String CSV_FORMAT = "csv";
+    public static final String JPK_FORMAT = "jpk";
+    public static final MediaType CSV_MEDIA_TYPE = new MediaType("text", "csv", StandardCharsets.UTF_8);
     private final InvoiceService invoiceService;
+    private final InvoiceImportService invoiceImportService;
+    private final InvoiceImageService invoiceImageService;
+    private final InvoiceStatsService invoiceStatsService;
+    private final InvoiceRollupService invoiceRollupService;
+    private final InvoiceExportService invoiceExportService;
 
-    public InvoiceController(InvoiceService invoiceService) {
+    public InvoiceController(InvoiceService invoiceService, InvoiceImportService invoiceImportService, InvoiceImageService invoiceImageService,
+            InvoiceStatsService invoiceStatsService, InvoiceRollupService invoiceRollupService, InvoiceExportService invoiceExportService) {
         this.invoiceService = invoiceService;
+        this.invoiceImportService = invoiceImportService;
+        this.invoiceImageService = invoiceImageService;
+        this.invoiceStatsService = invoiceStatsService;
+        this.invoiceRollupService = invoiceRollupService;
+        this.invoiceExportService = invoiceExportService;
     }
 
+    /**
+     * Lists all matching invoices unless pageToken or pageSize is given, then only one page is returned and the
+     * X-Next-Page-Token header points at the next one. The full listing is written as it is read from the cursor, only a
+     * page is collected. Given from and to are both exclusive. Month and year list every day of the month, the same
+     * invoices /stats and /export count for it.
+     */
     @GetMapping
-    public Flux<Invoice> getInvoices(@RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+    public Mono<ResponseEntity<?>> getInvoices(@RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
             @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
-            @RequestParam(value = "month", required = false) Integer month, @RequestParam(value = "year", required = false) Integer year) {
-        if (nonNull(from) && nonNull(to)) {
-            return invoiceService.getInvoicesBySettlementDateBetween(from, to);
+            @RequestParam(value = "month", required = false) Integer month, @RequestParam(value = "year", required = false) Integer year,
+            @RequestParam(value = "view", required = false) String view, @RequestParam(value = "fields", required = false) List<String> fields,
+            @RequestParam(value = "pageToken", required = false) String pageToken, @RequestParam(value = "pageSize", required = false) Integer pageSize,
+            @RequestParam(value = "join", required = false) String join) {
+        if (isNull(pageToken) && isNull(pageSize)) {
+            return Mono.just(ResponseEntity.ok(streamInvoices(from, to, month, year, view, fields, join)));
         }
+        LocalDate periodStart = periodStart(from, to, month, year);
+        LocalDate periodEnd = periodEnd(from, to, month, year);
 
-        if (nonNull(year) && nonNull(month)) {
-            return invoiceService.getInvoiceForMonthAndYear(month, year);
+        if (nonNull(fields) && !fields.isEmpty()) {
+            return invoiceService.getInvoiceFieldsPage(periodStart, periodEnd, pageToken, pageSize, fields).map(this::pageResponse);
+        }
+        if (SUMMARY_VIEW.equalsIgnoreCase(view)) {
+            return invoiceService.getInvoiceSummaryPage(periodStart, periodEnd, pageToken, pageSize).map(this::pageResponse);
+        }
+        if (COMPANIES_JOIN.equalsIgnoreCase(join)) {
+            return invoiceService.getInvoicePage(periodStart, periodEnd, pageToken, pageSize).flatMap(invoiceService::joinCompanies).map(this::pageResponse);
         }
-        return invoiceService.getAllInvoices();
+        return invoiceService.getInvoicePage(periodStart, periodEnd, pageToken, pageSize).map(this::pageResponse);
+    }
+
+    @GetMapping(produces = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.TEXT_EVENT_STREAM_VALUE})
+    public Flux<?> streamInvoices(@RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            @RequestParam(value = "month", required = false) Integer month, @RequestParam(value = "year", required = false) Integer year,
+            @RequestParam(value = "view", required = false) String view, @RequestParam(value = "fields", required = false) List<String> fields,
+            @RequestParam(value = "join", required = false) String join) {
+        if ((isNull(from) || isNull(to)) && nonNull(month) && nonNull(year)) {
+            return monthInvoices(month, year, view, fields, join);
+        }
+        LocalDate periodStart = periodStart(from, to, month, year);
+        LocalDate periodEnd = periodEnd(from, to, month, year);
+
+        if (nonNull(fields) && !fields.isEmpty()) {
+            return invoiceService.streamInvoiceFields(periodStart, periodEnd, fields);
+        }
+        if (SUMMARY_VIEW.equalsIgnoreCase(view)) {
+            return invoiceService.streamInvoiceSummaries(periodStart, periodEnd);
+        }
+        if (COMPANIES_JOIN.equalsIgnoreCase(join)) {
+            return invoiceService.streamInvoices(periodStart, periodEnd).concatMap(invoiceService::joinCompanies);
+        }
+        return invoiceService.streamInvoices(periodStart, periodEnd);
+    }
+
+    @GetMapping("/search")
+    public Mono<ResponseEntity<List<?>>> searchInvoices(@RequestParam(value = "q") String text,
+            @RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            @RequestParam(value = "pageToken", required = false) String pageToken, @RequestParam(value = "pageSize", required = false) Integer pageSize) {
+        return invoiceService.searchInvoiceSummaries(text, nonNull(from) ? from.plusDays(1) : null, to, pageToken, pageSize).map(this::pageResponse);
+    }
+
+    @GetMapping("/export")
+    public ResponseEntity<Flux<DataBuffer>> exportInvoices(@RequestParam(value = "format", defaultValue = CSV_FORMAT) String format,
+            @RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            @RequestParam(value = "month", required = false) Integer month, @RequestParam(value = "year", required = false) Integer year,
+            ServerHttpResponse response) {
+        if (isNull(from) || isNull(to)) {
+            from = monthStart(month, year);
+            to = monthEnd(month, year);
+        }
+
+        if (JPK_FORMAT.equalsIgnoreCase(format)) {
+            YearMonth jpkMonth = InvoiceExportService.jpkMonth(from, to);
+            return exportResponse(MediaType.APPLICATION_XML, "JPK_VAT-" + jpkMonth + ".xml",
+                    invoiceExportService.exportJpk(jpkMonth, response.bufferFactory()));
+        }
+        if (CSV_FORMAT.equalsIgnoreCase(format)) {
+            String period = nonNull(from) && nonNull(to) ? "-" + from + "-" + to : "";
+            return exportResponse(CSV_MEDIA_TYPE, "invoices" + period + ".csv", invoiceExportService.exportCsv(from, to, response.bufferFactory()));
+        }
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown export format: " + format);
+    }
+
+    /**
+     * Totals of invoices settled between from and to, both inclusive - unlike the exclusive bounds given to the invoice
+     * listing. A year alone covers January 1 to December 31.
+     */
+    @GetMapping("/stats")
+    public Flux<InvoiceTotals> getInvoiceStats(@RequestParam(value = "groupBy", defaultValue = "month") String groupBy,
+            @RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            @RequestParam(value = "year", required = false) Integer year) {
+        InvoiceStatsGrouping grouping;
+        try {
+            grouping = InvoiceStatsGrouping.of(groupBy);
+        } catch (IllegalArgumentException e) {
+            return Flux.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown grouping: " + groupBy));
+        }
+        if (isNull(from) && isNull(to) && nonNull(year)) {
+            from = LocalDate.of(year, Month.JANUARY, 1);
+            to = LocalDate.of(year, Month.DECEMBER, 31);
+        }
+        return invoiceStatsService.getTotals(grouping, from, to);
+    }
+
+    @GetMapping("/rollups/{yearMonth}")
+    public Mono<InvoiceRollup> getInvoiceRollup(@PathVariable(value = "yearMonth") YearMonth yearMonth,
+            @RequestParam(value = "sellerNip", required = false) Long sellerNip, @RequestParam(value = "buyerNip", required = false) Long buyerNip) {
+        if (nonNull(sellerNip)) {
+            return invoiceRollupService.getRollup(yearMonth, InvoiceRollup.Scope.SELLER, sellerNip);
+        }
+        if (nonNull(buyerNip)) {
+            return invoiceRollupService.getRollup(yearMonth, InvoiceRollup.Scope.BUYER, buyerNip);
+        }
+        return invoiceRollupService.getRollup(yearMonth, InvoiceRollup.Scope.ALL, null);
+    }
+
+    @PostMapping("/rollups/rebuild")
+    public Mono<Long> rebuildInvoiceRollups() {
+        return invoiceRollupService.rebuild();
+    }
+
+    @GetMapping("/cache/stats")
+    public Map<String, InvoiceCacheStats> getCacheStats() {
+        return invoiceService.getCacheStats();
     }
 
     @GetMapping("/{id}")
-    public Mono<Invoice> getInvoiceById(@PathVariable(value = "id") String id) {
+    public Mono<Invoice> getInvoiceById(@PathVariable(value = "id") String id, @RequestParam(value = "join", required = false) String join) {
+        if (COMPANIES_JOIN.equalsIgnoreCase(join)) {
+            return invoiceService.getInvoiceById(id).flatMap(invoiceService::joinCompanies);
+        }
         return invoiceService.getInvoiceById(id);
     }
 
+    @GetMapping("/{id}/image")
+    public Mono<ResponseEntity<Flux<DataBuffer>>> getInvoiceImage(@PathVariable(value = "id") String id, @RequestHeader HttpHeaders requestHeaders) {
+        return invoiceImageService.findImage(id)
+                .map(image -> imageResponse(image, requestHeaders))
+                .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
+    @PutMapping("/{id}/image")
+    public Mono<Invoice> uploadInvoiceImage(@PathVariable(value = "id") String id, @RequestHeader HttpHeaders requestHeaders,
+            @RequestBody Flux<DataBuffer> content) {
+        MediaType contentType = requestHeaders.getContentType();
+        String fileName = requestHeaders.getContentDisposition().getFilename();
+        return invoiceImageService.storeImage(id, nonNull(fileName) ? fileName : id, nonNull(contentType) ? contentType.toString() : null, content);
+    }
+
     @PostMapping
     @ResponseStatus(HttpStatus.CREATED)
     public Mono<Invoice> addInvoice(@RequestBody Invoice invoice) {
         return invoiceService.addInvoice(invoice);
     }
 
+    @PostMapping(value = "/batch", consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    public Flux<InvoiceBatchResult> addInvoices(@RequestBody Flux<Invoice> invoices) {
+        return invoiceService.addInvoices(invoices);
+    }
+
+    @PostMapping(value = "/import", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Flux<InvoiceImportResult> importInvoices(@RequestBody Flux<Part> parts) {
+        return invoiceImportService.importFiles(parts
+                .ofType(FilePart.class)
+                .map(filePart -> new InvoiceImportFile(filePart.filename(), filePart.content())));
+    }
+
     @PutMapping("/{id}")
     public Mono<Invoice> editInvoice(@PathVariable(value = "id") String id, @RequestBody Invoice invoice) throws InvalidAttributeIdentifierException {
         return invoiceService.editInvoice(id, invoice);
 
     }
 
+    @PatchMapping(value = "/{id}", consumes = {MediaType.APPLICATION_JSON_VALUE, MERGE_PATCH_JSON_VALUE})
+    public Mono<Invoice> patchInvoice(@PathVariable(value = "id") String id, @RequestBody Map<String, Object> patch) {
+        return invoiceService.patchInvoice(id, patch);
+    }
+
     @DeleteMapping("/{id}")
-    public Mono<Invoice> deleteInvoice(@PathVariable(value = "id") String id) {
-        return invoiceService.removeInvoice(id);
+    public Mono<Invoice> deleteInvoice(@PathVariable(value = "id") String id, @RequestParam(value = "version", required = false) Long version) {
+        return invoiceService.removeInvoice(id, version);
+    }
+
+    // whole months are read through the month cache, pages of a month are read from Mongo
+    private Flux<?> monthInvoices(int month, int year, String view, List<String> fields, String join) {
+        if (nonNull(fields) && !fields.isEmpty()) {
+            return invoiceService.getInvoiceFieldsForMonthAndYear(month, year, fields);
+        }
+        if (SUMMARY_VIEW.equalsIgnoreCase(view)) {
+            return invoiceService.getInvoiceSummariesForMonthAndYear(month, year);
+        }
+        if (COMPANIES_JOIN.equalsIgnoreCase(join)) {
+            return invoiceService.getInvoiceForMonthAndYear(month, year).concatMap(invoiceService::joinCompanies);
+        }
+        return invoiceService.getInvoiceForMonthAndYear(month, year);
+    }
+
+    private static LocalDate monthStart(Integer month, Integer year) {
+        return nonNull(year) && nonNull(month) ? LocalDate.of(year, month, InvoiceService.FIRST_DAY_OF_MONTH) : null;
+    }
+
+    private static LocalDate monthEnd(Integer month, Integer year) {
+        return nonNull(year) && nonNull(month) ? YearMonth.of(year, month).atEndOfMonth() : null;
+    }
+
+    // the service lists [periodStart, periodEnd), given dates are both exclusive and a month is [first day, next month)
+    private static LocalDate periodStart(LocalDate from, LocalDate to, Integer month, Integer year) {
+        return nonNull(from) && nonNull(to) ? from.plusDays(1) : monthStart(month, year);
+    }
+
+    private static LocalDate periodEnd(LocalDate from, LocalDate to, Integer month, Integer year) {
+        if (nonNull(from) && nonNull(to)) {
+            return to;
+        }
+        return nonNull(year) && nonNull(month) ? YearMonth.of(year, month).plusMonths(1).atDay(InvoiceService.FIRST_DAY_OF_MONTH) : null;
+    }
+
+    private ResponseEntity<List<?>> pageResponse(InvoicePage<?> page) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (nonNull(page.getNextPageToken())) {
+            response.header(NEXT_PAGE_TOKEN_HEADER, page.getNextPageToken());
+        }
+        return response.body(page.getItems());
+    }
+
+    private static ResponseEntity<Flux<DataBuffer>> exportResponse(MediaType mediaType, String fileName, Flux<DataBuffer> content) {
+        return ResponseEntity.ok()
+                .contentType(mediaType)
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename(fileName).build().toString())
+                .body(content);
+    }
+
+    private ResponseEntity<Flux<DataBuffer>> imageResponse(GridFSFile image, HttpHeaders requestHeaders) {
+        long length = image.getLength();
+        List<HttpRange> ranges;
+        try {
+            ranges = requestHeaders.getRange();
+        } catch (IllegalArgumentException e) {
+            return rangeNotSatisfiable(length);
+        }
+        String contentType = InvoiceImageService.getContentType(image);
+        MediaType mediaType = nonNull(contentType) ? MediaType.parseMediaType(contentType) : MediaType.APPLICATION_OCTET_STREAM;
+
+        if (ranges.size() != 1) {
+            return ResponseEntity.ok()
+                    .header(HttpHeaders.ACCEPT_RANGES, BYTES_RANGE_UNIT)
+                    .contentType(mediaType)
+                    .contentLength(length)
+                    .body(length == 0 ? Flux.empty() : invoiceImageService.readImage(image, 0, length - 1));
+        }
+        HttpRange range = ranges.get(0);
+        long start = range.getRangeStart(length);
+        long end = range.getRangeEnd(length);
+        if (start >= length || end < start) {
+            return rangeNotSatisfiable(length);
+        }
+        return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                .header(HttpHeaders.ACCEPT_RANGES, BYTES_RANGE_UNIT)
+                .header(HttpHeaders.CONTENT_RANGE, BYTES_RANGE_UNIT + " " + start + "-" + end + "/" + length)
+                .contentType(mediaType)
+                .contentLength(end - start + 1)
+                .body(invoiceImageService.readImage(image, start, end));
+    }
+
+    private static ResponseEntity<Flux<DataBuffer>> rangeNotSatisfiable(long length) {
+        return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header(HttpHeaders.CONTENT_RANGE, BYTES_RANGE_UNIT + " */" + length)
+                .build();
     }
 }
@@ -0,0 +1,403 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import pl.pluszkiewicz.przecompany.company.Company;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Exports invoices of a settlement period as CSV with one row per position, or as the Ewidencja (records) part of a
+ * JPK_V7M report. Invoices are read from the Mongo cursor and written invoice.export.chunk-size invoices per
+ * {@link DataBuffer}, so the heap used does not depend on the length of the period.
+ */
+@Service
+public class InvoiceExportService {
+    public static final String CSV_HEADER = "invoiceId,title,settlementDate,sellerNip,sellerName,buyerNip,buyerName,amountNetto,vat,amountBrutto,"
+            + "position,name,amount,unitType,unitPriceNetto,vatPercent,gtuCode,totalAmountNetto,totalVat,totalAmountBrutto\r\n";
+    public static final String JPK_NAMESPACE = "http://crd.gov.pl/wzor/2020/05/08/9393/";
+    public static final String JPK_SYSTEM_CODE = "JPK_V7M (1)";
+    public static final String JPK_SCHEMA_VERSION = "1-2E";
+    public static final String SYSTEM_NAME = "prze-company";
+
+    private static final Pattern GTU_CODE_PATTERN = Pattern.compile("(?:GTU_?)?(\\d{1,2})", Pattern.CASE_INSENSITIVE);
+    private static final int GTU_CODES = 13;
+    private static final Map<Integer, String[]> SALE_FIELDS_BY_VAT_PERCENT = Map.of(
+            0, new String[]{"K_13", null},
+            5, new String[]{"K_15", "K_16"},
+            7, new String[]{"K_17", "K_18"},
+            8, new String[]{"K_17", "K_18"},
+            22, new String[]{"K_19", "K_20"},
+            23, new String[]{"K_19", "K_20"});
+    private static final int DEFAULT_VAT_PERCENT = 23;
+
+    private final InvoiceService invoiceService;
+    private final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newFactory();
+    private final Long taxpayerNip;
+    private final String taxpayerName;
+    private final String taxOfficeCode;
+    private final int chunkSize;
+
+    public InvoiceExportService(InvoiceService invoiceService, @Value("${invoice.export.jpk.nip:#{null}}") Long taxpayerNip,
+            @Value("${invoice.export.jpk.name:}") String taxpayerName, @Value("${invoice.export.jpk.tax-office-code:}") String taxOfficeCode,
+            @Value("${invoice.export.chunk-size:64}") int chunkSize) {
+        this.invoiceService = invoiceService;
+        this.taxpayerNip = taxpayerNip;
+        this.taxpayerName = taxpayerName;
+        this.taxOfficeCode = taxOfficeCode;
+        this.chunkSize = chunkSize;
+    }
+
+    public Flux<DataBuffer> exportCsv(LocalDate from, LocalDate to, DataBufferFactory bufferFactory) {
+        return Flux.concat(
+                Mono.fromCallable(() -> writeText(bufferFactory, writer -> writer.write(CSV_HEADER))),
+                periodInvoices(from, to)
+                        .buffer(chunkSize)
+                        .map(invoices -> writeText(bufferFactory, writer -> {
+                            for (Invoice invoice : invoices) {
+                                writeCsvRows(writer, invoice);
+                            }
+                        })))
+                .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+    }
+
+    /**
+     * Sales are invoices not bought by the invoice.export.jpk.nip taxpayer. The cursor is read twice - once for sales
+     * and once for purchases - as the report lists all sales before all purchases.
+     */
+    public Flux<DataBuffer> exportJpk(YearMonth month, DataBufferFactory bufferFactory) {
+        LocalDate from = month.atDay(1);
+        LocalDate to = month.atEndOfMonth();
+        return Flux.defer(() -> {
+            JpkSection sales = new JpkSection();
+            JpkSection purchases = new JpkSection();
+            return Flux.concat(
+                    Mono.fromCallable(() -> writeXml(bufferFactory, xml -> writeJpkHeader(xml, month))),
+                    jpkRows(from, to, bufferFactory, invoice -> !isPurchase(invoice), (xml, invoice) -> writeSale(xml, invoice, sales)),
+                    Mono.fromCallable(() -> writeXml(bufferFactory, xml -> writeControl(xml, "SprzedazCtrl", "LiczbaWierszySprzedazy", "PodatekNalezny", sales))),
+                    jpkRows(from, to, bufferFactory, this::isPurchase, (xml, invoice) -> writePurchase(xml, invoice, purchases)),
+                    Mono.fromCallable(() -> writeXml(bufferFactory, xml -> writeControl(xml, "ZakupCtrl", "LiczbaWierszyZakupow", "PodatekNaliczony", purchases))),
+                    Mono.fromCallable(() -> writeText(bufferFactory, writer -> writer.write("</Ewidencja></JPK>\n"))));
+        }).doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+    }
+
+    public static YearMonth jpkMonth(LocalDate from, LocalDate to) {
+        if (isNull(from) || isNull(to) || !YearMonth.from(from).equals(YearMonth.from(to))) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "JPK_VAT is exported for a single month");
+        }
+        return YearMonth.from(from);
+    }
+
+    // the listing ends before its end date, a filing needs every day of the period
+    private Flux<Invoice> periodInvoices(LocalDate from, LocalDate to) {
+        return invoiceService.streamInvoices(from, nonNull(to) ? to.plusDays(1) : null);
+    }
+
+    private Flux<DataBuffer> jpkRows(LocalDate from, LocalDate to, DataBufferFactory bufferFactory, Predicate<Invoice> filter, XmlRowWriter rowWriter) {
+        return periodInvoices(from, to)
+                .filter(filter)
+                .buffer(chunkSize)
+                .map(invoices -> writeXml(bufferFactory, xml -> {
+                    for (Invoice invoice : invoices) {
+                        rowWriter.write(xml, invoice);
+                    }
+                }));
+    }
+
+    private boolean isPurchase(Invoice invoice) {
+        return nonNull(taxpayerNip) && nonNull(invoice.getBuyer()) && taxpayerNip.equals(invoice.getBuyer().getNip());
+    }
+
+    private static void writeCsvRows(Writer writer, Invoice invoice) throws IOException {
+        String invoiceColumns = csv(invoice.getId(), invoice.getTitle(), invoice.getSettlementDate(),
+                nip(invoice.getSeller()), name(invoice.getSeller()), nip(invoice.getBuyer()), name(invoice.getBuyer()),
+                invoice.getAmountNetto(), invoice.getVat(), invoice.getAmountBrutto());
+        List<Position> positions = invoice.getPositions();
+        if (isNull(positions) || positions.isEmpty()) {
+            writer.write(invoiceColumns);
+            writer.write(",,,,,,,,,,\r\n");
+            return;
+        }
+        for (int i = 0; i < positions.size(); i++) {
+            Position position = positions.get(i);
+            writer.write(invoiceColumns);
+            writer.write(',');
+            writer.write(csv(i + 1, position.getName(), position.getAmount(), position.getUnitType(), position.getUnitPriceNetto(),
+                    position.getVatPercent(), position.getGtuCode(), position.getTotalAmountNetto(), position.getTotalVat(),
+                    position.getTotalAmountBrutto()));
+            writer.write("\r\n");
+        }
+    }
+
+    private void writeJpkHeader(XMLStreamWriter xml, YearMonth month) throws XMLStreamException {
+        xml.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+        xml.writeStartElement("JPK");
+        xml.writeDefaultNamespace(JPK_NAMESPACE);
+        xml.writeStartElement("Naglowek");
+        xml.writeStartElement("KodFormularza");
+        xml.writeAttribute("kodSystemowy", JPK_SYSTEM_CODE);
+        xml.writeAttribute("wersjaSchemy", JPK_SCHEMA_VERSION);
+        xml.writeCharacters("JPK_VAT");
+        xml.writeEndElement();
+        element(xml, "WariantFormularza", "1");
+        element(xml, "DataWytworzeniaJPK", OffsetDateTime.now().truncatedTo(ChronoUnit.SECONDS).toString());
+        element(xml, "NazwaSystemu", SYSTEM_NAME);
+        xml.writeStartElement("CelZlozenia");
+        xml.writeAttribute("poz", "P_7");
+        xml.writeCharacters("1");
+        xml.writeEndElement();
+        element(xml, "KodUrzedu", taxOfficeCode);
+        element(xml, "Rok", String.valueOf(month.getYear()));
+        element(xml, "Miesiac", String.valueOf(month.getMonthValue()));
+        xml.writeEndElement();
+        xml.writeStartElement("Podmiot1");
+        xml.writeAttribute("rola", "Podatnik");
+        xml.writeStartElement("OsobaNiefizyczna");
+        element(xml, "NIP", nonNull(taxpayerNip) ? String.valueOf(taxpayerNip) : "");
+        element(xml, "PelnaNazwa", taxpayerName);
+        xml.writeEndElement();
+        xml.writeEndElement();
+        xml.writeStartElement("Ewidencja");
+        // closes the start tag, the element itself is closed by the last buffer
+        xml.writeCharacters("");
+    }
+
+    private static void writeSale(XMLStreamWriter xml, Invoice invoice, JpkSection sales) throws XMLStreamException {
+        xml.writeStartElement("SprzedazWiersz");
+        element(xml, "LpSprzedazy", String.valueOf(sales.nextRow()));
+        element(xml, "NrKontrahenta", nonNull(nip(invoice.getBuyer())) ? String.valueOf(nip(invoice.getBuyer())) : "brak");
+        element(xml, "NazwaKontrahenta", nonNull(name(invoice.getBuyer())) ? name(invoice.getBuyer()) : "brak");
+        element(xml, "DowodSprzedazy", invoice.getTitle());
+        element(xml, "DataWystawienia", String.valueOf(invoice.getSettlementDate()));
+        for (String gtuCode : gtuCodes(invoice)) {
+            element(xml, gtuCode, "1");
+        }
+        Map<String, BigDecimal> fields = new TreeMap<>((first, second) -> Integer.compare(fieldNumber(first), fieldNumber(second)));
+        vatRates(invoice).forEach((vatPercent, amounts) -> {
+            String[] saleFields = SALE_FIELDS_BY_VAT_PERCENT.get(vatPercent);
+            fields.merge(saleFields[0], amounts[0], BigDecimal::add);
+            if (nonNull(saleFields[1])) {
+                fields.merge(saleFields[1], amounts[1], BigDecimal::add);
+            }
+            sales.addTax(amounts[1]);
+        });
+        for (Map.Entry<String, BigDecimal> field : fields.entrySet()) {
+            element(xml, field.getKey(), amount(field.getValue()));
+        }
+        xml.writeEndElement();
+    }
+
+    private static void writePurchase(XMLStreamWriter xml, Invoice invoice, JpkSection purchases) throws XMLStreamException {
+        BigDecimal netto = zeroIfNull(invoice.getAmountNetto());
+        BigDecimal vat = zeroIfNull(invoice.getVat());
+        purchases.nextRow();
+        purchases.addTax(vat);
+        xml.writeStartElement("ZakupWiersz");
+        element(xml, "LpZakupu", String.valueOf(purchases.getRows()));
+        element(xml, "NrDostawcy", nonNull(nip(invoice.getSeller())) ? String.valueOf(nip(invoice.getSeller())) : "brak");
+        element(xml, "NazwaDostawcy", nonNull(name(invoice.getSeller())) ? name(invoice.getSeller()) : "brak");
+        element(xml, "DowodZakupu", invoice.getTitle());
+        element(xml, "DataZakupu", String.valueOf(invoice.getSettlementDate()));
+        element(xml, "K_42", amount(netto));
+        element(xml, "K_43", amount(vat));
+        xml.writeEndElement();
+    }
+
+    private static void writeControl(XMLStreamWriter xml, String element, String rowsElement, String taxElement, JpkSection section)
+            throws XMLStreamException {
+        xml.writeStartElement(element);
+        element(xml, rowsElement, String.valueOf(section.getRows()));
+        element(xml, taxElement, amount(section.getTax()));
+        xml.writeEndElement();
+    }
+
+    /**
+     * Netto and VAT per VAT rate of the positions, or the invoice totals when positions are missing or incomplete.
+     */
+    private static Map<Integer, BigDecimal[]> vatRates(Invoice invoice) {
+        Map<Integer, BigDecimal[]> rates = new TreeMap<>();
+        List<Position> positions = invoice.getPositions();
+        boolean complete = nonNull(positions) && !positions.isEmpty() && positions.stream().allMatch(position -> nonNull(position.getTotalAmountNetto())
+                && nonNull(position.getTotalVat()) && SALE_FIELDS_BY_VAT_PERCENT.containsKey(position.getVatPercent()));
+        if (complete) {
+            for (Position position : positions) {
+                BigDecimal[] amounts = rates.computeIfAbsent(position.getVatPercent(), rate -> new BigDecimal[]{BigDecimal.ZERO, BigDecimal.ZERO});
+                amounts[0] = amounts[0].add(position.getTotalAmountNetto());
+                amounts[1] = amounts[1].add(position.getTotalVat());
+            }
+            return rates;
+        }
+        BigDecimal netto = zeroIfNull(invoice.getAmountNetto());
+        BigDecimal vat = zeroIfNull(invoice.getVat());
+        rates.put(vatPercentOf(netto, vat), new BigDecimal[]{netto, vat});
+        return rates;
+    }
+
+    private static int vatPercentOf(BigDecimal netto, BigDecimal vat) {
+        if (netto.signum() == 0) {
+            return DEFAULT_VAT_PERCENT;
+        }
+        int vatPercent = vat.multiply(BigDecimal.valueOf(100)).divide(netto, 0, RoundingMode.HALF_UP).intValue();
+        return SALE_FIELDS_BY_VAT_PERCENT.containsKey(vatPercent) ? vatPercent : DEFAULT_VAT_PERCENT;
+    }
+
+    private static TreeSet<String> gtuCodes(Invoice invoice) {
+        TreeSet<String> gtuCodes = new TreeSet<>();
+        if (nonNull(invoice.getPositions())) {
+            for (Position position : invoice.getPositions()) {
+                if (nonNull(position.getGtuCode())) {
+                    Matcher matcher = GTU_CODE_PATTERN.matcher(position.getGtuCode().trim());
+                    if (matcher.matches()) {
+                        int code = Integer.parseInt(matcher.group(1));
+                        if (code >= 1 && code <= GTU_CODES) {
+                            gtuCodes.add(String.format("GTU_%02d", code));
+                        }
+                    }
+                }
+            }
+        }
+        return gtuCodes;
+    }
+
+    private static int fieldNumber(String field) {
+        return Integer.parseInt(field.substring(2));
+    }
+
+    private static void element(XMLStreamWriter xml, String name, String value) throws XMLStreamException {
+        xml.writeStartElement(name);
+        xml.writeCharacters(Objects.toString(value, ""));
+        xml.writeEndElement();
+    }
+
+    private static String amount(BigDecimal amount) {
+        return amount.setScale(2, RoundingMode.HALF_UP).toPlainString();
+    }
+
+    private static BigDecimal zeroIfNull(BigDecimal amount) {
+        return nonNull(amount) ? amount : BigDecimal.ZERO;
+    }
+
+    private static Long nip(Company company) {
+        return nonNull(company) ? company.getNip() : null;
+    }
+
+    private static String name(Company company) {
+        return nonNull(company) ? company.getName() : null;
+    }
+
+    private static String csv(Object... values) {
+        StringBuilder row = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                row.append(',');
+            }
+            Object value = values[i];
+            String text = value instanceof BigDecimal ? ((BigDecimal) value).toPlainString() : Objects.toString(value, "");
+            if (text.indexOf(',') >= 0 || text.indexOf('"') >= 0 || text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0) {
+                row.append('"').append(text.replace("\"", "\"\"")).append('"');
+            } else {
+                row.append(text);
+            }
+        }
+        return row.toString();
+    }
+
+    private static DataBuffer writeText(DataBufferFactory bufferFactory, TextContent content) {
+        return write(bufferFactory, output -> {
+            Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+            content.write(writer);
+            writer.flush();
+        });
+    }
+
+    private DataBuffer writeXml(DataBufferFactory bufferFactory, XmlContent content) {
+        return write(bufferFactory, output -> {
+            XMLStreamWriter xml = xmlOutputFactory.createXMLStreamWriter(output, StandardCharsets.UTF_8.name());
+            content.write(xml);
+            xml.flush();
+        });
+    }
+
+    private static DataBuffer write(DataBufferFactory bufferFactory, Content content) {
+        DataBuffer buffer = bufferFactory.allocateBuffer();
+        try {
+            content.write(buffer.asOutputStream());
+            return buffer;
+        } catch (IOException | XMLStreamException | RuntimeException e) {
+            DataBufferUtils.release(buffer);
+            throw new IllegalStateException("Cannot write invoice export", e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Content {
+        void write(OutputStream output) throws IOException, XMLStreamException;
+    }
+
+    @FunctionalInterface
+    private interface TextContent {
+        void write(Writer writer) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface XmlContent {
+        void write(XMLStreamWriter xml) throws XMLStreamException;
+    }
+
+    @FunctionalInterface
+    private interface XmlRowWriter {
+        void write(XMLStreamWriter xml, Invoice invoice) throws XMLStreamException;
+    }
+
+    private static final class JpkSection {
+        private long rows;
+        private BigDecimal tax = BigDecimal.ZERO;
+
+        long nextRow() {
+            return ++rows;
+        }
+
+        void addTax(BigDecimal amount) {
+            tax = tax.add(amount);
+        }
+
+        long getRows() {
+            return rows;
+        }
+
+        BigDecimal getTax() {
+            return tax;
+        }
+    }
+}
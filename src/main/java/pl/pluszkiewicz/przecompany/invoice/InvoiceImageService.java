@@ -0,0 +1,107 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import static java.util.Objects.isNull;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Keeps invoice scans in GridFS. Ranges are served straight from the chunks collection, so only chunks overlapping
+ * the requested range are fetched.
+ */
+@Service
+public class InvoiceImageService {
+    public static final String CONTENT_TYPE_METADATA = "_contentType";
+
+    private final InvoiceRepository invoiceRepository;
+    private final InvoiceCache invoiceCache;
+    private final ReactiveGridFsTemplate gridFsTemplate;
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final String chunksCollection;
+    private final DataBufferFactory dataBufferFactory = new DefaultDataBufferFactory();
+
+    public InvoiceImageService(InvoiceRepository invoiceRepository, InvoiceCache invoiceCache, ReactiveGridFsTemplate gridFsTemplate, ReactiveMongoTemplate mongoTemplate,
+            @Value("${spring.data.mongodb.gridfs.bucket:fs}") String bucket) {
+        this.invoiceRepository = invoiceRepository;
+        this.invoiceCache = invoiceCache;
+        this.gridFsTemplate = gridFsTemplate;
+        this.mongoTemplate = mongoTemplate;
+        this.chunksCollection = bucket + ".chunks";
+    }
+
+    public Mono<Invoice> storeImage(String invoiceId, String fileName, String contentType, Flux<DataBuffer> content) {
+        return invoiceRepository.findById(invoiceId)
+                .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "No invoice with given id.")))
+                .flatMap(invoice -> gridFsTemplate.store(content, fileName, contentType))
+                .flatMap(imageId -> {
+                    Map<String, Object> changes = Map.of(InvoiceService.IMAGE_ID_FIELD, imageId.toHexString());
+                    return invoiceRepository.findAndUpdate(invoiceId, null, changes, false)
+                            // the invoice was removed while its image was stored
+                            .switchIfEmpty(deleteImage(imageId.toHexString())
+                                    .then(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "No invoice with given id."))))
+                            .flatMap(previous -> {
+                                Invoice saved = InvoiceService.applyChanges(previous, changes);
+                                invoiceCache.invalidate(previous);
+                                return deleteImage(previous.getImageId()).thenReturn(saved);
+                            });
+                });
+    }
+
+    public Mono<GridFSFile> findImage(String invoiceId) {
+        return invoiceRepository.findById(invoiceId)
+                .filter(invoice -> invoice.getImageId() != null)
+                .flatMap(invoice -> gridFsTemplate.findOne(byId(invoice.getImageId())));
+    }
+
+    public Flux<DataBuffer> readImage(GridFSFile file, long start, long end) {
+        int chunkSize = file.getChunkSize();
+        int firstChunk = (int) (start / chunkSize);
+        int lastChunk = (int) (end / chunkSize);
+        Query chunksQuery = Query.query(where("files_id").is(file.getObjectId()).and("n").gte(firstChunk).lte(lastChunk))
+                .with(Sort.by("n"));
+        chunksQuery.fields().include("n").include("data");
+
+        return mongoTemplate.find(chunksQuery, Document.class, chunksCollection)
+                .map(chunk -> {
+                    long chunkStart = (long) chunk.getInteger("n") * chunkSize;
+                    byte[] data = chunk.get("data", Binary.class).getData();
+                    int from = (int) Math.max(0, start - chunkStart);
+                    int to = (int) Math.min(data.length, end - chunkStart + 1);
+                    return dataBufferFactory.wrap(ByteBuffer.wrap(data, from, to - from));
+                });
+    }
+
+    public Mono<Void> deleteImage(String imageId) {
+        if (isNull(imageId)) {
+            return Mono.empty();
+        }
+        return gridFsTemplate.delete(byId(imageId));
+    }
+
+    public static String getContentType(GridFSFile file) {
+        return isNull(file.getMetadata()) ? null : file.getMetadata().getString(CONTENT_TYPE_METADATA);
+    }
+
+    private static Query byId(String imageId) {
+        return Query.query(where("_id").is(new ObjectId(imageId)));
+    }
+}
@@ -0,0 +1,15 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.core.io.buffer.DataBuffer;
+import reactor.core.publisher.Flux;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class InvoiceImportFile {
+    private String name;
+    private Flux<DataBuffer> content;
+}
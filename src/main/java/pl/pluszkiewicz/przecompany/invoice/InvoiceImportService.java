@@ -0,0 +1,384 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.pdfbox.io.IOUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Service;
+import pl.pluszkiewicz.przecompany.pdf.PdfContent;
+import pl.pluszkiewicz.przecompany.pdf.PdfReadService;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+@Service
+public class InvoiceImportService {
+    public static final String PDF_EXTENSION = ".pdf";
+    public static final String ZIP_EXTENSION = ".zip";
+    public static final String TAR_EXTENSION = ".tar";
+    public static final String TAR_GZ_EXTENSION = ".tar.gz";
+    public static final String TGZ_EXTENSION = ".tgz";
+    public static final String IMPORT_METRICS_NAME = "invoice.import";
+    public static final String ARCHIVE_FILE_PREFIX = "invoice-import-";
+
+    private final PdfReadService pdfReadService;
+    private final InvoiceRepository invoiceRepository;
+    private final InvoiceContentHashIndex invoiceContentHashIndex;
+    private final InvoiceRollupService invoiceRollupService;
+    private final InvoiceCache invoiceCache;
+    private final InvoiceCompanies invoiceCompanies;
+    private final int parallelism;
+    private final int batchSize;
+    private final Path archiveDirectory;
+    private final Scheduler importScheduler;
+
+    public InvoiceImportService(PdfReadService pdfReadService, InvoiceRepository invoiceRepository, InvoiceContentHashIndex invoiceContentHashIndex,
+            InvoiceRollupService invoiceRollupService, InvoiceCache invoiceCache, InvoiceCompanies invoiceCompanies,
+            @Value("${invoice.import.parallelism:4}") int parallelism, @Value("${invoice.import.batch-size:100}") int batchSize,
+            @Value("${invoice.import.archive-directory:${java.io.tmpdir}}") String archiveDirectory) {
+        this.pdfReadService = pdfReadService;
+        this.invoiceRepository = invoiceRepository;
+        this.invoiceContentHashIndex = invoiceContentHashIndex;
+        this.invoiceRollupService = invoiceRollupService;
+        this.invoiceCache = invoiceCache;
+        this.invoiceCompanies = invoiceCompanies;
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+        this.archiveDirectory = Paths.get(archiveDirectory);
+        this.importScheduler = Schedulers.newBoundedElastic(parallelism, Schedulers.DEFAULT_BOUNDED_ELASTIC_QUEUESIZE, "invoice-import");
+    }
+
+    public Flux<InvoiceImportResult> importFiles(Flux<InvoiceImportFile> files) {
+        return Flux.defer(() -> {
+            Map<String, List<String>> requestCopies = new ConcurrentHashMap<>();
+            Map<String, InvoiceImportResult> hashResults = new ConcurrentHashMap<>();
+            return files
+                    .concatMap(this::buffer)
+                    .concatMap(file -> deduplicate(file, requestCopies))
+                    .flatMap(file -> Mono.fromCallable(() -> parse(file)).subscribeOn(importScheduler), parallelism)
+                    .doOnDiscard(BufferedFile.class, BufferedFile::close)
+                    .buffer(batchSize)
+                    .concatMap(batch -> saveBatch(batch, hashResults))
+                    .concatWith(Flux.defer(() -> Flux.fromIterable(copyResults(requestCopies, hashResults))))
+                    .name(IMPORT_METRICS_NAME)
+                    .metrics();
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        importScheduler.dispose();
+    }
+
+    private Flux<BufferedFile> buffer(InvoiceImportFile file) {
+        if (!isArchive(file.getName())) {
+            return pdfReadService.bufferPdf(file.getContent(), importScheduler)
+                    .map(content -> BufferedFile.buffered(file.getName(), content))
+                    .onErrorResume(e -> Mono.just(BufferedFile.resolved(ParsedFile.failed(file.getName(), "Cannot read file: " + e.getMessage()))))
+                    .flux();
+        }
+        // archives are written to a file first, unpacked entries are buffered like single PDFs
+        return Flux.using(() -> Files.createTempFile(archiveDirectory, ARCHIVE_FILE_PREFIX, null),
+                        archive -> DataBufferUtils.write(file.getContent(), archive)
+                                .then(Mono.fromCallable(() -> unpack(file.getName(), archive)))
+                                .flatMapIterable(entries -> entries),
+                        InvoiceImportService::delete)
+                .subscribeOn(importScheduler)
+                .onErrorResume(e -> Flux.just(BufferedFile.resolved(ParsedFile.failed(file.getName(), "Cannot read archive: " + e.getMessage()))));
+    }
+
+    /**
+     * Claims the content hash of the file. Copies of a file already seen in this request are not imported, they get the
+     * result of the first copy once the request is done.
+     */
+    private Mono<BufferedFile> deduplicate(BufferedFile file, Map<String, List<String>> requestCopies) {
+        if (!file.isBuffered()) {
+            return Mono.just(file);
+        }
+        String contentHash = file.getContent().getContentHash();
+        List<String> copies = requestCopies.putIfAbsent(contentHash, new ArrayList<>());
+        if (nonNull(copies)) {
+            copies.add(file.getName());
+            file.close();
+            return Mono.empty();
+        }
+        return invoiceContentHashIndex.claim(contentHash)
+                .map(existing -> {
+                    file.close();
+                    return BufferedFile.resolved(nonNull(existing.getInvoiceId())
+                            ? ParsedFile.duplicate(file.getName(), contentHash, existing.getInvoiceId())
+                            : ParsedFile.failed(file.getName(), contentHash, false, "Same content is being imported right now"));
+                })
+                .defaultIfEmpty(file.claimed())
+                // without the index the file is imported unchecked
+                .onErrorReturn(file);
+    }
+
+    private ParsedFile parse(BufferedFile file) {
+        if (!file.isBuffered()) {
+            return file.getResult();
+        }
+        String contentHash = file.getContent().getContentHash();
+        try {
+            return ParsedFile.parsed(file.getName(), contentHash, file.isClaimed(), pdfReadService.readInvoice(file.getContent()));
+        } catch (Exception e) {
+            return ParsedFile.failed(file.getName(), contentHash, file.isClaimed(), "Cannot parse invoice: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stores parsed invoices with a single unordered insert and reports every file on its own - an invoice that failed
+     * does not mark the stored ones as failed, and only the stored ones get their content hash registered. Hashes claimed
+     * for files that did not end up stored are released.
+     */
+    private Flux<InvoiceImportResult> saveBatch(List<ParsedFile> batch, Map<String, InvoiceImportResult> hashResults) {
+        List<ParsedFile> parsedFiles = batch.stream()
+                .filter(ParsedFile::isParsed)
+                .collect(Collectors.toList());
+        List<Invoice> invoices = parsedFiles.stream()
+                .map(ParsedFile::getInvoice)
+                .collect(Collectors.toList());
+
+        Mono<Map<Integer, String>> saveErrors = invoices.isEmpty()
+                ? Mono.just(Map.of())
+                : invoiceCompanies.register(invoices)
+                        .then(Mono.defer(() -> invoiceRepository.insertUnordered(invoices)))
+                        .onErrorResume(e -> Mono.just(IntStream.range(0, invoices.size()).boxed()
+                                .collect(Collectors.toMap(Function.identity(), i -> e.getMessage()))));
+
+        return saveErrors.flatMapMany(errors -> {
+            Map<ParsedFile, String> fileErrors = new IdentityHashMap<>();
+            List<ParsedFile> savedFiles = new ArrayList<>();
+            for (int i = 0; i < parsedFiles.size(); i++) {
+                if (errors.containsKey(i)) {
+                    fileErrors.put(parsedFiles.get(i), "Cannot save invoice: " + errors.get(i));
+                } else {
+                    savedFiles.add(parsedFiles.get(i));
+                    invoiceCache.invalidate(parsedFiles.get(i).getInvoice());
+                }
+            }
+            List<String> releasedHashes = batch.stream()
+                    .filter(parsedFile -> parsedFile.claimed && (!parsedFile.isParsed() || fileErrors.containsKey(parsedFile)))
+                    .map(ParsedFile::getContentHash)
+                    .collect(Collectors.toList());
+            return registerContentHashes(savedFiles)
+                    .then(invoiceContentHashIndex.release(releasedHashes).onErrorResume(e -> Mono.empty()))
+                    .then(invoiceRollupService.applyAll(savedFiles.stream().map(ParsedFile::getInvoice).collect(Collectors.toList())))
+                    .thenMany(Flux.fromIterable(batch))
+                    .map(parsedFile -> {
+                        InvoiceImportResult result = parsedFile.toResult(fileErrors.get(parsedFile));
+                        if (nonNull(parsedFile.getContentHash())) {
+                            hashResults.put(parsedFile.getContentHash(), result);
+                        }
+                        return result;
+                    });
+        });
+    }
+
+    private static List<InvoiceImportResult> copyResults(Map<String, List<String>> requestCopies, Map<String, InvoiceImportResult> hashResults) {
+        List<InvoiceImportResult> results = new ArrayList<>();
+        requestCopies.forEach((contentHash, copies) -> {
+            InvoiceImportResult first = hashResults.get(contentHash);
+            for (String copy : copies) {
+                if (isNull(first) || first.getStatus() == InvoiceImportResult.Status.FAILED) {
+                    results.add(InvoiceImportResult.builder().fileName(copy).status(InvoiceImportResult.Status.FAILED)
+                            .error(isNull(first) ? "Copy of a file that was not imported" : first.getError()).build());
+                } else {
+                    results.add(InvoiceImportResult.builder().fileName(copy).status(InvoiceImportResult.Status.DUPLICATE)
+                            .invoiceId(first.getInvoiceId()).build());
+                }
+            }
+        });
+        return results;
+    }
+
+    private Mono<Void> registerContentHashes(List<ParsedFile> savedFiles) {
+        List<InvoiceContentHash> contentHashes = savedFiles.stream()
+                .filter(parsedFile -> nonNull(parsedFile.getContentHash()))
+                .map(parsedFile -> InvoiceContentHash.builder().hash(parsedFile.getContentHash()).invoiceId(parsedFile.getInvoice().getId()).build())
+                .collect(Collectors.toList());
+        // invoices are already stored, a missing hash only means that the next upload of the same file is not recognized
+        return invoiceContentHashIndex.register(contentHashes).onErrorResume(e -> Mono.empty());
+    }
+
+    private List<BufferedFile> unpack(String archiveName, Path archive) {
+        List<BufferedFile> entries = new ArrayList<>();
+        try (InputStream content = Files.newInputStream(archive); ArchiveInputStream archiveStream = openArchive(archiveName, content)) {
+            ArchiveEntry entry;
+            while ((entry = archiveStream.getNextEntry()) != null) {
+                if (!entry.isDirectory() && isPdf(entry.getName()) && archiveStream.canReadEntryData(entry)) {
+                    entries.add(BufferedFile.buffered(archiveName + "/" + entry.getName(), pdfReadService.bufferPdf(archiveStream)));
+                }
+            }
+        } catch (IOException e) {
+            entries.forEach(BufferedFile::close);
+            throw new UncheckedIOException(e);
+        }
+        return entries;
+    }
+
+    private ArchiveInputStream openArchive(String archiveName, InputStream content) throws IOException {
+        String name = archiveName.toLowerCase(Locale.ROOT);
+        if (name.endsWith(ZIP_EXTENSION)) {
+            return new ZipArchiveInputStream(content);
+        }
+        if (name.endsWith(TAR_GZ_EXTENSION) || name.endsWith(TGZ_EXTENSION)) {
+            return new TarArchiveInputStream(new GzipCompressorInputStream(content));
+        }
+        return new TarArchiveInputStream(content);
+    }
+
+    // entries are already buffered, a file that cannot be deleted now must not fail the import
+    private static void delete(Path archive) {
+        try {
+            Files.deleteIfExists(archive);
+        } catch (IOException e) {
+            archive.toFile().deleteOnExit();
+        }
+    }
+
+    private static boolean isArchive(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        return name.endsWith(ZIP_EXTENSION) || name.endsWith(TAR_EXTENSION) || name.endsWith(TAR_GZ_EXTENSION) || name.endsWith(TGZ_EXTENSION);
+    }
+
+    private static boolean isPdf(String fileName) {
+        return fileName.toLowerCase(Locale.ROOT).endsWith(PDF_EXTENSION);
+    }
+
+    private static final class BufferedFile {
+        private final String name;
+        private final PdfContent content;
+        private final ParsedFile result;
+        private final boolean claimed;
+
+        private BufferedFile(String name, PdfContent content, ParsedFile result, boolean claimed) {
+            this.name = name;
+            this.content = content;
+            this.result = result;
+            this.claimed = claimed;
+        }
+
+        static BufferedFile buffered(String name, PdfContent content) {
+            return new BufferedFile(name, content, null, false);
+        }
+
+        static BufferedFile resolved(ParsedFile result) {
+            return new BufferedFile(result.fileName, null, result, false);
+        }
+
+        BufferedFile claimed() {
+            return new BufferedFile(name, content, null, true);
+        }
+
+        boolean isBuffered() {
+            return nonNull(content);
+        }
+
+        boolean isClaimed() {
+            return claimed;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        PdfContent getContent() {
+            return content;
+        }
+
+        ParsedFile getResult() {
+            return result;
+        }
+
+        void close() {
+            IOUtils.closeQuietly(content);
+        }
+    }
+
+    private static final class ParsedFile {
+        private final String fileName;
+        private final String contentHash;
+        private final Invoice invoice;
+        private final String error;
+        private final boolean claimed;
+        private final boolean duplicate;
+        private final String duplicateOf;
+
+        private ParsedFile(String fileName, String contentHash, boolean claimed, Invoice invoice, String error, boolean duplicate, String duplicateOf) {
+            this.fileName = fileName;
+            this.contentHash = contentHash;
+            this.claimed = claimed;
+            this.invoice = invoice;
+            this.error = error;
+            this.duplicate = duplicate;
+            this.duplicateOf = duplicateOf;
+        }
+
+        static ParsedFile parsed(String fileName, String contentHash, boolean claimed, Invoice invoice) {
+            return new ParsedFile(fileName, contentHash, claimed, invoice, null, false, null);
+        }
+
+        static ParsedFile failed(String fileName, String error) {
+            return failed(fileName, null, false, error);
+        }
+
+        static ParsedFile failed(String fileName, String contentHash, boolean claimed, String error) {
+            return new ParsedFile(fileName, contentHash, claimed, null, error, false, null);
+        }
+
+        static ParsedFile duplicate(String fileName, String contentHash, String invoiceId) {
+            return new ParsedFile(fileName, contentHash, false, null, null, true, invoiceId);
+        }
+
+        boolean isParsed() {
+            return nonNull(invoice);
+        }
+
+        Invoice getInvoice() {
+            return invoice;
+        }
+
+        String getContentHash() {
+            return contentHash;
+        }
+
+        InvoiceImportResult toResult(String saveError) {
+            if (duplicate) {
+                return InvoiceImportResult.builder().fileName(fileName).status(InvoiceImportResult.Status.DUPLICATE).invoiceId(duplicateOf).build();
+            }
+            if (!isParsed()) {
+                return InvoiceImportResult.builder().fileName(fileName).status(InvoiceImportResult.Status.FAILED).error(error).build();
+            }
+            if (nonNull(saveError)) {
+                return InvoiceImportResult.builder().fileName(fileName).status(InvoiceImportResult.Status.FAILED).error(saveError).build();
+            }
+            return InvoiceImportResult.builder().fileName(fileName).status(InvoiceImportResult.Status.IMPORTED).invoiceId(invoice.getId()).build();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Imports PDFs dropped into invoice.inbox.directory. Files are picked up from {@link WatchService} events and from a
+ * scan on startup, and imported once no event arrived for them for invoice.inbox.settle-time, so a file still being
+ * written is not read half way. Imported and duplicated files are moved to done/, the rest to failed/.
+ */
+@Component
+@ConditionalOnProperty("invoice.inbox.directory")
+public class InvoiceInboxWatcher {
+    public static final String DONE_DIRECTORY = "done";
+    public static final String FAILED_DIRECTORY = "failed";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final InvoiceImportService invoiceImportService;
+    private final Path inbox;
+    private final Path doneDirectory;
+    private final Path failedDirectory;
+    private final Duration settleTime;
+    private final int batchSize;
+    private final DataBufferFactory dataBufferFactory = new DefaultDataBufferFactory();
+    private final Sinks.Many<Path> changedFiles = Sinks.many().unicast().onBackpressureBuffer();
+    private WatchService watchService;
+    private Disposable ingestion;
+
+    public InvoiceInboxWatcher(InvoiceImportService invoiceImportService, @Value("${invoice.inbox.directory}") String inbox,
+            @Value("${invoice.inbox.settle-time:2s}") Duration settleTime, @Value("${invoice.inbox.batch-size:100}") int batchSize) {
+        this.invoiceImportService = invoiceImportService;
+        this.inbox = Paths.get(inbox).toAbsolutePath();
+        this.doneDirectory = this.inbox.resolve(DONE_DIRECTORY);
+        this.failedDirectory = this.inbox.resolve(FAILED_DIRECTORY);
+        this.settleTime = settleTime;
+        this.batchSize = batchSize;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() throws IOException {
+        Files.createDirectories(doneDirectory);
+        Files.createDirectories(failedDirectory);
+        ingestion = changedFiles.asFlux()
+                // every event restarts the settle time of its file, the group completes once the file is ready
+                .groupBy(Function.identity())
+                .flatMap(events -> events.switchMap(file -> Mono.delay(settleTime).thenReturn(file)).take(1), Integer.MAX_VALUE)
+                .bufferTimeout(batchSize, settleTime)
+                .concatMap(this::ingest)
+                .subscribe();
+
+        // the directory is watched before it is scanned, so a file arriving in between is not missed
+        watchService = inbox.getFileSystem().newWatchService();
+        inbox.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        scan();
+        Thread watcher = new Thread(this::watch, "invoice-inbox");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+        if (ingestion != null) {
+            ingestion.dispose();
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        scan();
+                    } else {
+                        changed(inbox.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    return;
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // stopped
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void scan() throws IOException {
+        try (Stream<Path> files = Files.list(inbox)) {
+            files.forEach(this::changed);
+        }
+    }
+
+    private synchronized void changed(Path file) {
+        if (isPdf(file)) {
+            changedFiles.tryEmitNext(file);
+        }
+    }
+
+    private Mono<Void> ingest(List<Path> files) {
+        Map<String, Path> readyFiles = files.stream()
+                .filter(Files::isRegularFile)
+                .collect(Collectors.toMap(file -> file.getFileName().toString(), Function.identity(), (first, second) -> first));
+        if (readyFiles.isEmpty()) {
+            return Mono.empty();
+        }
+        return invoiceImportService.importFiles(Flux.fromIterable(readyFiles.entrySet())
+                        .map(file -> new InvoiceImportFile(file.getKey(), DataBufferUtils.read(file.getValue(), dataBufferFactory, READ_BUFFER_SIZE))))
+                .publishOn(Schedulers.boundedElastic())
+                .doOnNext(result -> move(readyFiles.get(result.getFileName()), result.getStatus() == InvoiceImportResult.Status.FAILED
+                        ? failedDirectory : doneDirectory))
+                // files left in the inbox are imported again after a restart
+                .onErrorResume(e -> Mono.empty())
+                .then();
+    }
+
+    private static void move(Path file, Path directory) {
+        if (file == null) {
+            return;
+        }
+        Path target = directory.resolve(file.getFileName());
+        try {
+            if (Files.exists(target)) {
+                target = directory.resolve(System.currentTimeMillis() + "-" + file.getFileName());
+            }
+            Files.move(file, target);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean isPdf(Path file) {
+        return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(InvoiceImportService.PDF_EXTENSION);
+    }
+}
@@ -0,0 +1,13 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class InvoicePage<T> {
+    private List<T> items;
+    private String nextPageToken;
+}
@@ -0,0 +1,47 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Position after the last invoice of a page in (settlementDate, id) order. Clients get it as an opaque string and
+ * send it back unchanged to read the next page.
+ */
+@Data
+@AllArgsConstructor
+public class InvoicePageToken {
+    private static final char SEPARATOR = '|';
+
+    private LocalDate settlementDate;
+    private String id;
+
+    public static InvoicePageToken of(Invoice invoice) {
+        return new InvoicePageToken(invoice.getSettlementDate(), invoice.getId());
+    }
+
+    public String encode() {
+        String key = (isNull(settlementDate) ? "" : settlementDate.toString()) + SEPARATOR + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static InvoicePageToken decode(String token) {
+        try {
+            String key = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            int separator = key.indexOf(SEPARATOR);
+            if (separator < 0 || separator == key.length() - 1) {
+                throw new IllegalArgumentException("Invalid page token: " + token);
+            }
+            LocalDate settlementDate = separator == 0 ? null : LocalDate.parse(key.substring(0, separator));
+            return new InvoicePageToken(settlementDate, key.substring(separator + 1));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid page token: " + token, e);
+        }
+    }
+}
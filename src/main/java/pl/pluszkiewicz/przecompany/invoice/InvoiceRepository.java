@@ -5,6 +5,6 @@ import reactor.core.publisher.Flux;
 
 import java.time.LocalDate;
 
-public interface InvoiceRepository extends ReactiveMongoRepository<Invoice, String> {
+public interface InvoiceRepository extends ReactiveMongoRepository<Invoice, String>, InvoiceRepositoryCustom {
     Flux<Invoice> findInvoicesBySettlementDateBetween(LocalDate from, LocalDate to);
 }
@@ -0,0 +1,47 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+public interface InvoiceRepositoryCustom {
+    /**
+     * Reads up to limit invoices settled in [from, to) - both optional - ordered by (settlementDate, id), starting right after the given token. When fields are given only they are
+     * read, next to the id and settlementDate needed for the next token.
+     */
+    Flux<Invoice> findPage(LocalDate from, LocalDate to, InvoicePageToken after, int limit, Collection<String> fields);
+
+    /**
+     * Streams all invoices matching like {@link #findPage} does, fetching them from the cursor in batches of the given
+     * size as they are requested.
+     */
+    Flux<Invoice> stream(LocalDate from, LocalDate to, int batchSize, Collection<String> fields);
+
+    /**
+     * Inserts invoices with a single unordered bulk write - a failing invoice does not stop the others. Invoices
+     * without id get a new one. Emits error messages of failed invoices keyed by their index in the list.
+     */
+    Mono<Map<Integer, String>> insertUnordered(List<Invoice> invoices);
+
+    /**
+     * Applies changes of top level properties - a null value removes the property - and increments the version in a single
+     * findAndModify. With expectedVersion only the invoice in that version is modified. Emits the invoice as it was before
+     * the update, nothing when no invoice matched or a new one was upserted.
+     */
+    Mono<Invoice> findAndUpdate(String id, Long expectedVersion, Map<String, Object> changes, boolean upsert);
+
+    /**
+     * Removes the invoice - only in expectedVersion when given - in a single findAndRemove and emits it.
+     */
+    Mono<Invoice> findAndRemove(String id, Long expectedVersion);
+
+    /**
+     * Finds invoices settled in [from, to) matching the text search in title, position names and counterparty names,
+     * most relevant first.
+     */
+    Flux<Invoice> search(String text, LocalDate from, LocalDate to, int skip, int limit, Collection<String> fields);
+}
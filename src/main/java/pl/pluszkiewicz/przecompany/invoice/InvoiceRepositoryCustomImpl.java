@@ -0,0 +1,144 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.TextCriteria;
+import org.springframework.data.mongodb.core.query.TextQuery;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+class InvoiceRepositoryCustomImpl implements InvoiceRepositoryCustom {
+    public static final String ID_FIELD = "id";
+    public static final String SETTLEMENT_DATE_FIELD = "settlementDate";
+    public static final String VERSION_FIELD = "version";
+
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    InvoiceRepositoryCustomImpl(ReactiveMongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public Flux<Invoice> findPage(LocalDate from, LocalDate to, InvoicePageToken after, int limit, Collection<String> fields) {
+        Query query = query(from, to, fields).limit(limit);
+        if (nonNull(after)) {
+            query.addCriteria(after(after));
+        }
+        return mongoTemplate.find(query, Invoice.class);
+    }
+
+    @Override
+    public Flux<Invoice> stream(LocalDate from, LocalDate to, int batchSize, Collection<String> fields) {
+        return mongoTemplate.find(query(from, to, fields).cursorBatchSize(batchSize), Invoice.class);
+    }
+
+    @Override
+    public Mono<Map<Integer, String>> insertUnordered(List<Invoice> invoices) {
+        List<Document> documents = new ArrayList<>(invoices.size());
+        for (Invoice invoice : invoices) {
+            if (isNull(invoice.getId())) {
+                invoice.setId(new ObjectId().toHexString());
+            }
+            if (isNull(invoice.getVersion())) {
+                invoice.setVersion(0L);
+            }
+            Document document = new Document();
+            mongoTemplate.getConverter().write(invoice, document);
+            documents.add(document);
+        }
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(Invoice.class))
+                .flatMap(collection -> Mono.from(collection.insertMany(documents, new InsertManyOptions().ordered(false))))
+                .map(result -> Map.<Integer, String>of())
+                .onErrorResume(MongoBulkWriteException.class, e -> Mono.just(e.getWriteErrors().stream()
+                        .collect(Collectors.toMap(BulkWriteError::getIndex, BulkWriteError::getMessage, (first, second) -> first))));
+    }
+
+    @Override
+    public Mono<Invoice> findAndUpdate(String id, Long expectedVersion, Map<String, Object> changes, boolean upsert) {
+        Update update = new Update().inc(VERSION_FIELD, 1);
+        changes.forEach((field, value) -> {
+            if (isNull(value)) {
+                update.unset(field);
+            } else {
+                update.set(field, value);
+            }
+        });
+        return mongoTemplate.findAndModify(byIdAndVersion(id, expectedVersion), update, FindAndModifyOptions.options().upsert(upsert), Invoice.class);
+    }
+
+    @Override
+    public Mono<Invoice> findAndRemove(String id, Long expectedVersion) {
+        return mongoTemplate.findAndRemove(byIdAndVersion(id, expectedVersion), Invoice.class);
+    }
+
+    @Override
+    public Flux<Invoice> search(String text, LocalDate from, LocalDate to, int skip, int limit, Collection<String> fields) {
+        Query query = TextQuery.queryText(TextCriteria.forDefaultLanguage().matching(text))
+                .sortByScore()
+                .with(Sort.by(ID_FIELD))
+                .skip(skip)
+                .limit(limit);
+        return mongoTemplate.find(filter(query, from, to, fields), Invoice.class);
+    }
+
+    private static Query byIdAndVersion(String id, Long expectedVersion) {
+        Criteria criteria = Criteria.where(ID_FIELD).is(id);
+        if (nonNull(expectedVersion)) {
+            criteria.and(VERSION_FIELD).is(expectedVersion);
+        }
+        return Query.query(criteria);
+    }
+
+    private static Query query(LocalDate from, LocalDate to, Collection<String> fields) {
+        return filter(new Query().with(Sort.by(SETTLEMENT_DATE_FIELD, ID_FIELD)), from, to, fields);
+    }
+
+    private static Query filter(Query query, LocalDate from, LocalDate to, Collection<String> fields) {
+        if (nonNull(from) || nonNull(to)) {
+            Criteria settlementDate = Criteria.where(SETTLEMENT_DATE_FIELD);
+            if (nonNull(from)) {
+                settlementDate.gte(from);
+            }
+            if (nonNull(to)) {
+                settlementDate.lt(to);
+            }
+            query.addCriteria(settlementDate);
+        }
+        if (nonNull(fields) && !fields.isEmpty()) {
+            fields.forEach(query.fields()::include);
+            query.fields().include(SETTLEMENT_DATE_FIELD);
+        }
+        return query;
+    }
+
+    // invoices without settlement date are sorted first, so after them every dated invoice follows
+    private static Criteria after(InvoicePageToken token) {
+        if (isNull(token.getSettlementDate())) {
+            return new Criteria().orOperator(
+                    Criteria.where(SETTLEMENT_DATE_FIELD).is(null).and(ID_FIELD).gt(token.getId()),
+                    Criteria.where(SETTLEMENT_DATE_FIELD).ne(null));
+        }
+        return new Criteria().orOperator(
+                Criteria.where(SETTLEMENT_DATE_FIELD).gt(token.getSettlementDate()),
+                Criteria.where(SETTLEMENT_DATE_FIELD).is(token.getSettlementDate()).and(ID_FIELD).gt(token.getId()));
+    }
+}
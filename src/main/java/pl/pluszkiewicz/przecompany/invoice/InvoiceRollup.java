@@ -0,0 +1,54 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+
+import java.math.BigDecimal;
+import java.time.YearMonth;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Totals of invoices settled in one month - of all of them or only of those of a single seller or buyer. Amounts are
+ * stored as Decimal128 so they can be changed with $inc.
+ */
+@Document(collection = InvoiceRollup.COLLECTION)
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class InvoiceRollup {
+    public static final String COLLECTION = "invoice_rollups";
+
+    @Id
+    private String id;
+    private String yearMonth;
+    private Scope scope;
+    private Long nip;
+    private long count;
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal amountNetto;
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal vat;
+    @Field(targetType = FieldType.DECIMAL128)
+    private BigDecimal amountBrutto;
+
+    public static InvoiceRollup empty(YearMonth yearMonth, Scope scope, Long nip) {
+        return new InvoiceRollup(idOf(yearMonth, scope, nip), yearMonth.toString(), scope, nip, 0, BigDecimal.ZERO, BigDecimal.ZERO,
+                BigDecimal.ZERO);
+    }
+
+    public static String idOf(YearMonth yearMonth, Scope scope, Long nip) {
+        return isNull(nip) ? yearMonth.toString() : yearMonth + ":" + scope.name().toLowerCase() + ":" + nip;
+    }
+
+    public enum Scope {
+        ALL, SELLER, BUYER
+    }
+}
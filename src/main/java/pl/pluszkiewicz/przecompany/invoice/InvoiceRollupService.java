@@ -0,0 +1,248 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.model.RenameCollectionOptions;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.ConvertOperators;
+import org.springframework.data.mongodb.core.aggregation.DateOperators;
+import org.springframework.data.mongodb.core.aggregation.GroupOperation;
+import org.springframework.data.mongodb.core.aggregation.ProjectionOperation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.math.BigDecimal;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Keeps {@link InvoiceRollup} documents in line with invoices. Every change of an invoice is applied as $inc deltas,
+ * so month totals can be read with a single lookup. The deltas are not transactional with the invoice write - when in
+ * doubt {@link #rebuild()} recomputes everything from the invoice collection.
+ * <p>
+ * A rebuild needs quiet writes: a delta applied while it runs lands in the collection the rebuild then replaces, or
+ * is counted twice. Deltas applied on this instance during a rebuild are detected and the rebuild is repeated, writes
+ * through other instances are not.
+ */
+@Service
+@Slf4j
+public class InvoiceRollupService {
+    public static final String FAILURES_COUNTER = "invoice.rollups.failures";
+    private static final String REBUILD_COLLECTION = InvoiceRollup.COLLECTION + "_rebuild";
+    private static final String ID = "_id";
+    private static final String SETTLEMENT_DATE = "settlementDate";
+    private static final String YEAR_MONTH = "yearMonth";
+    private static final String NIP = "nip";
+    private static final String COUNT = "count";
+    private static final String AMOUNT_NETTO = "amountNetto";
+    private static final String VAT = "vat";
+    private static final String AMOUNT_BRUTTO = "amountBrutto";
+    private static final String YEAR_MONTH_FORMAT = "%Y-%m";
+    private static final int REBUILD_BATCH_SIZE = 500;
+    private static final int REBUILD_ATTEMPTS = 3;
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final Counter failures;
+    private final DateOperators.Timezone timezone = DateOperators.Timezone.valueOf(ZoneId.systemDefault().getId());
+    private final AtomicLong startedIncrements = new AtomicLong();
+    private final AtomicInteger runningIncrements = new AtomicInteger();
+
+    public InvoiceRollupService(ReactiveMongoTemplate mongoTemplate, MeterRegistry meterRegistry) {
+        this.mongoTemplate = mongoTemplate;
+        this.failures = meterRegistry.counter(FAILURES_COUNTER);
+    }
+
+    public Mono<InvoiceRollup> getRollup(YearMonth yearMonth, InvoiceRollup.Scope scope, Long nip) {
+        return mongoTemplate.findById(InvoiceRollup.idOf(yearMonth, scope, nip), InvoiceRollup.class);
+    }
+
+    /**
+     * Moves totals from the previous state of an invoice to the current one. Either of them may be null for created
+     * and removed invoices.
+     */
+    public Mono<Void> apply(Invoice previous, Invoice current) {
+        Map<String, InvoiceRollup> deltas = new LinkedHashMap<>();
+        addDeltas(deltas, previous, -1);
+        addDeltas(deltas, current, 1);
+        return Flux.fromIterable(deltas.values())
+                .filter(InvoiceRollupService::isChange)
+                .concatMap(this::increment)
+                .then();
+    }
+
+    /**
+     * Adds invoices already stored in bulk. Their write cannot be undone any more, so a failure does not fail the caller -
+     * it is logged and counted in invoice.rollups.failures, and the rollups stay behind until they are rebuilt.
+     */
+    public Mono<Void> applyAll(Collection<Invoice> created) {
+        return Flux.fromIterable(created).concatMap(invoice -> apply(null, invoice)).then()
+                .onErrorResume(e -> {
+                    failures.increment();
+                    log.warn("Rollups miss some of {} stored invoices, rebuild them with POST /invoices/rollups/rebuild", created.size(), e);
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Recomputes all rollups - one aggregation per scope, run in parallel - into a side collection which then replaces
+     * the current one, so readers never see a half built state. Repeated when deltas were applied meanwhile, and
+     * rejected with 409 when they keep coming.
+     */
+    public Mono<Long> rebuild() {
+        return Mono.defer(() -> {
+                    long incrementsBefore = startedIncrements.get();
+                    boolean quiet = runningIncrements.get() == 0;
+                    return rebuildOnce().flatMap(count -> quiet && startedIncrements.get() == incrementsBefore
+                            ? Mono.just(count)
+                            : Mono.error(new ConcurrentModificationException("Rollups were incremented during the rebuild")));
+                })
+                .retryWhen(Retry.max(REBUILD_ATTEMPTS - 1).filter(ConcurrentModificationException.class::isInstance))
+                .onErrorMap(Exceptions::isRetryExhausted, e -> new ResponseStatusException(HttpStatus.CONFLICT,
+                        "Invoices kept changing during the rollup rebuild, rebuild again when writes are quiet", e));
+    }
+
+    private Mono<Long> rebuildOnce() {
+        return mongoTemplate.dropCollection(REBUILD_COLLECTION)
+                .then(Flux.merge(
+                                aggregate(InvoiceRollup.Scope.ALL, null),
+                                aggregate(InvoiceRollup.Scope.SELLER, "seller." + NIP),
+                                aggregate(InvoiceRollup.Scope.BUYER, "buyer." + NIP))
+                        .buffer(REBUILD_BATCH_SIZE)
+                        .flatMap(batch -> mongoTemplate.insert(batch, REBUILD_COLLECTION).count())
+                        .reduce(0L, Long::sum))
+                .flatMap(count -> count == 0
+                        ? mongoTemplate.dropCollection(InvoiceRollup.class).thenReturn(count)
+                        : replaceRollups().thenReturn(count));
+    }
+
+    private Mono<Void> increment(InvoiceRollup delta) {
+        Update update = new Update()
+                .inc(COUNT, delta.getCount())
+                .inc(AMOUNT_NETTO, new Decimal128(delta.getAmountNetto()))
+                .inc(VAT, new Decimal128(delta.getVat()))
+                .inc(AMOUNT_BRUTTO, new Decimal128(delta.getAmountBrutto()))
+                .setOnInsert(YEAR_MONTH, delta.getYearMonth())
+                .setOnInsert("scope", delta.getScope());
+        if (nonNull(delta.getNip())) {
+            update.setOnInsert(NIP, delta.getNip());
+        }
+        return Mono.defer(() -> {
+                    startedIncrements.incrementAndGet();
+                    runningIncrements.incrementAndGet();
+                    return mongoTemplate.upsert(Query.query(where(ID).is(delta.getId())), update, InvoiceRollup.class);
+                })
+                .doFinally(signal -> runningIncrements.decrementAndGet())
+                .then();
+    }
+
+    private Flux<InvoiceRollup> aggregate(InvoiceRollup.Scope scope, String nipField) {
+        Criteria settled = where(SETTLEMENT_DATE).ne(null);
+        if (nonNull(nipField)) {
+            settled.and(nipField).ne(null);
+        }
+        ProjectionOperation projection = Aggregation.project()
+                .and(DateOperators.dateOf(SETTLEMENT_DATE).withTimezone(timezone).toString(YEAR_MONTH_FORMAT)).as(YEAR_MONTH)
+                .and(ConvertOperators.valueOf(AMOUNT_NETTO).convertToDecimal()).as(AMOUNT_NETTO)
+                .and(ConvertOperators.valueOf(VAT).convertToDecimal()).as(VAT)
+                .and(ConvertOperators.valueOf(AMOUNT_BRUTTO).convertToDecimal()).as(AMOUNT_BRUTTO);
+        GroupOperation group;
+        if (nonNull(nipField)) {
+            projection = projection.and(nipField).as(NIP);
+            group = Aggregation.group(YEAR_MONTH, NIP);
+        } else {
+            group = Aggregation.group(YEAR_MONTH);
+        }
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(settled),
+                projection,
+                group.count().as(COUNT)
+                        .sum(AMOUNT_NETTO).as(AMOUNT_NETTO)
+                        .sum(VAT).as(VAT)
+                        .sum(AMOUNT_BRUTTO).as(AMOUNT_BRUTTO));
+        return mongoTemplate.aggregate(aggregation, Invoice.class, Document.class)
+                .map(row -> toRollup(row, scope));
+    }
+
+    private Mono<Void> replaceRollups() {
+        return mongoTemplate.getCollection(REBUILD_COLLECTION)
+                .flatMap(collection -> Mono.from(collection.renameCollection(
+                        new MongoNamespace(collection.getNamespace().getDatabaseName(), InvoiceRollup.COLLECTION),
+                        new RenameCollectionOptions().dropTarget(true))))
+                .then();
+    }
+
+    private static InvoiceRollup toRollup(Document row, InvoiceRollup.Scope scope) {
+        Object id = row.get(ID);
+        Document key = id instanceof Document ? (Document) id : new Document(YEAR_MONTH, id);
+        YearMonth yearMonth = YearMonth.parse(key.getString(YEAR_MONTH));
+        Long nip = scope == InvoiceRollup.Scope.ALL ? null : ((Number) key.get(NIP)).longValue();
+        InvoiceRollup rollup = InvoiceRollup.empty(yearMonth, scope, nip);
+        rollup.setCount(((Number) row.get(COUNT)).longValue());
+        rollup.setAmountNetto(toBigDecimal(row.get(AMOUNT_NETTO)));
+        rollup.setVat(toBigDecimal(row.get(VAT)));
+        rollup.setAmountBrutto(toBigDecimal(row.get(AMOUNT_BRUTTO)));
+        return rollup;
+    }
+
+    private static void addDeltas(Map<String, InvoiceRollup> deltas, Invoice invoice, int sign) {
+        if (isNull(invoice) || isNull(invoice.getSettlementDate())) {
+            return;
+        }
+        YearMonth yearMonth = YearMonth.from(invoice.getSettlementDate());
+        addDelta(deltas, InvoiceRollup.empty(yearMonth, InvoiceRollup.Scope.ALL, null), invoice, sign);
+        if (nonNull(invoice.getSeller()) && nonNull(invoice.getSeller().getNip())) {
+            addDelta(deltas, InvoiceRollup.empty(yearMonth, InvoiceRollup.Scope.SELLER, invoice.getSeller().getNip()), invoice, sign);
+        }
+        if (nonNull(invoice.getBuyer()) && nonNull(invoice.getBuyer().getNip())) {
+            addDelta(deltas, InvoiceRollup.empty(yearMonth, InvoiceRollup.Scope.BUYER, invoice.getBuyer().getNip()), invoice, sign);
+        }
+    }
+
+    private static void addDelta(Map<String, InvoiceRollup> deltas, InvoiceRollup empty, Invoice invoice, int sign) {
+        InvoiceRollup delta = deltas.computeIfAbsent(empty.getId(), id -> empty);
+        BigDecimal multiplier = BigDecimal.valueOf(sign);
+        delta.setCount(delta.getCount() + sign);
+        delta.setAmountNetto(delta.getAmountNetto().add(orZero(invoice.getAmountNetto()).multiply(multiplier)));
+        delta.setVat(delta.getVat().add(orZero(invoice.getVat()).multiply(multiplier)));
+        delta.setAmountBrutto(delta.getAmountBrutto().add(orZero(invoice.getAmountBrutto()).multiply(multiplier)));
+    }
+
+    private static boolean isChange(InvoiceRollup delta) {
+        return delta.getCount() != 0 || delta.getAmountNetto().signum() != 0 || delta.getVat().signum() != 0
+                || delta.getAmountBrutto().signum() != 0;
+    }
+
+    private static BigDecimal orZero(BigDecimal amount) {
+        return isNull(amount) ? BigDecimal.ZERO : amount;
+    }
+
+    private static BigDecimal toBigDecimal(Object value) {
+        if (isNull(value)) {
+            return BigDecimal.ZERO;
+        }
+        return value instanceof Decimal128 ? ((Decimal128) value).bigDecimalValue() : new BigDecimal(value.toString());
+    }
+}
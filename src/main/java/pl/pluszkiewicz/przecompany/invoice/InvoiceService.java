@@ -1,21 +1,81 @@
 package pl.pluszkiewicz.przecompany.invoice;
 
-import org.springframework.data.rest.webmvc.ResourceNotFoundException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
 
 import javax.naming.directory.InvalidAttributeIdentifierException;
+import java.beans.PropertyDescriptor;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
 
 @Service
 public class InvoiceService {
     public static final int FIRST_DAY_OF_MONTH = 1;
+    public static final String ID_FIELD = "id";
+    public static final String VERSION_FIELD = "version";
+    public static final String IMAGE_ID_FIELD = "imageId";
+    public static final Set<String> INVOICE_FIELDS = Arrays.stream(BeanUtils.getPropertyDescriptors(Invoice.class))
+            .map(PropertyDescriptor::getName)
+            .filter(name -> !"class".equals(name))
+            .collect(Collectors.toUnmodifiableSet());
+
     private final InvoiceRepository invoiceRepository;
+    private final InvoiceContentHashIndex invoiceContentHashIndex;
+    private final InvoiceImageService invoiceImageService;
+    private final InvoiceRollupService invoiceRollupService;
+    private final InvoiceCache invoiceCache;
+    private final InvoiceCompanies invoiceCompanies;
+    private final ObjectMapper objectMapper;
+    private final int defaultPageSize;
+    private final int maxPageSize;
+    private final int streamBatchSize;
+    private final int searchMaxResults;
+    private final int bulkInsertSize;
+    private final int bulkInsertConcurrency;
 
-    public InvoiceService(InvoiceRepository invoiceRepository) {
+    public InvoiceService(InvoiceRepository invoiceRepository, InvoiceContentHashIndex invoiceContentHashIndex, InvoiceImageService invoiceImageService,
+            InvoiceRollupService invoiceRollupService, InvoiceCache invoiceCache, InvoiceCompanies invoiceCompanies,
+            ObjectMapper objectMapper,
+            @Value("${invoice.page.default-size:100}") int defaultPageSize,
+            @Value("${invoice.page.max-size:1000}") int maxPageSize, @Value("${invoice.stream.batch-size:256}") int streamBatchSize,
+            @Value("${invoice.search.max-results:1000}") int searchMaxResults, @Value("${invoice.bulk-insert.size:500}") int bulkInsertSize, @Value("${invoice.bulk-insert.concurrency:2}") int bulkInsertConcurrency) {
         this.invoiceRepository = invoiceRepository;
+        this.invoiceContentHashIndex = invoiceContentHashIndex;
+        this.invoiceImageService = invoiceImageService;
+        this.invoiceRollupService = invoiceRollupService;
+        this.invoiceCache = invoiceCache;
+        this.invoiceCompanies = invoiceCompanies;
+        this.objectMapper = objectMapper;
+        this.defaultPageSize = defaultPageSize;
+        this.maxPageSize = maxPageSize;
+        this.streamBatchSize = streamBatchSize;
+        this.searchMaxResults = searchMaxResults;
+        this.bulkInsertSize = bulkInsertSize;
+        this.bulkInsertConcurrency = bulkInsertConcurrency;
     }
 
     public Flux<Invoice> getAllInvoices() {
@@ -23,39 +83,311 @@ public class InvoiceService {
     }
 
     public Mono<Invoice> getInvoiceById(String id) {
-        return invoiceRepository.findById(id)
-                .doOnError(e -> {throw new ResourceNotFoundException("No invoice with given id.");});
+        return invoiceCache.getInvoice(id, invoiceRepository::findById)
+                .doOnError(e -> {throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No invoice with given id.");});
     }
 
     public Flux<Invoice> getInvoicesBySettlementDateBetween(LocalDate from, LocalDate to) {
         return invoiceRepository.findInvoicesBySettlementDateBetween(from, to);
     }
 
+    /**
+     * Lists invoices settled in the month from the month cache, in (settlementDate, id) order like the listing.
+     */
     public Flux<Invoice> getInvoiceForMonthAndYear(int month, int year) {
-        LocalDate lastDayOfMonth = YearMonth.of(year,month).atEndOfMonth();
+        return invoiceCache.getMonth(YearMonth.of(year, month), yearMonth -> invoiceRepository.stream(
+                yearMonth.atDay(FIRST_DAY_OF_MONTH), yearMonth.plusMonths(1).atDay(FIRST_DAY_OF_MONTH), streamBatchSize, null));
+    }
+
+    public Flux<InvoiceSummary> getInvoiceSummariesForMonthAndYear(int month, int year) {
+        return getInvoiceForMonthAndYear(month, year).map(InvoiceSummary::of);
+    }
+
+    public Flux<Map<String, Object>> getInvoiceFieldsForMonthAndYear(int month, int year, List<String> fields) {
+        return validateFields(fields)
+                .thenMany(getInvoiceForMonthAndYear(month, year))
+                .map(invoice -> selectFields(invoice, fields));
+    }
+
+    /**
+     * Replaces company references of the invoice with registered companies.
+     */
+    public Mono<Invoice> joinCompanies(Invoice invoice) {
+        return invoiceCompanies.join(invoice);
+    }
+
+    public Mono<InvoicePage<Invoice>> joinCompanies(InvoicePage<Invoice> page) {
+        return Flux.fromIterable(page.getItems())
+                .concatMap(invoiceCompanies::join)
+                .collectList()
+                .map(invoices -> new InvoicePage<>(invoices, page.getNextPageToken()));
+    }
+
+    public Map<String, InvoiceCacheStats> getCacheStats() {
+        return invoiceCache.getStats();
+    }
+
+    public Mono<InvoicePage<Invoice>> getInvoicePage(LocalDate from, LocalDate to, String pageToken, Integer pageSize) {
+        return getPage(from, to, pageToken, pageSize, null, invoice -> invoice);
+    }
+
+    public Mono<InvoicePage<InvoiceSummary>> getInvoiceSummaryPage(LocalDate from, LocalDate to, String pageToken, Integer pageSize) {
+        return getPage(from, to, pageToken, pageSize, InvoiceSummary.FIELDS, InvoiceSummary::of);
+    }
 
-        return invoiceRepository.findInvoicesBySettlementDateBetween(LocalDate.of(year, month, FIRST_DAY_OF_MONTH), lastDayOfMonth);
+    /**
+     * Reads only the requested top level fields of invoices and returns them in the requested order.
+     */
+    public Mono<InvoicePage<Map<String, Object>>> getInvoiceFieldsPage(LocalDate from, LocalDate to, String pageToken, Integer pageSize,
+            List<String> fields) {
+        return validateFields(fields)
+                .then(getPage(from, to, pageToken, pageSize, fields, invoice -> selectFields(invoice, fields)));
+    }
+
+    /**
+     * Streams invoices settled in [from, to) straight off the Mongo cursor in (settlementDate, id) order, without paging.
+     * Invoices are fetched only as fast as the subscriber requests them.
+     */
+    public Flux<Invoice> streamInvoices(LocalDate from, LocalDate to) {
+        return invoiceRepository.stream(from, to, streamBatchSize, null);
+    }
+
+    public Flux<InvoiceSummary> streamInvoiceSummaries(LocalDate from, LocalDate to) {
+        return invoiceRepository.stream(from, to, streamBatchSize, InvoiceSummary.FIELDS).map(InvoiceSummary::of);
+    }
+
+    public Flux<Map<String, Object>> streamInvoiceFields(LocalDate from, LocalDate to, List<String> fields) {
+        return validateFields(fields)
+                .thenMany(invoiceRepository.stream(from, to, streamBatchSize, fields))
+                .map(invoice -> selectFields(invoice, fields));
+    }
+
+    /**
+     * Searches invoice titles, position names and counterparty names, most relevant first. Relevance order cannot be
+     * continued from the last invoice, so pages are read by offset and end after invoice.search.max-results invoices.
+     */
+    public Mono<InvoicePage<InvoiceSummary>> searchInvoiceSummaries(String text, LocalDate from, LocalDate to, String pageToken, Integer pageSize) {
+        if (isNull(text) || text.isBlank()) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Search text is required"));
+        }
+        int offset;
+        try {
+            offset = nonNull(pageToken) ? decodeOffset(pageToken) : 0;
+        } catch (IllegalArgumentException e) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid page token: " + pageToken, e));
+        }
+        int limit = Math.min(nonNull(pageSize) ? Math.max(1, Math.min(pageSize, maxPageSize)) : defaultPageSize, searchMaxResults - offset);
+        if (limit <= 0) {
+            return Mono.just(new InvoicePage<>(List.of(), null));
+        }
+
+        return invoiceRepository.search(text, from, to, offset, limit + 1, InvoiceSummary.FIELDS)
+                .collectList()
+                .map(invoices -> {
+                    List<Invoice> page = invoices.size() > limit ? invoices.subList(0, limit) : invoices;
+                    boolean hasNextPage = invoices.size() > limit && offset + limit < searchMaxResults;
+                    return new InvoicePage<>(page.stream().map(InvoiceSummary::of).collect(Collectors.toList()),
+                            hasNextPage ? encodeOffset(offset + limit) : null);
+                });
     }
 
     public Mono<Invoice> addInvoice(Invoice invoice) {
-        return invoiceRepository.save(invoice);
+        if (isNull(invoice.getId())) {
+            return invoiceCompanies.register(List.of(invoice))
+                    .then(Mono.defer(() -> invoiceRepository.insert(invoice)))
+                    .doOnNext(invoiceCache::invalidate)
+                    .flatMap(saved -> invoiceRollupService.apply(null, saved).thenReturn(saved));
+        }
+        // an invoice posted with an id of an existing one replaces it
+        return update(invoice.getId(), null, replacementOf(invoice), true);
     }
 
+    /**
+     * Inserts a stream of new invoices in unordered bulk writes of invoice.bulk-insert.size and reports the outcome of
+     * every invoice, in input order.
+     */
+    public Flux<InvoiceBatchResult> addInvoices(Flux<Invoice> invoices) {
+        return invoices
+                .index()
+                .buffer(bulkInsertSize)
+                .flatMapSequential(this::insertBatch, bulkInsertConcurrency);
+    }
+
+    /**
+     * Replaces the invoice in a single findAndModify. An invoice with a version is replaced only if it was not modified
+     * in the meantime, otherwise 409 is returned.
+     */
     public Mono<Invoice> editInvoice(String id, Invoice invoice) throws InvalidAttributeIdentifierException {
         if (!id.equalsIgnoreCase(invoice.getId())) {
             throw new InvalidAttributeIdentifierException("Id of request and given object is not equal.");
         }
-        return invoiceRepository
-                .findById(id)
-                .map(p -> new Invoice(invoice))
-                .flatMap(this.invoiceRepository::save)
-                .onErrorResume(e -> Mono.error(new ResourceNotFoundException("Error on invoice update", e)));
+        return update(id, invoice.getVersion(), replacementOf(invoice), false)
+                .onErrorResume(e -> !(e instanceof ResponseStatusException), e -> Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Error on invoice update", e)));
+    }
+
+    /**
+     * Sets only the given top level properties, a null value removes the property. A version in the patch makes it
+     * conditional the same way as in {@link #editInvoice(String, Invoice)}.
+     */
+    public Mono<Invoice> patchInvoice(String id, Map<String, Object> patch) {
+        Map<String, Object> changes = new LinkedHashMap<>(patch);
+        Object patchId = changes.remove(ID_FIELD);
+        Object version = changes.remove(VERSION_FIELD);
+        if (nonNull(patchId) && !id.equals(patchId)) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Id of request and given object is not equal."));
+        }
+        if (nonNull(version) && !(version instanceof Number)) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid invoice version: " + version));
+        }
+        return validateFields(changes.keySet())
+                .then(Mono.fromCallable(() -> typedChanges(changes)))
+                .flatMap(typedChanges -> update(id, nonNull(version) ? ((Number) version).longValue() : null, typedChanges, false));
     }
 
     public Mono<Invoice> removeInvoice(String id) {
+        return removeInvoice(id, null);
+    }
+
+    public Mono<Invoice> removeInvoice(String id, Long expectedVersion) {
         return this.invoiceRepository
-                .findById(id)
-                .flatMap(invoice -> this.invoiceRepository.deleteById(invoice.getId()).thenReturn(invoice))
-                .onErrorResume(e -> Mono.error(new ResourceNotFoundException("Cannot delete invoice", e)));
+                .findAndRemove(id, expectedVersion)
+                .switchIfEmpty(Mono.defer(() -> versionConflict(id, expectedVersion)))
+                .flatMap(invoice -> Mono.fromRunnable(() -> this.invoiceCache.invalidate(invoice))
+                        .then(this.invoiceContentHashIndex.removeInvoice(invoice.getId()))
+                        .then(this.invoiceImageService.deleteImage(invoice.getImageId()))
+                        .then(this.invoiceRollupService.apply(invoice, null))
+                        .thenReturn(invoice))
+                .onErrorResume(e -> !(e instanceof ResponseStatusException), e -> Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Cannot delete invoice", e)));
+    }
+
+    /**
+     * Returns the invoice after changes made by {@link InvoiceRepository#findAndUpdate}, without reading it again.
+     */
+    static Invoice applyChanges(Invoice previous, Map<String, Object> changes) {
+        Invoice changed = new Invoice(previous);
+        BeanWrapperImpl changedWrapper = new BeanWrapperImpl(changed);
+        changes.forEach(changedWrapper::setPropertyValue);
+        changed.setVersion(isNull(previous.getVersion()) ? 1 : previous.getVersion() + 1);
+        return changed;
+    }
+
+    private Mono<Invoice> update(String id, Long expectedVersion, Map<String, Object> changes, boolean upsert) {
+        return invoiceCompanies.register(changes).flatMap(referencedChanges -> invoiceRepository
+                .findAndUpdate(id, expectedVersion, referencedChanges, upsert)
+                .map(Optional::of)
+                .switchIfEmpty(upsert ? Mono.just(Optional.empty()) : Mono.defer(() -> versionConflict(id, expectedVersion)))
+                .flatMap(previous -> {
+                    Invoice current = applyChanges(previous.orElseGet(() -> Invoice.builder().id(id).build()), referencedChanges);
+                    previous.ifPresent(invoiceCache::invalidate);
+                    invoiceCache.invalidate(current);
+                    return invoiceRollupService.apply(previous.orElse(null), current).thenReturn(current);
+                }));
+    }
+
+    private <T> Mono<T> versionConflict(String id, Long expectedVersion) {
+        if (isNull(expectedVersion)) {
+            return Mono.empty();
+        }
+        return invoiceRepository.existsById(id)
+                .flatMap(exists -> exists
+                        ? Mono.error(new ResponseStatusException(HttpStatus.CONFLICT, "Invoice was modified, current version differs from " + expectedVersion))
+                        : Mono.empty());
+    }
+
+    private Map<String, Object> typedChanges(Map<String, Object> changes) {
+        Invoice patched;
+        try {
+            patched = objectMapper.convertValue(changes, Invoice.class);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid invoice patch", e);
+        }
+        BeanWrapperImpl patchedWrapper = new BeanWrapperImpl(patched);
+        Map<String, Object> typedChanges = new LinkedHashMap<>();
+        changes.keySet().forEach(field -> typedChanges.put(field, patchedWrapper.getPropertyValue(field)));
+        return typedChanges;
+    }
+
+    private static Map<String, Object> replacementOf(Invoice invoice) {
+        BeanWrapperImpl invoiceWrapper = new BeanWrapperImpl(invoice);
+        Map<String, Object> changes = new LinkedHashMap<>();
+        INVOICE_FIELDS.stream()
+                .filter(field -> !ID_FIELD.equals(field) && !VERSION_FIELD.equals(field))
+                .forEach(field -> changes.put(field, invoiceWrapper.getPropertyValue(field)));
+        // images are replaced through their own endpoint, an invoice sent without one keeps the stored image
+        if (isNull(invoice.getImageId())) {
+            changes.remove(IMAGE_ID_FIELD);
+        }
+        return changes;
+    }
+
+    private Flux<InvoiceBatchResult> insertBatch(List<Tuple2<Long, Invoice>> batch) {
+        List<Invoice> invoices = batch.stream().map(Tuple2::getT2).collect(Collectors.toList());
+        return invoiceCompanies.register(invoices)
+                .then(Mono.defer(() -> invoiceRepository.insertUnordered(invoices)))
+                .onErrorResume(e -> Mono.just(IntStream.range(0, invoices.size()).boxed()
+                        .collect(Collectors.toMap(Function.identity(), i -> "Cannot save invoice: " + e.getMessage()))))
+                .flatMapMany(errors -> {
+                    List<Invoice> created = new ArrayList<>();
+                    List<InvoiceBatchResult> results = new ArrayList<>();
+                    for (int i = 0; i < batch.size(); i++) {
+                        Invoice invoice = invoices.get(i);
+                        InvoiceBatchResult.InvoiceBatchResultBuilder result = InvoiceBatchResult.builder().index(batch.get(i).getT1());
+                        if (errors.containsKey(i)) {
+                            results.add(result.status(InvoiceBatchResult.Status.FAILED).error(errors.get(i)).build());
+                        } else {
+                            created.add(invoice);
+                            invoiceCache.invalidate(invoice);
+                            results.add(result.status(InvoiceBatchResult.Status.CREATED).invoiceId(invoice.getId()).build());
+                        }
+                    }
+                    return invoiceRollupService.applyAll(created).thenMany(Flux.fromIterable(results));
+                });
+    }
+
+    private <T> Mono<InvoicePage<T>> getPage(LocalDate from, LocalDate to, String pageToken, Integer pageSize, List<String> fields,
+            Function<Invoice, T> mapper) {
+        InvoicePageToken after;
+        try {
+            after = nonNull(pageToken) ? InvoicePageToken.decode(pageToken) : null;
+        } catch (IllegalArgumentException e) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e));
+        }
+        int limit = nonNull(pageSize) ? Math.max(1, Math.min(pageSize, maxPageSize)) : defaultPageSize;
+
+        // one invoice more than requested tells whether there is a next page
+        return invoiceRepository.findPage(from, to, after, limit + 1, fields)
+                .collectList()
+                .map(invoices -> {
+                    List<Invoice> page = invoices.size() > limit ? invoices.subList(0, limit) : invoices;
+                    String nextPageToken = invoices.size() > limit ? InvoicePageToken.of(page.get(limit - 1)).encode() : null;
+                    return new InvoicePage<>(page.stream().map(mapper).collect(Collectors.toList()), nextPageToken);
+                });
+    }
+
+    private static String encodeOffset(int offset) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(String.valueOf(offset).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int decodeOffset(String pageToken) {
+        int offset = Integer.parseInt(new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8));
+        if (offset < 0) {
+            throw new IllegalArgumentException("Negative offset: " + offset);
+        }
+        return offset;
+    }
+
+    private static Mono<Void> validateFields(Collection<String> fields) {
+        Set<String> unknownFields = fields.stream().filter(field -> !INVOICE_FIELDS.contains(field)).collect(Collectors.toSet());
+        if (!unknownFields.isEmpty()) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown invoice fields: " + unknownFields));
+        }
+        return Mono.empty();
+    }
+
+    private static Map<String, Object> selectFields(Invoice invoice, List<String> fields) {
+        BeanWrapperImpl invoiceWrapper = new BeanWrapperImpl(invoice);
+        Map<String, Object> selected = new LinkedHashMap<>();
+        fields.forEach(field -> selected.put(field, invoiceWrapper.getPropertyValue(field)));
+        return selected;
     }
 }
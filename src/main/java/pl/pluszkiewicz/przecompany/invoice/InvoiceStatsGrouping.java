@@ -0,0 +1,11 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import java.util.Locale;
+
+public enum InvoiceStatsGrouping {
+    MONTH, QUARTER, YEAR, SELLER, BUYER, VAT_RATE;
+
+    public static InvoiceStatsGrouping of(String groupBy) {
+        return valueOf(groupBy.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+    }
+}
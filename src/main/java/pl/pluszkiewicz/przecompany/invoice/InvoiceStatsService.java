@@ -0,0 +1,162 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationExpression;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.ConvertOperators;
+import org.springframework.data.mongodb.core.aggregation.DateOperators;
+import org.springframework.data.mongodb.core.aggregation.ProjectionOperation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Sums invoice amounts in Mongo aggregation pipelines, so only one row per group leaves the database. Amounts are
+ * converted to decimals inside the pipeline, dates are grouped in the zone they were stored in.
+ */
+@Service
+public class InvoiceStatsService {
+    private static final String ID = "_id";
+    private static final String SETTLEMENT_DATE = "settlementDate";
+    private static final String SELLER = "seller";
+    private static final String BUYER = "buyer";
+    private static final String POSITIONS = "positions";
+    private static final String YEAR = "year";
+    private static final String QUARTER = "quarter";
+    private static final String MONTH = "month";
+    private static final String NIP = "nip";
+    private static final String VAT_PERCENT = "vatPercent";
+    private static final String COUNT = "count";
+    private static final String AMOUNT_NETTO = "amountNetto";
+    private static final String VAT = "vat";
+    private static final String AMOUNT_BRUTTO = "amountBrutto";
+    private static final int MONTHS_IN_QUARTER = 3;
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final DateOperators.Timezone timezone = DateOperators.Timezone.valueOf(ZoneId.systemDefault().getId());
+
+    public InvoiceStatsService(ReactiveMongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * Totals of invoices settled between given dates, both inclusive and optional.
+     */
+    public Flux<InvoiceTotals> getTotals(InvoiceStatsGrouping grouping, LocalDate from, LocalDate to) {
+        List<AggregationOperation> operations = new ArrayList<>();
+        if (nonNull(from) || nonNull(to)) {
+            Criteria settlementDate = Criteria.where(SETTLEMENT_DATE);
+            if (nonNull(from)) {
+                settlementDate.gte(from);
+            }
+            if (nonNull(to)) {
+                settlementDate.lte(to);
+            }
+            operations.add(Aggregation.match(settlementDate));
+        }
+        String[] groupFields = groupFields(grouping);
+        if (grouping == InvoiceStatsGrouping.VAT_RATE) {
+            operations.add(Aggregation.unwind(POSITIONS));
+        }
+        operations.add(project(grouping));
+        operations.add(Aggregation.group(groupFields)
+                .count().as(COUNT)
+                .sum(AMOUNT_NETTO).as(AMOUNT_NETTO)
+                .sum(VAT).as(VAT)
+                .sum(AMOUNT_BRUTTO).as(AMOUNT_BRUTTO));
+        operations.add(Aggregation.sort(Sort.by(ID)));
+
+        return mongoTemplate.aggregate(Aggregation.newAggregation(operations), Invoice.class, Document.class)
+                .map(row -> toTotals(row, groupFields));
+    }
+
+    private ProjectionOperation project(InvoiceStatsGrouping grouping) {
+        switch (grouping) {
+            case SELLER:
+                return projectAmounts("", AMOUNT_NETTO, VAT, AMOUNT_BRUTTO).and(SELLER + "." + NIP).as(NIP);
+            case BUYER:
+                return projectAmounts("", AMOUNT_NETTO, VAT, AMOUNT_BRUTTO).and(BUYER + "." + NIP).as(NIP);
+            case VAT_RATE:
+                String position = POSITIONS + ".";
+                return projectAmounts(position, "totalAmountNetto", "totalVat", "totalAmountBrutto")
+                        .and(position + VAT_PERCENT).as(VAT_PERCENT);
+            default:
+                DateOperators.DateOperatorFactory settlementDate = DateOperators.dateOf(SETTLEMENT_DATE).withTimezone(timezone);
+                ProjectionOperation projection = projectAmounts("", AMOUNT_NETTO, VAT, AMOUNT_BRUTTO)
+                        .and(settlementDate.year()).as(YEAR);
+                if (grouping == InvoiceStatsGrouping.MONTH) {
+                    return projection.and(settlementDate.month()).as(MONTH);
+                }
+                if (grouping == InvoiceStatsGrouping.QUARTER) {
+                    return projection.and(quarterOf(settlementDate.month())).as(QUARTER);
+                }
+                return projection;
+        }
+    }
+
+    private static ProjectionOperation projectAmounts(String prefix, String netto, String vat, String brutto) {
+        return Aggregation.project()
+                .and(ConvertOperators.valueOf(prefix + netto).convertToDecimal()).as(AMOUNT_NETTO)
+                .and(ConvertOperators.valueOf(prefix + vat).convertToDecimal()).as(VAT)
+                .and(ConvertOperators.valueOf(prefix + brutto).convertToDecimal()).as(AMOUNT_BRUTTO);
+    }
+
+    private static AggregationExpression quarterOf(AggregationExpression month) {
+        return context -> new Document("$ceil", new Document("$divide", List.of(month.toDocument(context), MONTHS_IN_QUARTER)));
+    }
+
+    private static String[] groupFields(InvoiceStatsGrouping grouping) {
+        switch (grouping) {
+            case MONTH:
+                return new String[]{YEAR, MONTH};
+            case QUARTER:
+                return new String[]{YEAR, QUARTER};
+            case YEAR:
+                return new String[]{YEAR};
+            case VAT_RATE:
+                return new String[]{VAT_PERCENT};
+            default:
+                return new String[]{NIP};
+        }
+    }
+
+    private static InvoiceTotals toTotals(Document row, String[] groupFields) {
+        Object id = row.get(ID);
+        Document key = id instanceof Document ? (Document) id : new Document(groupFields[0], id);
+        return InvoiceTotals.builder()
+                .year(toInteger(key.get(YEAR)))
+                .quarter(toInteger(key.get(QUARTER)))
+                .month(toInteger(key.get(MONTH)))
+                .nip(key.get(NIP) instanceof Number ? ((Number) key.get(NIP)).longValue() : null)
+                .vatPercent(toInteger(key.get(VAT_PERCENT)))
+                .count(((Number) row.get(COUNT)).longValue())
+                .amountNetto(toBigDecimal(row.get(AMOUNT_NETTO)))
+                .vat(toBigDecimal(row.get(VAT)))
+                .amountBrutto(toBigDecimal(row.get(AMOUNT_BRUTTO)))
+                .build();
+    }
+
+    private static Integer toInteger(Object value) {
+        return value instanceof Number ? ((Number) value).intValue() : null;
+    }
+
+    private static BigDecimal toBigDecimal(Object value) {
+        if (isNull(value)) {
+            return null;
+        }
+        return value instanceof Decimal128 ? ((Decimal128) value).bigDecimalValue() : new BigDecimal(value.toString());
+    }
+}
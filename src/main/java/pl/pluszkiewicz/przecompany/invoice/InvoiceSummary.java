@@ -0,0 +1,33 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Projection of {@link Invoice} used for listings - only these fields are read from Mongo.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class InvoiceSummary {
+    public static final List<String> FIELDS = List.of("id", "title", "settlementDate", "amountNetto", "amountBrutto", "vat");
+
+    private String id;
+    private String title;
+    private LocalDate settlementDate;
+    private BigDecimal amountNetto;
+    private BigDecimal amountBrutto;
+    private BigDecimal vat;
+
+    public static InvoiceSummary of(Invoice invoice) {
+        return new InvoiceSummary(invoice.getId(), invoice.getTitle(), invoice.getSettlementDate(), invoice.getAmountNetto(),
+                invoice.getAmountBrutto(), invoice.getVat());
+    }
+}
@@ -0,0 +1,29 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+/**
+ * One row of invoice statistics - sums for a single group. Only the keys of the requested grouping are set.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class InvoiceTotals {
+    private Integer year;
+    private Integer quarter;
+    private Integer month;
+    private Long nip;
+    private Integer vatPercent;
+    private long count;
+    private BigDecimal amountNetto;
+    private BigDecimal vat;
+    private BigDecimal amountBrutto;
+}
@@ -5,11 +5,10 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
-import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.index.TextIndexed;
 
 import java.math.BigDecimal;
 
-@Document
 @Data
 @AllArgsConstructor
 @NoArgsConstructor
@@ -17,6 +16,7 @@ import java.math.BigDecimal;
 public class Position {
     @Id
     private String id;
+    @TextIndexed
     private String name;
     private Integer amount;
     private String unitType;
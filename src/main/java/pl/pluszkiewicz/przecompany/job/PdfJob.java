@@ -0,0 +1,42 @@
+package pl.pluszkiewicz.przecompany.job;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Uploaded PDF waiting for or being turned into an invoice. The PDF itself is kept in GridFS until the job finishes.
+ */
+@Document(collection = "pdf_jobs")
+@CompoundIndex(name = "status_createdAt", def = "{'status': 1, 'createdAt': 1}")
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class PdfJob {
+    @Id
+    private String id;
+    private String fileName;
+    @JsonIgnore
+    private String contentId;
+    private Status status;
+    private String invoiceId;
+    private boolean duplicate;
+    private String error;
+    private int attempts;
+    private Instant createdAt;
+    private Instant updatedAt;
+    @JsonIgnore
+    private Instant leaseExpiresAt;
+
+    public enum Status {
+        QUEUED, PROCESSING, DONE, FAILED
+    }
+}
@@ -0,0 +1,55 @@
+package pl.pluszkiewicz.przecompany.job;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.codec.multipart.Part;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+
+import static java.util.Objects.nonNull;
+
+@RestController
+@RequestMapping(value = "jobs")
+public class PdfJobController {
+    public static final String JOBS_URL = "/jobs/";
+    public static final String DEFAULT_FILE_NAME = "invoice.pdf";
+    private final PdfJobService pdfJobService;
+
+    public PdfJobController(PdfJobService pdfJobService) {
+        this.pdfJobService = pdfJobService;
+    }
+
+    @PostMapping(consumes = MediaType.APPLICATION_PDF_VALUE)
+    public Mono<ResponseEntity<PdfJob>> submitPdf(@RequestHeader HttpHeaders requestHeaders, @RequestBody Flux<DataBuffer> content) {
+        String fileName = requestHeaders.getContentDisposition().getFilename();
+        return pdfJobService.submit(nonNull(fileName) ? fileName : DEFAULT_FILE_NAME, content)
+                .map(job -> ResponseEntity.accepted().location(URI.create(JOBS_URL + job.getId())).body(job));
+    }
+
+    @PostMapping(consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    @ResponseStatus(HttpStatus.ACCEPTED)
+    public Flux<PdfJob> submitFiles(@RequestBody Flux<Part> parts) {
+        return parts
+                .ofType(FilePart.class)
+                .concatMap(filePart -> pdfJobService.submit(filePart.filename(), filePart.content()));
+    }
+
+    @GetMapping("/{id}")
+    public Mono<PdfJob> getJob(@PathVariable(value = "id") String id) {
+        return pdfJobService.getJob(id);
+    }
+}
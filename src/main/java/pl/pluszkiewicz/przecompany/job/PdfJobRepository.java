@@ -0,0 +1,6 @@
+package pl.pluszkiewicz.przecompany.job;
+
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+
+public interface PdfJobRepository extends ReactiveMongoRepository<PdfJob, String> {
+}
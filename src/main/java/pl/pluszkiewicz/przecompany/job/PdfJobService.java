@@ -0,0 +1,144 @@
+package pl.pluszkiewicz.przecompany.job;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsResource;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Durable queue of uploaded PDFs. Jobs are claimed with a single findAndModify, so every job is processed by one
+ * worker at a time, and a claim is only a lease - a job of a crashed worker is claimed again once its lease expires.
+ */
+@Service
+public class PdfJobService {
+    public static final String ID_FIELD = "id";
+    public static final String STATUS_FIELD = "status";
+    public static final String ATTEMPTS_FIELD = "attempts";
+    public static final String CREATED_AT_FIELD = "createdAt";
+    public static final String UPDATED_AT_FIELD = "updatedAt";
+    public static final String LEASE_EXPIRES_AT_FIELD = "leaseExpiresAt";
+
+    private final PdfJobRepository pdfJobRepository;
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final ReactiveGridFsTemplate gridFsTemplate;
+    private final Duration lease;
+    private final Sinks.Many<PdfJob> submittedJobs = Sinks.many().multicast().directBestEffort();
+
+    public PdfJobService(PdfJobRepository pdfJobRepository, ReactiveMongoTemplate mongoTemplate, ReactiveGridFsTemplate gridFsTemplate,
+            @Value("${pdf.jobs.lease:5m}") Duration lease) {
+        this.pdfJobRepository = pdfJobRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.gridFsTemplate = gridFsTemplate;
+        this.lease = lease;
+    }
+
+    public Mono<PdfJob> submit(String fileName, Flux<DataBuffer> content) {
+        return gridFsTemplate.store(content, fileName, MediaType.APPLICATION_PDF_VALUE)
+                .flatMap(contentId -> {
+                    Instant now = Instant.now();
+                    return pdfJobRepository.insert(PdfJob.builder()
+                            .fileName(fileName)
+                            .contentId(contentId.toHexString())
+                            .status(PdfJob.Status.QUEUED)
+                            .createdAt(now)
+                            .updatedAt(now)
+                            .build());
+                })
+                .doOnNext(submittedJobs::tryEmitNext);
+    }
+
+    public Mono<PdfJob> getJob(String id) {
+        return pdfJobRepository.findById(id)
+                .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "No job with given id.")));
+    }
+
+    /**
+     * Jobs submitted on this instance, so idle workers do not wait for the next poll.
+     */
+    public Flux<PdfJob> submittedJobs() {
+        return submittedJobs.asFlux();
+    }
+
+    /**
+     * Takes the oldest queued job, or a job whose lease expired, and leases it to the caller.
+     */
+    public Mono<PdfJob> claim() {
+        Instant now = Instant.now();
+        Query query = Query.query(new Criteria().orOperator(
+                where(STATUS_FIELD).is(PdfJob.Status.QUEUED),
+                where(STATUS_FIELD).is(PdfJob.Status.PROCESSING).and(LEASE_EXPIRES_AT_FIELD).lt(now)))
+                .with(Sort.by(CREATED_AT_FIELD));
+        Update update = new Update()
+                .set(STATUS_FIELD, PdfJob.Status.PROCESSING)
+                .set(LEASE_EXPIRES_AT_FIELD, now.plus(lease))
+                .set(UPDATED_AT_FIELD, now)
+                .inc(ATTEMPTS_FIELD, 1);
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), PdfJob.class);
+    }
+
+    /**
+     * Extends the lease of a job still held by the caller. Empty when the lease was lost to another worker.
+     */
+    public Mono<PdfJob> renew(PdfJob job) {
+        Instant now = Instant.now();
+        Update update = new Update()
+                .set(LEASE_EXPIRES_AT_FIELD, now.plus(lease))
+                .set(UPDATED_AT_FIELD, now);
+        return mongoTemplate.findAndModify(leased(job), update, FindAndModifyOptions.options().returnNew(true), PdfJob.class);
+    }
+
+    public Flux<DataBuffer> readContent(PdfJob job) {
+        return gridFsTemplate.findOne(byId(job.getContentId()))
+                .switchIfEmpty(Mono.error(new IllegalStateException("PDF content of the job is gone")))
+                .flatMap(gridFsTemplate::getResource)
+                .flatMapMany(ReactiveGridFsResource::getDownloadStream);
+    }
+
+    public Mono<PdfJob> complete(PdfJob job, String invoiceId, boolean duplicate) {
+        return finish(job, new Update().set(STATUS_FIELD, PdfJob.Status.DONE).set("invoiceId", invoiceId).set("duplicate", duplicate));
+    }
+
+    public Mono<PdfJob> fail(PdfJob job, String error) {
+        return finish(job, new Update().set(STATUS_FIELD, PdfJob.Status.FAILED).set("error", error));
+    }
+
+    /**
+     * Updates the job only if it still holds the caller's lease - an expired job may already be processed by another
+     * worker, which then owns its content.
+     */
+    private Mono<PdfJob> finish(PdfJob job, Update update) {
+        update.set(UPDATED_AT_FIELD, Instant.now()).unset(LEASE_EXPIRES_AT_FIELD);
+        return mongoTemplate.findAndModify(leased(job), update, FindAndModifyOptions.options().returnNew(true), PdfJob.class)
+                .flatMap(finished -> gridFsTemplate.delete(byId(finished.getContentId())).thenReturn(finished));
+    }
+
+    // every claim increments attempts, so the attempt count identifies the lease
+    private static Query leased(PdfJob job) {
+        return Query.query(where(ID_FIELD).is(job.getId())
+                .and(STATUS_FIELD).is(PdfJob.Status.PROCESSING)
+                .and(ATTEMPTS_FIELD).is(job.getAttempts()));
+    }
+
+    private static Query byId(String contentId) {
+        return Query.query(where("_id").is(new ObjectId(contentId)));
+    }
+}
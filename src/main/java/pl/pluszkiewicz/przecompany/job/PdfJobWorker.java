@@ -0,0 +1,133 @@
+package pl.pluszkiewicz.przecompany.job;
+
+import org.apache.pdfbox.io.IOUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import pl.pluszkiewicz.przecompany.invoice.InvoiceContentHash;
+import pl.pluszkiewicz.przecompany.invoice.InvoiceContentHashIndex;
+import pl.pluszkiewicz.przecompany.invoice.InvoiceService;
+import pl.pluszkiewicz.przecompany.pdf.PdfContent;
+import pl.pluszkiewicz.przecompany.pdf.PdfReadService;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Function;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * Pool of pdf.jobs.workers workers, each claiming and parsing one job at a time. Workers wake up on every job
+ * submitted on this instance and poll every pdf.jobs.poll-interval for jobs submitted elsewhere or left by a crash.
+ * The lease of a job is renewed every pdf.jobs.heartbeat-interval while it is processed, so a slow parse is not
+ * claimed again by another worker.
+ */
+@Component
+public class PdfJobWorker {
+    private final PdfJobService pdfJobService;
+    private final PdfReadService pdfReadService;
+    private final InvoiceService invoiceService;
+    private final InvoiceContentHashIndex invoiceContentHashIndex;
+    private final int workers;
+    private final int maxAttempts;
+    private final Duration pollInterval;
+    private final Duration heartbeatInterval;
+    private final Scheduler jobScheduler;
+    private final Disposable.Composite runningWorkers = Disposables.composite();
+
+    public PdfJobWorker(PdfJobService pdfJobService, PdfReadService pdfReadService, InvoiceService invoiceService,
+            InvoiceContentHashIndex invoiceContentHashIndex, @Value("${pdf.jobs.workers:2}") int workers,
+            @Value("${pdf.jobs.max-attempts:3}") int maxAttempts, @Value("${pdf.jobs.poll-interval:1s}") Duration pollInterval,
+            @Value("${pdf.jobs.heartbeat-interval:1m}") Duration heartbeatInterval) {
+        this.pdfJobService = pdfJobService;
+        this.pdfReadService = pdfReadService;
+        this.invoiceService = invoiceService;
+        this.invoiceContentHashIndex = invoiceContentHashIndex;
+        this.workers = workers;
+        this.maxAttempts = maxAttempts;
+        this.pollInterval = pollInterval;
+        this.heartbeatInterval = heartbeatInterval;
+        this.jobScheduler = Schedulers.newBoundedElastic(Math.max(1, workers), Schedulers.DEFAULT_BOUNDED_ELASTIC_QUEUESIZE, "pdf-job");
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        for (int i = 0; i < workers; i++) {
+            runningWorkers.add(Flux.merge(Flux.interval(Duration.ZERO, pollInterval), pdfJobService.submittedJobs())
+                    .onBackpressureDrop()
+                    .concatMap(signal -> processQueued(), 1)
+                    .subscribe());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        runningWorkers.dispose();
+        jobScheduler.dispose();
+    }
+
+    /**
+     * Processes jobs until there are none left to claim.
+     */
+    Mono<Void> processQueued() {
+        return Mono.defer(pdfJobService::claim)
+                .flatMap(job -> Mono.using(() -> heartbeat(job), heartbeat -> process(job), Disposable::dispose).thenReturn(true))
+                .defaultIfEmpty(false)
+                .repeat()
+                .takeWhile(Boolean::booleanValue)
+                .then()
+                // the queue is polled again on the next signal
+                .onErrorResume(e -> Mono.empty());
+    }
+
+    private Disposable heartbeat(PdfJob job) {
+        return Flux.interval(heartbeatInterval)
+                // a failed renewal is retried on the next tick, the lease outlives a few of them
+                .concatMap(tick -> pdfJobService.renew(job).onErrorResume(e -> Mono.empty()))
+                .subscribe();
+    }
+
+    private Mono<PdfJob> process(PdfJob job) {
+        if (job.getAttempts() > maxAttempts) {
+            return pdfJobService.fail(job, "Abandoned after " + maxAttempts + " attempts");
+        }
+        return pdfReadService.bufferPdf(pdfJobService.readContent(job), jobScheduler)
+                .flatMap(content -> invoiceContentHashIndex.claim(content.getContentHash())
+                        .map(existing -> {
+                            IOUtils.closeQuietly(content);
+                            return nonNull(existing.getInvoiceId())
+                                    ? pdfJobService.complete(job, existing.getInvoiceId(), true)
+                                    : pdfJobService.fail(job, "Same content is being imported right now");
+                        })
+                        .defaultIfEmpty(Mono.defer(() -> parseAndSave(job, content, true)))
+                        // without the index the job is processed unchecked
+                        .onErrorReturn(Mono.defer(() -> parseAndSave(job, content, false)))
+                        .flatMap(Function.identity()))
+                .onErrorResume(e -> pdfJobService.fail(job, "Cannot process invoice: " + e.getMessage()));
+    }
+
+    private Mono<PdfJob> parseAndSave(PdfJob job, PdfContent content, boolean claimed) {
+        String contentHash = content.getContentHash();
+        return Mono.fromCallable(() -> pdfReadService.readInvoice(content))
+                .subscribeOn(jobScheduler)
+                .flatMap(invoiceService::addInvoice)
+                .flatMap(invoice -> invoiceContentHashIndex.register(List.of(InvoiceContentHash.builder().hash(contentHash).invoiceId(invoice.getId()).build()))
+                        // a missing hash only means that the next upload of the same file is not recognized
+                        .onErrorResume(e -> Mono.empty())
+                        .then(pdfJobService.complete(job, invoice.getId(), false)))
+                .onErrorResume(e -> releaseClaim(contentHash, claimed).then(Mono.error(e)));
+    }
+
+    private Mono<Void> releaseClaim(String contentHash, boolean claimed) {
+        // the same content can be submitted again
+        return claimed ? invoiceContentHashIndex.release(List.of(contentHash)).onErrorResume(e -> Mono.empty()) : Mono.empty();
+    }
+}
@@ -0,0 +1,5 @@
+package pl.pluszkiewicz.przecompany.pdf;
+
+public enum InvoiceRegion {
+    HEADER, SELLER, BUYER, POSITIONS, SUMMARY
+}
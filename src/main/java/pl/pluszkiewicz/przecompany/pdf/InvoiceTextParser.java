@@ -0,0 +1,340 @@
+package pl.pluszkiewicz.przecompany.pdf;
+
+import pl.pluszkiewicz.przecompany.company.Address;
+import pl.pluszkiewicz.przecompany.company.Company;
+import pl.pluszkiewicz.przecompany.invoice.Invoice;
+import pl.pluszkiewicz.przecompany.invoice.Position;
+
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Maps text lines of an invoice PDF to {@link Invoice} - either the whole document in a single pass or text of regions
+ * cut out by a {@link LayoutTemplate}. Not thread safe - create one per document.
+ */
+public class InvoiceTextParser {
+    public static final String SETTLEMENT_DATE = "Data wystawienia";
+    public static final String SUMMARY = "Razem";
+    public static final char PDF_WHITE_SPACE = '\u00A0';
+    public static final String POSITIONS_SECTION = "Lp Nazwa";
+    public static final String SELLER_SECTION = "Sprzedawca";
+    public static final String BUYER_SECTION = "Nabywca";
+    public static final String INVOICE_TITLE_SECTION = "Faktura: ";
+
+    private static final String NIP = "NIP";
+    private static final int MAX_COMPANY_LINES = 8;
+    private static final int MAX_POSITIONS_HEADER_LINES = 8;
+    private static final String[] NO_LINES = new String[0];
+    private static final String AMOUNT = "\\d{1,3}(?:[ \\u00A0\\u202F]?\\d{3})*,\\d{2}";
+
+    private static final Pattern SETTLEMENT_DATE_PATTERN = Pattern.compile(SETTLEMENT_DATE + ":?\\s*(\\d{1,2})\\D(\\d{1,2})\\D(\\d{4})");
+    private static final Pattern AMOUNTS_PATTERN = Pattern.compile(SUMMARY + ":?\\s*(" + AMOUNT + ")\\s+(" + AMOUNT + ")\\s+(" + AMOUNT + ")");
+    private static final Pattern POSITION_PATTERN = Pattern.compile("(\\d+)(\\s)(\\D+)(\\s)(\\d+,{1}\\d+)(\\s)(\\w+.)(\\s)(\\d+,{1}\\d+)(\\s)(\\d{1,2})(\\s)(%)(\\s*)(\\w*)(\\s)([0-9 ]+,\\d{2})(\\s)([0-9 ]+,\\d{2})(\\s)([0-9 ]+,\\d{2})");
+    private static final Pattern ZIP_CODE_PATTERN = Pattern.compile("\\d{2}-\\d{3}(?:\\s.*)?");
+    private static final Pattern STREET_PATTERN = Pattern.compile("(^\\S*)(\\s)(\\S*)(\\s*)(\\w+)(\\/{0,})(\\w{0,})");
+
+    private enum State {
+        SCAN, SELLER, BUYER, POSITIONS_HEADER, POSITIONS, DONE
+    }
+
+    private final Invoice invoice = new Invoice();
+    private final List<Position> positions = new ArrayList<>();
+    private final List<String> companyLines = new ArrayList<>(MAX_COMPANY_LINES);
+    private State state = State.SCAN;
+    private int sectionLine;
+    private boolean sellerFound;
+    private boolean positionsFound;
+    private int skippedPositions;
+
+    public Invoice parse(String[] pdfText) throws ParseException {
+        for (String line : pdfText) {
+            mapHeaderLine(line);
+            mapSectionLine(line);
+        }
+        if (state == State.SELLER || state == State.BUYER) {
+            endCompany();
+        }
+        if (positionsFound) {
+            invoice.setPositions(positions);
+        }
+        return invoice;
+    }
+
+    public Invoice parse(Map<InvoiceRegion, String[]> regions) throws ParseException {
+        for (String line : regions.getOrDefault(InvoiceRegion.HEADER, NO_LINES)) {
+            mapHeaderLine(line);
+        }
+        for (String line : regions.getOrDefault(InvoiceRegion.SUMMARY, NO_LINES)) {
+            mapHeaderLine(line);
+        }
+        invoice.setSeller(createRegionCompany(regions.getOrDefault(InvoiceRegion.SELLER, NO_LINES)));
+        invoice.setBuyer(createRegionCompany(regions.getOrDefault(InvoiceRegion.BUYER, NO_LINES)));
+        if (regions.containsKey(InvoiceRegion.POSITIONS)) {
+            for (String line : regions.get(InvoiceRegion.POSITIONS)) {
+                if (!isPdfBlank(line)) {
+                    addPosition(line.trim());
+                }
+            }
+            invoice.setPositions(positions);
+        }
+        return invoice;
+    }
+
+    private void mapHeaderLine(String line) throws ParseException {
+        if (invoice.getTitle() == null) {
+            int titleIndex = line.indexOf(INVOICE_TITLE_SECTION);
+            if (titleIndex >= 0) {
+                invoice.setTitle(line.substring(titleIndex + INVOICE_TITLE_SECTION.length()));
+                return;
+            }
+        }
+        if (invoice.getSettlementDate() == null && line.contains(SETTLEMENT_DATE)) {
+            Matcher matcher = SETTLEMENT_DATE_PATTERN.matcher(line);
+            if (matcher.find()) {
+                invoice.setSettlementDate(LocalDate.of(Integer.parseInt(matcher.group(3)), Integer.parseInt(matcher.group(2)),
+                        Integer.parseInt(matcher.group(1))));
+            }
+            return;
+        }
+        if (invoice.getAmountNetto() == null && line.contains(SUMMARY)) {
+            Matcher matcher = AMOUNTS_PATTERN.matcher(line);
+            if (matcher.find()) {
+                invoice.setAmountNetto(parseAmount(matcher.group(1)));
+                invoice.setVat(parseAmount(matcher.group(2)));
+                invoice.setAmountBrutto(parseAmount(matcher.group(3)));
+            }
+        }
+    }
+
+    private void mapSectionLine(String line) throws ParseException {
+        switch (state) {
+            case SCAN:
+                if (!sellerFound && line.contains(SELLER_SECTION)) {
+                    sellerFound = true;
+                    startSection(State.SELLER);
+                } else if (!positionsFound && line.contains(POSITIONS_SECTION)) {
+                    positionsFound = true;
+                    startSection(State.POSITIONS_HEADER);
+                }
+                break;
+            case SELLER:
+                if (collectCompanyLine(line)) {
+                    endCompany();
+                }
+                break;
+            case BUYER:
+                if (line.contains(POSITIONS_SECTION)) {
+                    endCompany();
+                    positionsFound = true;
+                    startSection(State.POSITIONS_HEADER);
+                } else if (collectCompanyLine(line)) {
+                    endCompany();
+                }
+                break;
+            case POSITIONS_HEADER:
+                // header cells may wrap to several lines, the table starts with the first line that is a position
+                Position position = createPosition(line);
+                if (position != null) {
+                    positions.add(position);
+                    state = State.POSITIONS;
+                } else if (++sectionLine == MAX_POSITIONS_HEADER_LINES) {
+                    state = sellerFound ? State.DONE : State.SCAN;
+                }
+                break;
+            case POSITIONS:
+                if (isPdfBlank(line)) {
+                    state = sellerFound ? State.DONE : State.SCAN;
+                } else {
+                    addPosition(line);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Number of lines in the positions section that did not match the position pattern.
+     */
+    public int getSkippedPositions() {
+        return skippedPositions;
+    }
+
+    private void addPosition(String line) throws ParseException {
+        Position position = createPosition(line);
+        if (position != null) {
+            positions.add(position);
+        } else {
+            skippedPositions++;
+        }
+    }
+
+    private void startSection(State section) {
+        state = section;
+        sectionLine = 0;
+        companyLines.clear();
+    }
+
+    /**
+     * Collects lines of a company block, which ends with a blank line. Returns whether the block is complete.
+     */
+    private boolean collectCompanyLine(String line) {
+        if (isPdfBlank(line)) {
+            return !companyLines.isEmpty();
+        }
+        companyLines.add(line);
+        return companyLines.size() == MAX_COMPANY_LINES;
+    }
+
+    private void endCompany() {
+        if (state == State.SELLER) {
+            invoice.setSeller(createCompany(companyLines));
+            startSection(State.BUYER);
+        } else {
+            invoice.setBuyer(createCompany(companyLines));
+            state = positionsFound ? State.DONE : State.SCAN;
+        }
+    }
+
+    private Position createPosition(String positionLine) throws ParseException {
+        Matcher matcher = POSITION_PATTERN.matcher(trimPdfString(positionLine));
+        if (matcher.matches()) {
+            return Position.builder()
+                    .name(matcher.group(3))
+                    .amount(parseAmount(matcher.group(5)).intValue())
+                    .unitType(matcher.group(7))
+                    .unitPriceNetto(parseAmount(matcher.group(9)))
+                    .vatPercent(Integer.parseInt(matcher.group(11)))
+                    .gtuCode(matcher.group(15))
+                    .totalAmountNetto(parseAmount(matcher.group(17)))
+                    .totalVat(parseAmount(matcher.group(19)))
+                    .totalAmountBrutto(parseAmount(matcher.group(21)))
+                    .build();
+        }
+
+        return null;
+    }
+
+    private Company createRegionCompany(String[] regionLines) {
+        return createCompany(Arrays.stream(regionLines)
+                .filter(line -> !isPdfBlank(line.trim()) && !line.contains(SELLER_SECTION) && !line.contains(BUYER_SECTION))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Maps a company block. The name is its first line, the address is found by the zip code line and the NIP by its
+     * label, so an additional line (second name line, phone, e-mail) does not shift the other fields.
+     */
+    private static Company createCompany(List<String> lines) {
+        if (lines.isEmpty()) {
+            return null;
+        }
+        int cityLine = -1;
+        int nipLine = -1;
+        for (int i = 1; i < lines.size(); i++) {
+            if (cityLine < 0 && ZIP_CODE_PATTERN.matcher(trimPdfString(lines.get(i)).trim()).matches()) {
+                cityLine = i;
+            } else if (nipLine < 0 && lines.get(i).contains(NIP)) {
+                nipLine = i;
+            }
+        }
+
+        Address address = new Address();
+        if (cityLine > 0) {
+            String[] city = trimPdfString(lines.get(cityLine)).trim().split(" ", 2);
+            address.setZipCode(city[0]);
+            address.setCity(city.length > 1 ? city[1] : null);
+        }
+        Matcher matcher = STREET_PATTERN.matcher(cityLine > 1 ? lines.get(cityLine - 1) : "");
+        if (matcher.matches()) {
+            address.setStreet(matcher.group(1) + matcher.group(2) + matcher.group(3));
+            address.setHouseNumber(matcher.group(5));
+            address.setApartmentNumber(matcher.group(7));
+        }
+        String country = cityLine > 0 && cityLine + 1 < lines.size() && cityLine + 1 != nipLine ? lines.get(cityLine + 1) : null;
+
+        return Company.builder().name(lines.get(0)).country(country).nip(nipLine > 0 ? parseNip(lines.get(nipLine)) : null).address(address).build();
+    }
+
+    static Long parseNip(String nipLine) {
+        long nip = 0;
+        boolean hasDigits = false;
+        for (int i = 0; i < nipLine.length(); i++) {
+            char c = nipLine.charAt(i);
+            if (c >= '0' && c <= '9') {
+                nip = nip * 10 + (c - '0');
+                hasDigits = true;
+            }
+        }
+        return hasDigits ? nip : null;
+    }
+
+    /**
+     * Parses an amount with a decimal comma. A dot groups thousands only if a decimal comma follows or every group after
+     * it has exactly three digits, otherwise it is the decimal point - "1.250,00" and "1.250" are 1250, "12.50" is 12.50.
+     */
+    public static BigDecimal parseAmount(String number) throws ParseException {
+        char[] digits = new char[number.length()];
+        int length = 0;
+        int decimalComma = number.indexOf(',');
+        boolean dotGroupsThousands = decimalComma >= 0 || hasThousandGroups(number);
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if ((c >= '0' && c <= '9') || (c == '-' && length == 0)) {
+                digits[length++] = c;
+            } else if (c == ',') {
+                digits[length++] = '.';
+            } else if (c == '.') {
+                if (!dotGroupsThousands || i > decimalComma && decimalComma >= 0) {
+                    // a second decimal point makes the number unparseable below
+                    digits[length++] = '.';
+                }
+            } else if (!isGroupingSeparator(c)) {
+                throw new ParseException("Unparseable amount: \"" + number + "\"", i);
+            }
+        }
+        try {
+            return new BigDecimal(digits, 0, length);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Unparseable amount: \"" + number + "\"", 0);
+        }
+    }
+
+    private static boolean hasThousandGroups(String number) {
+        for (int dot = number.indexOf('.'); dot >= 0; dot = number.indexOf('.', dot + 1)) {
+            int groupDigits = 0;
+            for (int i = dot + 1; i < number.length() && number.charAt(i) >= '0' && number.charAt(i) <= '9'; i++) {
+                groupDigits++;
+            }
+            if (groupDigits != 3) {
+                return false;
+            }
+        }
+        return number.indexOf('.') >= 0;
+    }
+
+    private static boolean isGroupingSeparator(char c) {
+        return c == ' ' || c == PDF_WHITE_SPACE || c == '\u202F';
+    }
+
+    private static boolean isPdfBlank(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) != PDF_WHITE_SPACE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String trimPdfString(String input) {
+        return input.indexOf(PDF_WHITE_SPACE) < 0 ? input : input.replace(String.valueOf(PDF_WHITE_SPACE), "");
+    }
+}
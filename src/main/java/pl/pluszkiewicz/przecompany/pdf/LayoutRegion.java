@@ -0,0 +1,29 @@
+package pl.pluszkiewicz.przecompany.pdf;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.awt.geom.Rectangle2D;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class LayoutRegion {
+    private InvoiceRegion region;
+    private Page page;
+    private float x;
+    private float y;
+    private float width;
+    private float height;
+
+    public Rectangle2D toRectangle() {
+        return new Rectangle2D.Float(x, y, width, height);
+    }
+
+    public enum Page {
+        FIRST, LAST, ALL
+    }
+}
@@ -0,0 +1,73 @@
+package pl.pluszkiewicz.przecompany.pdf;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripperByArea;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Layout of invoices issued by one seller. Markers are looked up in the first page fingerprint, regions are given
+ * in PDF points measured from the top left corner of a page.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class LayoutTemplate {
+    private String name;
+    private List<String> markers;
+    private List<LayoutRegion> regions;
+
+    public boolean matches(String fingerprint) {
+        return markers != null && !markers.isEmpty() && markers.stream().allMatch(fingerprint::contains);
+    }
+
+    public Map<InvoiceRegion, String[]> extractRegions(PDDocument document) throws IOException {
+        int lastPage = document.getNumberOfPages() - 1;
+        Map<InvoiceRegion, StringBuilder> texts = new EnumMap<>(InvoiceRegion.class);
+        for (int pageIndex = 0; pageIndex <= lastPage; pageIndex++) {
+            PDFTextStripperByArea stripper = null;
+            for (LayoutRegion region : regions) {
+                if (isOnPage(region, pageIndex, lastPage)) {
+                    if (stripper == null) {
+                        stripper = new PDFTextStripperByArea();
+                        stripper.setSortByPosition(true);
+                    }
+                    stripper.addRegion(region.getRegion().name(), region.toRectangle());
+                }
+            }
+            if (stripper != null) {
+                stripper.extractRegions(document.getPage(pageIndex));
+                for (String regionName : stripper.getRegions()) {
+                    texts.computeIfAbsent(InvoiceRegion.valueOf(regionName), name -> new StringBuilder())
+                            .append(stripper.getTextForRegion(regionName));
+                }
+            }
+        }
+
+        Map<InvoiceRegion, String[]> regionLines = new EnumMap<>(InvoiceRegion.class);
+        texts.forEach((region, text) -> regionLines.put(region, text.toString().split("\\r?\\n")));
+        return regionLines;
+    }
+
+    private static boolean isOnPage(LayoutRegion region, int pageIndex, int lastPage) {
+        if (region.getPage() == null) {
+            return pageIndex == 0;
+        }
+        switch (region.getPage()) {
+            case ALL:
+                return true;
+            case LAST:
+                return pageIndex == lastPage;
+            default:
+                return pageIndex == 0;
+        }
+    }
+}
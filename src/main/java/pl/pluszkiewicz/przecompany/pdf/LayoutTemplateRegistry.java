@@ -0,0 +1,73 @@
+package pl.pluszkiewicz.przecompany.pdf;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.text.PDFTextStripperByArea;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.stereotype.Component;
+
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Layout templates from pdf.layouts.location. Loaded on startup despite lazy initialization, so an invalid layout file
+ * fails the startup and not the first import. No templates ship with the application - a template is added as a JSON
+ * file per seller layout, until then invoices of that seller are read by the full text parser.
+ */
+@Component
+@Lazy(false)
+public class LayoutTemplateRegistry {
+    public static final float FINGERPRINT_HEIGHT = 150;
+    private static final String FINGERPRINT_REGION = "fingerprint";
+
+    private final List<LayoutTemplate> templates;
+
+    @Autowired
+    public LayoutTemplateRegistry(@Value("${pdf.layouts.location:classpath*:layouts/*.json}") String location) {
+        this(loadTemplates(location));
+    }
+
+    public LayoutTemplateRegistry(List<LayoutTemplate> templates) {
+        this.templates = List.copyOf(templates);
+    }
+
+    public Optional<LayoutTemplate> match(PDDocument document) throws IOException {
+        if (templates.isEmpty() || document.getNumberOfPages() == 0) {
+            return Optional.empty();
+        }
+        String fingerprint = fingerprint(document.getPage(0));
+        return templates.stream().filter(template -> template.matches(fingerprint)).findFirst();
+    }
+
+    private static String fingerprint(PDPage firstPage) throws IOException {
+        PDFTextStripperByArea stripper = new PDFTextStripperByArea();
+        stripper.addRegion(FINGERPRINT_REGION, new Rectangle2D.Float(0, 0, firstPage.getMediaBox().getWidth(), FINGERPRINT_HEIGHT));
+        stripper.extractRegions(firstPage);
+        return stripper.getTextForRegion(FINGERPRINT_REGION);
+    }
+
+    private static List<LayoutTemplate> loadTemplates(String location) {
+        ObjectMapper objectMapper = new ObjectMapper();
+        List<LayoutTemplate> templates = new ArrayList<>();
+        try {
+            for (Resource resource : new PathMatchingResourcePatternResolver().getResources(location)) {
+                try (InputStream inputStream = resource.getInputStream()) {
+                    templates.add(objectMapper.readValue(inputStream, LayoutTemplate.class));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot load invoice layout templates from " + location, e);
+        }
+        return templates;
+    }
+}
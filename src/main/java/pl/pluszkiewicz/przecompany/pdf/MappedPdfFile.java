@@ -0,0 +1,127 @@
+package pl.pluszkiewicz.przecompany.pdf;
+
+import org.apache.pdfbox.io.RandomAccessRead;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read only view of a PDF file mapped into memory, so PDFBox reads it straight from the page cache.
+ */
+final class MappedPdfFile implements RandomAccessRead {
+    private final MappedByteBuffer buffer;
+    private boolean closed;
+
+    private MappedPdfFile(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    static MappedPdfFile map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("PDF file is too large to be mapped: " + path);
+            }
+            return new MappedPdfFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes) throws IOException {
+        return read(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        checkClosed();
+        if (length == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public long getPosition() throws IOException {
+        checkClosed();
+        return buffer.position();
+    }
+
+    @Override
+    public void seek(long position) throws IOException {
+        checkClosed();
+        if (position < 0) {
+            throw new IOException("Invalid position " + position);
+        }
+        buffer.position((int) Math.min(position, buffer.limit()));
+    }
+
+    @Override
+    public long length() throws IOException {
+        checkClosed();
+        return buffer.limit();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public int peek() throws IOException {
+        checkClosed();
+        return buffer.hasRemaining() ? buffer.get(buffer.position()) & 0xFF : -1;
+    }
+
+    @Override
+    public void rewind(int bytes) throws IOException {
+        seek(getPosition() - bytes);
+    }
+
+    @Override
+    public byte[] readFully(int length) throws IOException {
+        checkClosed();
+        if (length > buffer.remaining()) {
+            throw new EOFException("Premature end of file");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public boolean isEOF() throws IOException {
+        checkClosed();
+        return !buffer.hasRemaining();
+    }
+
+    @Override
+    public int available() throws IOException {
+        checkClosed();
+        return buffer.remaining();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    private void checkClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Mapped PDF file already closed");
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package pl.pluszkiewicz.przecompany.pdf;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccess;
+import org.apache.pdfbox.io.ScratchFile;
+import org.springframework.core.io.buffer.DataBuffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Raw bytes of a PDF kept in PDFBox scratch pages - in memory up to the configured limit, spilled to a scratch file above it.
+ * SHA-256 of the content is computed while it is written. Consumed by {@link PdfReadService#readPdf(PdfContent)}.
+ */
+public final class PdfContent implements Closeable {
+    private static final int CHUNK_SIZE = 8192;
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final ScratchFile scratchFile;
+    private final RandomAccess buffer;
+    private final MessageDigest digest;
+    private String contentHash;
+
+    PdfContent(MemoryUsageSetting memoryUsageSetting) throws IOException {
+        this.scratchFile = new ScratchFile(memoryUsageSetting);
+        this.buffer = scratchFile.createBuffer();
+        this.digest = newDigest();
+    }
+
+    void write(DataBuffer dataBuffer) throws IOException {
+        ByteBuffer byteBuffer = dataBuffer.asByteBuffer();
+        if (byteBuffer.hasArray()) {
+            append(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), byteBuffer.remaining());
+        } else {
+            byte[] chunk = new byte[Math.min(byteBuffer.remaining(), CHUNK_SIZE)];
+            while (byteBuffer.hasRemaining()) {
+                int length = Math.min(byteBuffer.remaining(), chunk.length);
+                byteBuffer.get(chunk, 0, length);
+                append(chunk, 0, length);
+            }
+        }
+    }
+
+    void write(InputStream inputStream) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int length;
+        while ((length = inputStream.read(chunk)) != -1) {
+            append(chunk, 0, length);
+        }
+    }
+
+    private void append(byte[] bytes, int offset, int length) throws IOException {
+        buffer.write(bytes, offset, length);
+        digest.update(bytes, offset, length);
+    }
+
+    public String getContentHash() {
+        if (contentHash == null) {
+            byte[] hash = digest.digest();
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+            }
+            contentHash = new String(hex);
+        }
+        return contentHash;
+    }
+
+    public long length() throws IOException {
+        return buffer.length();
+    }
+
+    RandomAccess getBuffer() {
+        return buffer;
+    }
+
+    ScratchFile getScratchFile() {
+        return scratchFile;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " is not available", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            buffer.close();
+        } finally {
+            scratchFile.close();
+        }
+    }
+}
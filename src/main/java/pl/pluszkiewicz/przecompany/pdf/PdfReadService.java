@@ -1,184 +1,209 @@
 package pl.pluszkiewicz.przecompany.pdf;
 
-import org.apache.commons.compress.utils.Lists;
-import org.apache.logging.log4j.util.Strings;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.io.ScratchFile;
+import org.apache.pdfbox.pdfparser.PDFParser;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.text.PDFTextStripper;
-import org.apache.pdfbox.text.PDFTextStripperByArea;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.stereotype.Service;
-import pl.pluszkiewicz.przecompany.company.Address;
-import pl.pluszkiewicz.przecompany.company.Company;
+import org.springframework.util.unit.DataSize;
 import pl.pluszkiewicz.przecompany.invoice.Invoice;
-import pl.pluszkiewicz.przecompany.invoice.Position;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 
 import java.io.File;
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.text.ParseException;
-import java.time.LocalDate;
-import java.util.Arrays;
-import java.util.List;
-import java.util.OptionalInt;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.IntStream;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 @Service
 public class PdfReadService {
-    public static final String SETTLEMENT_DATE = "Data wystawienia";
-    public static final String SUMMARY = "Razem";
-    public static final String PDF_WHITE_SPACE = "\u00A0";
-    public static final String POSITIONS_SECTION = "Lp Nazwa";
-    public static final String SELLER_SECTION = "Sprzedawca";
-    public static final String NIP_PREFIX = "NIP: ";
-    public static final String INVOICE_TITLE_SECTION = "Faktura: ";
+    public static final String READ_TIMER = "invoice.pdf.read";
+    public static final String PARSE_FAILURES_COUNTER = "invoice.pdf.parse.failures";
+
+    private final MemoryUsageSetting memoryUsageSetting;
+    private final LayoutTemplateRegistry layoutTemplateRegistry;
+    private final MeterRegistry meterRegistry;
+    private final Timer parseTimer;
+    private final Timer layoutTimer;
+    private final Timer textTimer;
+    private final Timer mapTimer;
+
+    public PdfReadService(@Value("${pdf.read.max-main-memory:16MB}") DataSize maxMainMemory, LayoutTemplateRegistry layoutTemplateRegistry,
+            MeterRegistry meterRegistry) {
+        this.memoryUsageSetting = MemoryUsageSetting.setupMixed(maxMainMemory.toBytes());
+        this.layoutTemplateRegistry = layoutTemplateRegistry;
+        this.meterRegistry = meterRegistry;
+        this.parseTimer = stageTimer("parse");
+        this.layoutTimer = stageTimer("layout");
+        this.textTimer = stageTimer("text");
+        this.mapTimer = stageTimer("map");
+    }
 
     public Invoice mapToInvoice(String[] pdfText) throws ParseException {
-        Invoice invoice = new Invoice();
-        mapTitle(pdfText, invoice);
-        mapAmounts(pdfText, invoice);
-        mapSettlementDate(pdfText, invoice);
-        mapCompanies(pdfText, invoice);
-        mapPositions(pdfText, invoice);
+        return new InvoiceTextParser().parse(pdfText);
+    }
 
-        return invoice;
+    public Invoice readInvoice(File pdfFile) throws IOException, ParseException {
+        return load(MappedPdfFile.map(pdfFile.toPath()), new ScratchFile(memoryUsageSetting), this::readInvoice);
     }
 
-    private void mapTitle(String[] pdfText, Invoice invoice) {
-        String invoiceTitle = Arrays.stream(pdfText).filter(line -> line.contains(INVOICE_TITLE_SECTION)).findFirst().orElse(Strings.EMPTY);
-        invoice.setTitle(invoiceTitle.substring(INVOICE_TITLE_SECTION.length()));
+    public Invoice readInvoice(PdfContent pdfContent) throws IOException, ParseException {
+        try (pdfContent) {
+            pdfContent.getBuffer().seek(0);
+            return load(pdfContent.getBuffer(), pdfContent.getScratchFile(), this::readInvoice);
+        }
     }
 
     public String[] readPdf(File pdfFile) throws IOException {
-        try (PDDocument document = PDDocument.load(pdfFile)) {
-            if (!document.isEncrypted()) {
-                PDFTextStripperByArea stripper = new PDFTextStripperByArea();
-                stripper.setSortByPosition(true);
-                PDFTextStripper tStripper = new PDFTextStripper();
-                String pdfFileInText = tStripper.getText(document);
-                return pdfFileInText.split("\\r?\\n");
-            }
-        }
-        return new String[0];
+        return loadText(MappedPdfFile.map(pdfFile.toPath()), new ScratchFile(memoryUsageSetting));
     }
 
-    private void mapPositions(String[] pdfText, Invoice invoice) throws ParseException {
-        OptionalInt positionsStart = IntStream.range(0, pdfText.length).filter(index -> pdfText[index].contains(POSITIONS_SECTION)).findFirst();
-        if (positionsStart.isPresent()) {
-            int index = positionsStart.getAsInt() + 5;
-            List<Position> positions = Lists.newArrayList();
-            while (!trimPdfString(pdfText[index]).isEmpty()) {
-                positions.add(createPosition(pdfText[index]));
-                index++;
-            }
-            invoice.setPositions(positions);
-        }
+    public String[] readPdf(InputStream pdfStream) throws IOException {
+        return readPdf(bufferPdf(pdfStream));
     }
 
-    private Position createPosition(String positionLine) throws ParseException {
-        String positionRegex = "(\\d+)(\\s)(\\D+)(\\s)(\\d+,{1}\\d+)(\\s)(\\w+.)(\\s)(\\d+,{1}\\d+)(\\s)(\\d{1,2})(\\s)(%)(\\s*)(\\w*)(\\s)([0-9 ]+,\\d{2})(\\s)([0-9 ]+,\\d{2})(\\s)([0-9 ]+,\\d{2})";
-        Matcher matcher = compilePattern(trimPdfString(positionLine), positionRegex);
-        if (matcher.matches()) {
-            return Position.builder()
-                    .name(matcher.group(3))
-                    .amount((int) parseToDouble(matcher.group(5)))
-                    .unitType(matcher.group(7))
-                    .unitPriceNetto(BigDecimal.valueOf(parseToDouble(matcher.group(9))))
-                    .vatPercent(Integer.parseInt(matcher.group(11)))
-                    .gtuCode(matcher.group(15))
-                    .totalAmountNetto(BigDecimal.valueOf(parseToDouble(matcher.group(17))))
-                    .totalVat(BigDecimal.valueOf(parseToDouble(matcher.group(19))))
-                    .totalAmountBrutto(BigDecimal.valueOf(parseToDouble(matcher.group(21))))
-                    .build();
+    public String[] readPdf(PdfContent pdfContent) throws IOException {
+        try (pdfContent) {
+            pdfContent.getBuffer().seek(0);
+            return loadText(pdfContent.getBuffer(), pdfContent.getScratchFile());
         }
+    }
 
-        return null;
+    public Mono<String[]> readPdf(Flux<DataBuffer> pdfContent, Scheduler scheduler) {
+        return bufferPdf(pdfContent, scheduler)
+                .flatMap(content -> Mono.fromCallable(() -> readPdf(content)));
     }
 
-    private void mapCompanies(String[] pdfText, Invoice invoice) {
-        int sellerStart = 0;
-        int buyerStart = 0;
-        int sectionEnd = 0;
+    public PdfContent bufferPdf(InputStream pdfStream) throws IOException {
+        PdfContent pdfContent = new PdfContent(memoryUsageSetting);
+        try {
+            pdfContent.write(pdfStream);
+            return pdfContent;
+        } catch (IOException e) {
+            pdfContent.close();
+            throw e;
+        }
+    }
 
-        for (int i = 0; i < pdfText.length; i++) {
-            if (pdfText[i].contains(SELLER_SECTION)) {
-                sellerStart = i + 1;
-            }
+    public Mono<PdfContent> bufferPdf(Flux<DataBuffer> pdfContent, Scheduler scheduler) {
+        return Mono.fromCallable(() -> new PdfContent(memoryUsageSetting))
+                .flatMap(content -> pdfContent
+                        .publishOn(scheduler)
+                        .doOnNext(dataBuffer -> write(content, dataBuffer))
+                        .doOnDiscard(DataBuffer.class, DataBufferUtils::release)
+                        .then(Mono.just(content))
+                        .doOnError(e -> IOUtils.closeQuietly(content))
+                        .doOnCancel(() -> IOUtils.closeQuietly(content)));
+    }
 
-            if (trimPdfString(pdfText[i]).isEmpty() && sellerStart != 0) {
-                if (buyerStart == 0) {
-                    buyerStart = i;
-                } else if (sectionEnd == 0) {
-                    sectionEnd = i - 1;
-                }
+    private Invoice readInvoice(PDDocument document) throws IOException, ParseException {
+        if (document.isEncrypted()) {
+            countParseFailure("encrypted", 1);
+            throw new IOException("Encrypted PDF document");
+        }
+        InvoiceTextParser parser = new InvoiceTextParser();
+        Invoice invoice;
+        try {
+            Optional<LayoutTemplate> layoutTemplate = time(layoutTimer, () -> layoutTemplateRegistry.match(document));
+            if (layoutTemplate.isPresent()) {
+                Map<InvoiceRegion, String[]> regions = time(textTimer, () -> layoutTemplate.get().extractRegions(document));
+                invoice = time(mapTimer, () -> parser.parse(regions));
+            } else {
+                String[] pdfText = time(textTimer, () -> extractText(document));
+                invoice = time(mapTimer, () -> parser.parse(pdfText));
             }
+        } catch (ParseException e) {
+            countParseFailure("unparseable", 1);
+            throw e;
         }
-
-        Company seller = getCompanyData(pdfText, sellerStart);
-        Company buyer = getCompanyData(pdfText, buyerStart + 1);
-
-        invoice.setSeller(seller);
-        invoice.setBuyer(buyer);
+        countParseFailures(parser, invoice);
+        return invoice;
     }
 
-    private Company getCompanyData(String[] pdfText, int startReadIndex) {
-        String[] city = pdfText[startReadIndex + 2].split(" ");
-        Address sellerAddress = Address.builder().zipCode(city[0]).city(city[1]).build();
+    private void countParseFailures(InvoiceTextParser parser, Invoice invoice) {
+        countParseFailure("position", parser.getSkippedPositions());
+        countParseFailure("title", invoice.getTitle() == null ? 1 : 0);
+        countParseFailure("settlement-date", invoice.getSettlementDate() == null ? 1 : 0);
+        countParseFailure("amounts", invoice.getAmountBrutto() == null ? 1 : 0);
+        countParseFailure("seller", invoice.getSeller() == null ? 1 : 0);
+        countParseFailure("buyer", invoice.getBuyer() == null ? 1 : 0);
+    }
 
-        String street = pdfText[startReadIndex + 1];
-        String streetRegex = "(^\\S*)(\\s)(\\S*)(\\s*)(\\w+)(\\/{0,})(\\w{0,})";
-        Matcher matcher = compilePattern(street, streetRegex);
-        if (matcher.matches()) {
-            sellerAddress.setStreet(matcher.group(1) + matcher.group(2) + matcher.group(3));
-            sellerAddress.setHouseNumber(matcher.group(5));
-            sellerAddress.setApartmentNumber(matcher.group(7));
+    private void countParseFailure(String reason, int count) {
+        if (count > 0) {
+            meterRegistry.counter(PARSE_FAILURES_COUNTER, "reason", reason).increment(count);
         }
+    }
 
-        return Company.builder().name(pdfText[startReadIndex]).country(pdfText[startReadIndex + 3]).nip(getNip(pdfText[startReadIndex + 4]))
-                .address(sellerAddress).build();
+    private Timer stageTimer(String stage) {
+        return Timer.builder(READ_TIMER).tag("stage", stage).register(meterRegistry);
     }
 
-    private Long getNip(String nipString) {
-        return Long.parseLong(nipString.replaceAll(NIP_PREFIX, ""));
+    private String[] loadText(RandomAccessRead source, ScratchFile scratchFile) throws IOException {
+        return load(source, scratchFile, document -> time(textTimer, () -> extractText(document)));
     }
 
-    private void mapSettlementDate(String[] pdfText, Invoice invoice) {
-        String settlementDateLine = Arrays.stream(pdfText).filter(text -> text.contains(SETTLEMENT_DATE)).findFirst().orElse(Strings.EMPTY);
-        String settlementDatePattern = "([" + SETTLEMENT_DATE + ":]+\\s)(\\d+)(.{1})(\\d+)(.{1})(\\d+)([^\\\\W]+)";
-        Matcher matcher = compilePattern(settlementDateLine, settlementDatePattern);
-        if (matcher.matches()) {
-            invoice.setSettlementDate(LocalDate.of(Integer.parseInt(matcher.group(6)), Integer.parseInt(matcher.group(4)),
-                    Integer.parseInt(matcher.group(2))));
+    private <T, E extends Exception> T load(RandomAccessRead source, ScratchFile scratchFile, DocumentReader<T, E> reader) throws IOException, E {
+        try (source; scratchFile) {
+            PDFParser parser = new PDFParser(source, scratchFile);
+            time(parseTimer, () -> {
+                parser.parse();
+                return parser;
+            });
+            try (PDDocument document = parser.getPDDocument()) {
+                return reader.read(document);
+            }
+        }
+    }
+
+    private String[] extractText(PDDocument document) throws IOException {
+        if (!document.isEncrypted()) {
+            PDFTextStripper tStripper = new PDFTextStripper();
+            String pdfFileInText = tStripper.getText(document);
+            return pdfFileInText.split("\\r?\\n");
         }
+        return new String[0];
     }
 
-    private void mapAmounts(String[] pdfText, Invoice invoice) throws ParseException {
-        String totalAmountsLine = Arrays.stream(pdfText).filter(text -> text.contains(SUMMARY)).findFirst().orElse(Strings.EMPTY);
-        String amountsPattern = "([" + SUMMARY + ":]+\\s)(\\d+[^\\s]?\\d+,\\d{2})(\\s{1})(\\d+[^\\s]?\\d+,\\d{2})(\\s{1})(\\d+[^\\s]?\\d+,\\d{2})";
-        Matcher matcher = compilePattern(totalAmountsLine, amountsPattern);
-        if (matcher.matches()) {
-            invoice.setAmountNetto(BigDecimal.valueOf(parseToDouble(matcher.group(2).trim())));
-            invoice.setVat(BigDecimal.valueOf(parseToDouble(matcher.group(4).trim())));
-            invoice.setAmountBrutto(BigDecimal.valueOf(parseToDouble(matcher.group(6).trim())));
+    private static void write(PdfContent content, DataBuffer dataBuffer) {
+        try {
+            content.write(dataBuffer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            DataBufferUtils.release(dataBuffer);
         }
     }
 
-    private Matcher compilePattern(String line, String regex) {
-        Pattern pattern = Pattern.compile(regex);
-        return pattern.matcher(line);
+    private static <T, E extends Exception> T time(Timer timer, Stage<T, E> stage) throws IOException, E {
+        long start = System.nanoTime();
+        try {
+            return stage.run();
+        } finally {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
     }
 
-    private double parseToDouble(String number) throws ParseException {
-        DecimalFormat df = new DecimalFormat();
-        DecimalFormatSymbols sfs = new DecimalFormatSymbols();
-        sfs.setDecimalSeparator(',');
-        df.setDecimalFormatSymbols(sfs);
-        return df.parse(number).doubleValue();
+    @FunctionalInterface
+    private interface DocumentReader<T, E extends Exception> {
+        T read(PDDocument document) throws IOException, E;
     }
 
-    private String trimPdfString(String input) {
-        return input.replaceAll(PDF_WHITE_SPACE, Strings.EMPTY);
+    @FunctionalInterface
+    private interface Stage<T, E extends Exception> {
+        T run() throws IOException, E;
     }
 }
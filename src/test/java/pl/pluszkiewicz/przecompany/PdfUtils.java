@@ -0,0 +1,55 @@
+package pl.pluszkiewicz.przecompany;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class PdfUtils {
+    private static final float FONT_SIZE = 10;
+    private static final float LEADING = 12;
+    private static final float MARGIN = 40;
+
+    public static byte[] createPdf(String... lines) {
+        return createPdf(new TextBlock(MARGIN, MARGIN, lines));
+    }
+
+    public static byte[] createPdf(TextBlock... blocks) {
+        try (PDDocument document = new PDDocument(); ByteArrayOutputStream output = new ByteArrayOutputStream()) {
+            PDPage page = new PDPage();
+            document.addPage(page);
+            try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                for (TextBlock block : blocks) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, FONT_SIZE);
+                    content.setLeading(LEADING);
+                    content.newLineAtOffset(block.x, page.getMediaBox().getHeight() - block.y - FONT_SIZE);
+                    for (String line : block.lines) {
+                        content.showText(line);
+                        content.newLine();
+                    }
+                    content.endText();
+                }
+            }
+            document.save(output);
+            return output.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot create PDF document");
+        }
+    }
+
+    public static class TextBlock {
+        private final float x;
+        private final float y;
+        private final String[] lines;
+
+        public TextBlock(float x, float y, String... lines) {
+            this.x = x;
+            this.y = y;
+            this.lines = lines;
+        }
+    }
+}
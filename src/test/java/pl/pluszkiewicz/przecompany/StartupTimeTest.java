@@ -0,0 +1,63 @@
+package pl.pluszkiewicz.przecompany;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.ClassUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Starts the whole application against the embedded Mongo. The median startup time is measured only in the
+ * startup-tests profile, a wall clock budget would make the default build flaky:
+ * mvn -Pstartup-tests test [-Dstartup.max-time=PT10S -Dstartup.runs=5]
+ */
+class StartupTimeTest {
+    private static final Duration MAX_STARTUP_TIME = Duration.parse(System.getProperty("startup.max-time", "PT10S"));
+    private static final int RUNS = Integer.getInteger("startup.runs", 3);
+
+    @Test
+    @Tag("startup")
+    public void shouldStartWithinBudget() {
+        //given
+        start().close();
+
+        //when
+        List<Duration> startupTimes = new ArrayList<>();
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            ConfigurableApplicationContext context = start();
+            startupTimes.add(Duration.ofNanos(System.nanoTime() - start));
+            context.close();
+        }
+        Collections.sort(startupTimes);
+
+        //then
+        assertThat(startupTimes.get(startupTimes.size() / 2)).isLessThanOrEqualTo(MAX_STARTUP_TIME);
+    }
+
+    @Test
+    public void shouldInitializeBeansLazily() {
+        //when
+        try (ConfigurableApplicationContext context = start()) {
+
+            //then
+            assertThat(context.getBeanFactory().getBeanDefinition("invoiceController").isLazyInit()).isTrue();
+            assertThat(context.getBeanFactory().containsSingleton("invoiceController")).isFalse();
+            assertThat(ClassUtils.isPresent("org.springframework.data.rest.core.config.RepositoryRestConfiguration", null)).isFalse();
+            assertThat(ClassUtils.isPresent("org.springframework.web.servlet.DispatcherServlet", null)).isFalse();
+        }
+    }
+
+    private static ConfigurableApplicationContext start() {
+        return new SpringApplicationBuilder(PrzeCompanyApplication.class)
+                .properties("server.port=0")
+                .run();
+    }
+}
@@ -0,0 +1,77 @@
+package pl.pluszkiewicz.przecompany.company;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CompanyServiceTest {
+    private CompanyRepository companyRepository;
+    private CompanyService companyService;
+
+    @BeforeEach
+    public void setUp() {
+        companyRepository = Mockito.mock(CompanyRepository.class);
+        Map<String, Company> storedCompanies = new ConcurrentHashMap<>();
+        when(companyRepository.findById(anyString()))
+                .thenAnswer(invocation -> Mono.justOrEmpty(storedCompanies.get(invocation.<String>getArgument(0))));
+        when(companyRepository.save(any(Company.class))).thenAnswer(invocation -> {
+            Company company = invocation.getArgument(0);
+            storedCompanies.put(company.getId(), company);
+            return Mono.just(company);
+        });
+        companyService = new CompanyService(companyRepository, 100);
+    }
+
+    @Test
+    public void shouldRegisterOnlyNewAndChangedCompanies() {
+        //given
+        Company acme = company("ACME", "Kraków", 1234567890L);
+        Company movedAcme = company("ACME", "Warszawa", 1234567890L);
+
+        //when
+        companyService.register(List.of(acme, company("ACME", "Kraków", 1234567890L), Company.builder().nip(9876543210L).build(),
+                company("NO NIP", "Kraków", null))).block();
+        companyService.register(List.of(company("ACME", "Kraków", 1234567890L))).block();
+        companyService.register(List.of(movedAcme)).block();
+
+        //then
+        verify(companyRepository, times(2)).save(any(Company.class));
+        assertThat(companyService.getCompany(1234567890L).block().getAddress().getCity()).isEqualTo("Warszawa");
+        assertThat(companyService.getCompany(9876543210L).blockOptional()).isEmpty();
+    }
+
+    @Test
+    public void shouldShareInstancesOfEqualCompanies() {
+        //given
+        companyService.saveCompany(1234567890L, company("ACME", "Kraków", 1234567890L)).block();
+
+        //when
+        Company first = companyService.join(companyService.reference(company("ACME", "Kraków", 1234567890L))).block();
+        Company second = companyService.join(Company.builder().nip(1234567890L).build()).block();
+        Company unknown = companyService.join(Company.builder().nip(9876543210L).build()).block();
+
+        //then
+        assertThat(first).isSameAs(second);
+        assertThat(first.getName()).isEqualTo("ACME");
+        assertThat(companyService.reference(first)).isSameAs(companyService.reference(second));
+        assertThat(companyService.intern(company("ACME", "Kraków", null))).isSameAs(companyService.intern(company("ACME", "Kraków", null)));
+        assertThat(unknown.getNip()).isEqualTo(9876543210L);
+        verify(companyRepository, times(1)).findById(anyString());
+    }
+
+    private static Company company(String name, String city, Long nip) {
+        return Company.builder().name(name).country("Polska").nip(nip).address(Address.builder().city(city).build()).build();
+    }
+}
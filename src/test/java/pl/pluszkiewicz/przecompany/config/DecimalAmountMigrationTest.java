@@ -0,0 +1,87 @@
+package pl.pluszkiewicz.przecompany.config;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Decimal128;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import pl.pluszkiewicz.przecompany.invoice.Invoice;
+import pl.pluszkiewicz.przecompany.invoice.Position;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DecimalAmountMigrationTest {
+
+    @Test
+    public void shouldWriteAmountsAsDecimal128AndReadBothRepresentations() {
+        //given
+        MappingMongoConverter converter = mappingConverter();
+        Invoice invoice = Invoice.builder().id("1").amountBrutto(new BigDecimal("1476.00"))
+                .positions(List.of(Position.builder().totalVat(new BigDecimal("46.00")).build())).build();
+
+        //when
+        Document written = new Document();
+        converter.write(invoice, written);
+        Invoice read = converter.read(Invoice.class, written);
+        Invoice legacy = converter.read(Invoice.class, new Document("_id", "2").append("amountBrutto", "1476.00"));
+
+        //then
+        assertThat(written.get("amountBrutto")).isEqualTo(new Decimal128(new BigDecimal("1476.00")));
+        assertThat(written.getList("positions", Document.class).get(0).get("totalVat")).isEqualTo(new Decimal128(new BigDecimal("46.00")));
+        assertThat(read.getAmountBrutto()).isEqualTo(new BigDecimal("1476.00"));
+        assertThat(read.getPositions().get(0).getTotalVat()).isEqualTo(new BigDecimal("46.00"));
+        assertThat(legacy.getAmountBrutto()).isEqualTo(new BigDecimal("1476.00"));
+    }
+
+    @Test
+    public void shouldConvertStringAmountsOfInvoiceAndPositions() {
+        //given
+        Document invoice = new Document("_id", "1")
+                .append("title", "FV/1/2020")
+                .append("amountNetto", "1200.00")
+                .append("vat", new Decimal128(new BigDecimal("276.00")))
+                .append("positions", List.of(new Document("name", "Hosting").append("totalVat", "230.00").append("vatPercent", 23)));
+
+        //when
+        List<WriteModel<Document>> updates = DecimalAmountMigration.migrationUpdates(invoice);
+
+        //then
+        assertThat(updates).hasSize(2);
+        assertThat(render(((UpdateOneModel<Document>) updates.get(0)).getFilter()))
+                .isEqualTo(stringAmountOf("1", "amountNetto"));
+        assertThat(render(((UpdateOneModel<Document>) updates.get(0)).getUpdate()))
+                .isEqualTo(new Document("$set", new Document("amountNetto", new Decimal128(new BigDecimal("1200.00")))));
+        assertThat(render(((UpdateOneModel<Document>) updates.get(1)).getFilter()))
+                .isEqualTo(stringAmountOf("1", "positions.0.totalVat"));
+        assertThat(render(((UpdateOneModel<Document>) updates.get(1)).getUpdate()))
+                .isEqualTo(new Document("$set", new Document("positions.0.totalVat", new Decimal128(new BigDecimal("230.00")))));
+    }
+
+    private static Document stringAmountOf(String id, String field) {
+        return new Document("$and", List.of(new Document("_id", id), new Document(field, new Document("$type", 2))));
+    }
+
+    private static Document render(Bson bson) {
+        return Document.parse(bson.toBsonDocument(Document.class, MongoClientSettings.getDefaultCodecRegistry()).toJson());
+    }
+
+    private static MappingMongoConverter mappingConverter() {
+        MongoCustomConversions conversions = new MongoConfiguration().mongoCustomConversions();
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        mappingContext.afterPropertiesSet();
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+        return converter;
+    }
+}
@@ -7,13 +7,26 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import org.springframework.web.reactive.function.BodyInserters;
+import pl.pluszkiewicz.przecompany.company.Address;
+import pl.pluszkiewicz.przecompany.company.Company;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
 
+import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
@@ -27,9 +40,13 @@ class InvoiceControllerTest {
     @Autowired
     private InvoiceRepository invoiceRepository;
 
+    @Autowired
+    private InvoiceCache invoiceCache;
+
     @BeforeEach
     public void cleanUp() {
-        invoiceRepository.deleteAll().subscribe();
+        invoiceRepository.deleteAll().block();
+        invoiceCache.invalidateAll();
     }
 
     @Test
@@ -184,4 +201,402 @@ class InvoiceControllerTest {
                 .expectBodyList(Invoice.class).hasSize(0);
     }
 
+    @Test
+    public void shouldListFirstAndLastDayOfMonthLikeStats() {
+        //given
+        invoiceRepository.saveAll(Lists.newArrayList(
+                Invoice.builder().id("M0").settlementDate(LocalDate.of(2020, 11, 30)).build(),
+                Invoice.builder().id("M1").settlementDate(LocalDate.of(2020, 12, 1)).build(),
+                Invoice.builder().id("M2").settlementDate(LocalDate.of(2020, 12, 31)).build(),
+                Invoice.builder().id("M3").settlementDate(LocalDate.of(2021, 1, 1)).build())).blockLast();
+
+        //then
+        webClient.get().uri(INVOICES_URL + "?month=12&year=2020").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$[*].id").isEqualTo(List.of("M1", "M2"));
+
+        webClient.get().uri(INVOICES_URL + "?month=12&year=2020&pageSize=1").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$[*].id").isEqualTo(List.of("M1"));
+
+        webClient.get().uri(INVOICES_URL + "/stats?groupBy=month&year=2020").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$[?(@.month == 12)].count").isEqualTo(List.of(2));
+    }
+
+    @Test
+    public void shouldStreamInvoiceImageWithRanges() {
+        //given
+        Invoice invoice = Invoice.builder().id("SCAN").title("SCANNED_INVOICE").settlementDate(LocalDate.of(2020, 12, 13)).build();
+        invoiceRepository.save(invoice).block();
+        byte[] scan = new byte[300_000];
+        for (int i = 0; i < scan.length; i++) {
+            scan[i] = (byte) (i % 251);
+        }
+
+        //when
+        webClient.put().uri(INVOICES_URL + "/SCAN/image").contentType(MediaType.APPLICATION_PDF).bodyValue(scan)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody().jsonPath("$.imageId").isNotEmpty();
+
+        //then
+        webClient.get().uri(INVOICES_URL + "/SCAN/image").exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(MediaType.APPLICATION_PDF)
+                .expectHeader().valueEquals(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .expectBody(byte[].class).isEqualTo(scan);
+
+        webClient.get().uri(INVOICES_URL + "/SCAN/image").header(HttpHeaders.RANGE, "bytes=261000-261999").exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_RANGE, "bytes 261000-261999/300000")
+                .expectBody(byte[].class).isEqualTo(Arrays.copyOfRange(scan, 261000, 262000));
+
+        webClient.get().uri(INVOICES_URL + "/SCAN/image").header(HttpHeaders.RANGE, "bytes=400000-").exchange()
+                .expectStatus().isEqualTo(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+
+        webClient.get().uri(INVOICES_URL + "/SCAN/image").header(HttpHeaders.RANGE, "bytes=abc").exchange()
+                .expectStatus().isEqualTo(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_RANGE, "bytes */300000");
+
+        webClient.get().uri(INVOICES_URL + "/SCAN").exchange()
+                .expectStatus().isOk()
+                .expectBody().jsonPath("$.image").doesNotExist();
+    }
+
+    @Test
+    public void shouldReturnSummariesAndSelectedFields() {
+        //given
+        Invoice invoice = Invoice.builder().id("SUMMARY").title("SUMMARY_INVOICE").settlementDate(LocalDate.of(2020, 12, 13))
+                .amountNetto(new BigDecimal("100.00")).vat(new BigDecimal("23.00")).amountBrutto(new BigDecimal("123.00"))
+                .seller(Company.builder().name("ACME").nip(1234567890L).build())
+                .positions(List.of(Position.builder().name("Domena").amount(1).build()))
+                .build();
+        invoiceRepository.save(invoice).block();
+
+        //then
+        webClient.get().uri(INVOICES_URL + "?view=summary").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$[0].title").isEqualTo("SUMMARY_INVOICE")
+                .jsonPath("$[0].amountBrutto").isEqualTo(123.0)
+                .jsonPath("$[0].seller").doesNotExist()
+                .jsonPath("$[0].positions").doesNotExist();
+
+        webClient.get().uri(INVOICES_URL + "?fields=title,seller").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$[0].title").isEqualTo("SUMMARY_INVOICE")
+                .jsonPath("$[0].seller.name").isEqualTo("ACME")
+                .jsonPath("$[0].id").doesNotExist()
+                .jsonPath("$[0].positions").doesNotExist();
+
+        webClient.get().uri(INVOICES_URL + "?fields=title,password").exchange()
+                .expectStatus().isBadRequest();
+    }
+
+    @Test
+    public void shouldPageInvoicesBySettlementDate() {
+        //given
+        invoiceRepository.saveAll(Lists.newArrayList(
+                Invoice.builder().id("A").title("INVOICE_A").settlementDate(LocalDate.of(2020, 12, 13)).build(),
+                Invoice.builder().id("B").title("INVOICE_B").settlementDate(LocalDate.of(2020, 11, 2)).build(),
+                Invoice.builder().id("C").title("INVOICE_C").settlementDate(LocalDate.of(2020, 12, 13)).build())).blockLast();
+
+        //when
+        String nextPageToken = webClient.get().uri(INVOICES_URL + "?pageSize=2").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$[0].title").isEqualTo("INVOICE_B")
+                .jsonPath("$[1].title").isEqualTo("INVOICE_A")
+                .returnResult().getResponseHeaders().getFirst(InvoiceController.NEXT_PAGE_TOKEN_HEADER);
+
+        //then
+        webClient.get().uri(INVOICES_URL + "?pageSize=2&pageToken=" + nextPageToken).exchange()
+                .expectStatus().isOk()
+                .expectHeader().doesNotExist(InvoiceController.NEXT_PAGE_TOKEN_HEADER)
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(1)
+                .jsonPath("$[0].title").isEqualTo("INVOICE_C");
+    }
+
+    @Test
+    public void shouldListAllInvoicesWhenNoPageIsRequested() {
+        //given
+        invoiceRepository.saveAll(IntStream.range(0, 150)
+                .mapToObj(i -> Invoice.builder().title("INVOICE_" + i).settlementDate(LocalDate.of(2020, 12, 1).plusDays(i % 28)).build())
+                .collect(Collectors.toList())).blockLast();
+
+        //when
+        webClient.get().uri(INVOICES_URL).exchange()
+
+                //then
+                .expectStatus().isOk()
+                .expectHeader().doesNotExist(InvoiceController.NEXT_PAGE_TOKEN_HEADER)
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(150);
+    }
+
+    @Test
+    public void shouldAggregateInvoiceTotals() {
+        //given
+        Company acme = Company.builder().name("ACME").nip(1234567890L).build();
+        invoiceRepository.saveAll(Lists.newArrayList(
+                Invoice.builder().id("S1").settlementDate(LocalDate.of(2020, 12, 1)).seller(acme)
+                        .amountNetto(new BigDecimal("100.00")).vat(new BigDecimal("23.00")).amountBrutto(new BigDecimal("123.00"))
+                        .positions(List.of(Position.builder().vatPercent(23).totalAmountNetto(new BigDecimal("100.00"))
+                                .totalVat(new BigDecimal("23.00")).totalAmountBrutto(new BigDecimal("123.00")).build()))
+                        .build(),
+                Invoice.builder().id("S2").settlementDate(LocalDate.of(2020, 12, 31)).seller(acme)
+                        .amountNetto(new BigDecimal("50.00")).vat(new BigDecimal("4.00")).amountBrutto(new BigDecimal("54.00"))
+                        .positions(List.of(Position.builder().vatPercent(8).totalAmountNetto(new BigDecimal("50.00"))
+                                .totalVat(new BigDecimal("4.00")).totalAmountBrutto(new BigDecimal("54.00")).build()))
+                        .build(),
+                Invoice.builder().id("S3").settlementDate(LocalDate.of(2020, 11, 2))
+                        .amountNetto(new BigDecimal("10.00")).vat(new BigDecimal("2.30")).amountBrutto(new BigDecimal("12.30"))
+                        .build())).blockLast();
+
+        //then
+        webClient.get().uri(INVOICES_URL + "/stats?groupBy=month&year=2020").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(2)
+                .jsonPath("$[1].month").isEqualTo(12)
+                .jsonPath("$[1].count").isEqualTo(2)
+                .jsonPath("$[1].amountBrutto").isEqualTo(177.0);
+
+        webClient.get().uri(INVOICES_URL + "/stats?groupBy=quarter&year=2020").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(1)
+                .jsonPath("$[0].quarter").isEqualTo(4)
+                .jsonPath("$[0].vat").isEqualTo(29.3);
+
+        webClient.get().uri(INVOICES_URL + "/stats?groupBy=seller&from=2020-12-01&to=2020-12-31").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(1)
+                .jsonPath("$[0].nip").isEqualTo(1234567890L)
+                .jsonPath("$[0].amountNetto").isEqualTo(150.0);
+
+        webClient.get().uri(INVOICES_URL + "/stats?groupBy=vat-rate").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$[0].vatPercent").isEqualTo(8)
+                .jsonPath("$[1].vatPercent").isEqualTo(23)
+                .jsonPath("$[1].vat").isEqualTo(23.0);
+
+        webClient.get().uri(INVOICES_URL + "/stats?groupBy=weekday").exchange()
+                .expectStatus().isBadRequest();
+    }
+
+    @Test
+    public void shouldKeepMonthRollupsInLineWithInvoices() {
+        //given
+        Invoice invoice = Invoice.builder().title("ROLLUP_INVOICE").settlementDate(LocalDate.of(2020, 12, 13))
+                .seller(Company.builder().nip(1234567890L).build())
+                .amountNetto(new BigDecimal("100.00")).vat(new BigDecimal("23.00")).amountBrutto(new BigDecimal("123.00"))
+                .build();
+        webClient.post().uri(INVOICES_URL + "/rollups/rebuild").exchange().expectStatus().isOk();
+
+        //when
+        String id = webClient.post().uri(INVOICES_URL).body(BodyInserters.fromPublisher(Mono.just(invoice), Invoice.class))
+                .exchange()
+                .expectStatus().isCreated()
+                .returnResult(Invoice.class).getResponseBody().blockFirst().getId();
+
+        //then
+        webClient.get().uri(INVOICES_URL + "/rollups/2020-12").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.count").isEqualTo(1)
+                .jsonPath("$.amountBrutto").isEqualTo(123.0);
+
+        webClient.get().uri(INVOICES_URL + "/rollups/2020-12?sellerNip=1234567890").exchange()
+                .expectStatus().isOk()
+                .expectBody().jsonPath("$.amountNetto").isEqualTo(100.0);
+
+        webClient.post().uri(INVOICES_URL + "/rollups/rebuild").exchange()
+                .expectStatus().isOk()
+                .expectBody().jsonPath("$").isEqualTo(2);
+
+        webClient.delete().uri(INVOICES_URL + "/" + id).exchange().expectStatus().isOk();
+
+        webClient.get().uri(INVOICES_URL + "/rollups/2020-12").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.count").isEqualTo(0)
+                .jsonPath("$.amountBrutto").isEqualTo(0.0);
+    }
+
+    @Test
+    public void shouldStreamInvoicesAsNdjson() {
+        //given
+        invoiceRepository.saveAll(Lists.newArrayList(
+                Invoice.builder().id("N1").title("INVOICE_N1").settlementDate(LocalDate.of(2020, 12, 13)).build(),
+                Invoice.builder().id("N2").title("INVOICE_N2").settlementDate(LocalDate.of(2020, 11, 2)).build())).blockLast();
+
+        //when
+        Flux<InvoiceSummary> summaries = webClient.get().uri(INVOICES_URL + "?view=summary").accept(MediaType.APPLICATION_NDJSON).exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+                .returnResult(InvoiceSummary.class).getResponseBody();
+
+        //then
+        StepVerifier.create(summaries)
+                .assertNext(summary -> assertThat(summary.getTitle()).isEqualTo("INVOICE_N2"))
+                .assertNext(summary -> assertThat(summary.getTitle()).isEqualTo("INVOICE_N1"))
+                .verifyComplete();
+
+        webClient.get().uri(INVOICES_URL).exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_JSON);
+    }
+
+    @Test
+    public void shouldInsertBatchAndReportDuplicates() {
+        //given
+        invoiceRepository.save(Invoice.builder().id("B2").title("INVOICE_B2").build()).block();
+        String ndjson = "{\"id\":\"B1\",\"title\":\"INVOICE_B1\"}\n"
+                + "{\"id\":\"B2\",\"title\":\"INVOICE_B2\"}\n"
+                + "{\"title\":\"INVOICE_B3\"}\n";
+
+        //when
+        List<InvoiceBatchResult> results = webClient.post().uri(INVOICES_URL + "/batch").contentType(MediaType.APPLICATION_NDJSON)
+                .bodyValue(ndjson).exchange()
+                .expectStatus().isOk()
+                .expectBodyList(InvoiceBatchResult.class).returnResult().getResponseBody();
+
+        //then
+        assertThat(results).extracting(InvoiceBatchResult::getStatus).containsExactly(InvoiceBatchResult.Status.CREATED,
+                InvoiceBatchResult.Status.FAILED, InvoiceBatchResult.Status.CREATED);
+        assertThat(results.get(0).getInvoiceId()).isEqualTo("B1");
+        assertThat(results.get(2).getInvoiceId()).isNotNull();
+        StepVerifier.create(invoiceRepository.count()).expectNext(3L).verifyComplete();
+
+        webClient.post().uri(INVOICES_URL + "/batch").contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("[{\"title\":\"INVOICE_B4\"},{\"title\":\"INVOICE_B5\"}]").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(2)
+                .jsonPath("$[1].status").isEqualTo("CREATED");
+    }
+
+    @Test
+    public void shouldPatchInvoiceAndRejectStaleVersions() {
+        //given
+        Invoice invoice = webClient.post().uri(INVOICES_URL)
+                .body(BodyInserters.fromPublisher(Mono.just(Invoice.builder().title("INVOICE_P1").build()), Invoice.class)).exchange()
+                .expectStatus().isCreated()
+                .returnResult(Invoice.class).getResponseBody().blockFirst();
+
+        //when
+        webClient.patch().uri(INVOICES_URL + "/" + invoice.getId()).contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("{\"version\":" + invoice.getVersion() + ",\"title\":\"PATCHED\",\"settlementDate\":\"2020-12-13\"}").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.title").isEqualTo("PATCHED")
+                .jsonPath("$.version").isEqualTo(invoice.getVersion().intValue() + 1);
+
+        //then
+        webClient.patch().uri(INVOICES_URL + "/" + invoice.getId()).contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("{\"version\":" + invoice.getVersion() + ",\"title\":\"STALE\"}").exchange()
+                .expectStatus().isEqualTo(HttpStatus.CONFLICT);
+        webClient.delete().uri(INVOICES_URL + "/" + invoice.getId() + "?version=" + invoice.getVersion()).exchange()
+                .expectStatus().isEqualTo(HttpStatus.CONFLICT);
+        webClient.get().uri(INVOICES_URL + "/" + invoice.getId()).exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.title").isEqualTo("PATCHED")
+                .jsonPath("$.settlementDate").isEqualTo("2020-12-13");
+    }
+
+    @Test
+    public void shouldReferenceCompaniesAndJoinThemOnRequest() {
+        //given
+        Company acme = Company.builder().name("ACME").nip(1234567890L).address(Address.builder().city("Kraków").build()).build();
+        String id = webClient.post().uri(INVOICES_URL)
+                .body(BodyInserters.fromPublisher(Mono.just(Invoice.builder().title("INVOICE_C1").seller(acme).build()), Invoice.class)).exchange()
+                .expectStatus().isCreated()
+                .returnResult(Invoice.class).getResponseBody().blockFirst().getId();
+
+        //when
+        webClient.put().uri("/companies/1234567890")
+                .bodyValue(Company.builder().name("ACME").address(Address.builder().city("Warszawa").build()).build()).exchange()
+                .expectStatus().isOk();
+
+        //then
+        webClient.get().uri(INVOICES_URL + "/" + id).exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.seller.nip").isEqualTo(1234567890L)
+                .jsonPath("$.seller.name").isEqualTo("ACME")
+                .jsonPath("$.seller.address").doesNotExist();
+        webClient.get().uri(INVOICES_URL + "/" + id + "?join=companies").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.seller.name").isEqualTo("ACME")
+                .jsonPath("$.seller.address.city").isEqualTo("Warszawa");
+    }
+
+    @Test
+    public void shouldSearchTitlesPositionsAndCounterparties() {
+        //given
+        invoiceRepository.saveAll(Lists.newArrayList(
+                Invoice.builder().id("T1").title("FV/1/2020").settlementDate(LocalDate.of(2020, 12, 13))
+                        .seller(Company.builder().name("ACME").nip(1234567890L).build())
+                        .positions(List.of(Position.builder().name("Hosting serwera").build())).build(),
+                Invoice.builder().id("T2").title("Hosting FV/2/2020").settlementDate(LocalDate.of(2020, 11, 2)).build(),
+                Invoice.builder().id("T3").title("FV/3/2020").settlementDate(LocalDate.of(2020, 12, 20))
+                        .positions(List.of(Position.builder().name("Domena").build())).build())).blockLast();
+
+        //then
+        webClient.get().uri(INVOICES_URL + "/search?q=hosting").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(2)
+                .jsonPath("$[0].id").isEqualTo("T2")
+                .jsonPath("$[0].positions").doesNotExist();
+
+        webClient.get().uri(INVOICES_URL + "/search?q=hosting acme&from=2020-12-01&pageSize=1").exchange()
+                .expectStatus().isOk()
+                .expectHeader().doesNotExist(InvoiceController.NEXT_PAGE_TOKEN_HEADER)
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(1)
+                .jsonPath("$[0].id").isEqualTo("T1");
+
+        webClient.get().uri(INVOICES_URL + "/search?q=").exchange()
+                .expectStatus().isBadRequest();
+    }
+
+    @Test
+    public void shouldExportWholeMonthAsCsvAndJpk() {
+        //given
+        invoiceRepository.saveAll(Lists.newArrayList(
+                Invoice.builder().id("E1").title("FV/1/2020").settlementDate(LocalDate.of(2020, 12, 1)).vat(new BigDecimal("23.00"))
+                        .positions(List.of(Position.builder().name("Hosting").totalAmountNetto(new BigDecimal("100.00"))
+                                .totalVat(new BigDecimal("23.00")).vatPercent(23).gtuCode("GTU_12").build())).build(),
+                Invoice.builder().id("E2").title("FV/2/2020").settlementDate(LocalDate.of(2020, 12, 31)).build(),
+                Invoice.builder().id("E3").title("FV/3/2020").settlementDate(LocalDate.of(2021, 1, 1)).build())).blockLast();
+
+        //then
+        String csv = webClient.get().uri(INVOICES_URL + "/export?format=csv&month=12&year=2020").exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(InvoiceController.CSV_MEDIA_TYPE)
+                .expectBody(String.class).returnResult().getResponseBody();
+        assertThat(csv).contains("E1,FV/1/2020", "Hosting", "E2,FV/2/2020").doesNotContain("E3");
+
+        webClient.get().uri(INVOICES_URL + "/export?format=jpk&month=12&year=2020").exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .xpath("/JPK/Ewidencja/SprzedazWiersz").nodeCount(2)
+                .xpath("/JPK/Ewidencja/SprzedazWiersz[1]/GTU_12").isEqualTo("1")
+                .xpath("/JPK/Ewidencja/SprzedazCtrl/PodatekNalezny").isEqualTo("23.00");
+
+        webClient.get().uri(INVOICES_URL + "/export?format=jpk&from=2020-12-01&to=2021-01-31").exchange()
+                .expectStatus().isBadRequest();
+    }
 }
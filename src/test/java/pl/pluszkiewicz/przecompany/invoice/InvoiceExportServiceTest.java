@@ -0,0 +1,103 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.w3c.dom.Document;
+import pl.pluszkiewicz.przecompany.company.Company;
+import reactor.core.publisher.Flux;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class InvoiceExportServiceTest {
+    private static final long TAXPAYER_NIP = 1234567890L;
+
+    private InvoiceService invoiceService;
+    private InvoiceExportService invoiceExportService;
+
+    @BeforeEach
+    public void setUp() {
+        invoiceService = Mockito.mock(InvoiceService.class);
+        Invoice sale = Invoice.builder().id("1").title("FV/1/2020, korekta").settlementDate(LocalDate.of(2020, 12, 1))
+                .amountNetto(new BigDecimal("1200.00")).vat(new BigDecimal("256.00")).amountBrutto(new BigDecimal("1456.00"))
+                .seller(Company.builder().nip(TAXPAYER_NIP).name("ACME").build())
+                .buyer(Company.builder().nip(9876543210L).name("Jan \"JK\" Kowalski").build())
+                .positions(List.of(
+                        position("Hosting", 23, "GTU_12", "1000.00", "230.00"),
+                        position("Książka", 5, "", "200.00", "10.00"),
+                        position("Serwis", 23, "6", "0.00", "16.00")))
+                .build();
+        Invoice purchase = Invoice.builder().id("2").title("ZAKUP/7").settlementDate(LocalDate.of(2020, 12, 31))
+                .amountNetto(new BigDecimal("100.00")).vat(new BigDecimal("23.00")).amountBrutto(new BigDecimal("123.00"))
+                .seller(Company.builder().nip(5555555555L).name("Dostawca").build())
+                .buyer(Company.builder().nip(TAXPAYER_NIP).name("ACME").build())
+                .build();
+        when(invoiceService.streamInvoices(any(), any())).thenAnswer(invocation -> Flux.just(sale, purchase));
+        invoiceExportService = new InvoiceExportService(invoiceService, TAXPAYER_NIP, "ACME Sp. z o.o.", "1471", 1);
+    }
+
+    @Test
+    public void shouldExportPositionRowsAsCsv() {
+        //when
+        String csv = join(invoiceExportService.exportCsv(LocalDate.of(2020, 12, 1), LocalDate.of(2020, 12, 31), new DefaultDataBufferFactory()));
+
+        //then
+        verify(invoiceService).streamInvoices(LocalDate.of(2020, 12, 1), LocalDate.of(2021, 1, 1));
+        assertThat(csv.split("\r\n")).containsExactly(
+                InvoiceExportService.CSV_HEADER.trim(),
+                "1,\"FV/1/2020, korekta\",2020-12-01,1234567890,ACME,9876543210,\"Jan \"\"JK\"\" Kowalski\",1200.00,256.00,1456.00,1,Hosting,1,szt.,1000.00,23,GTU_12,1000.00,230.00,1230.00",
+                "1,\"FV/1/2020, korekta\",2020-12-01,1234567890,ACME,9876543210,\"Jan \"\"JK\"\" Kowalski\",1200.00,256.00,1456.00,2,Książka,1,szt.,200.00,5,,200.00,10.00,210.00",
+                "1,\"FV/1/2020, korekta\",2020-12-01,1234567890,ACME,9876543210,\"Jan \"\"JK\"\" Kowalski\",1200.00,256.00,1456.00,3,Serwis,1,szt.,0.00,23,6,0.00,16.00,16.00",
+                "2,ZAKUP/7,2020-12-31,5555555555,Dostawca,1234567890,ACME,100.00,23.00,123.00,,,,,,,,,,");
+    }
+
+    @Test
+    public void shouldExportSalesAndPurchasesAsJpkVat() throws Exception {
+        //when
+        String xml = join(invoiceExportService.exportJpk(YearMonth.of(2020, 12), new DefaultDataBufferFactory()));
+
+        //then
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        assertThat(document.getDocumentElement().getAttribute("xmlns")).isEqualTo(InvoiceExportService.JPK_NAMESPACE);
+        XPath xPath = XPathFactory.newInstance().newXPath();
+        assertThat(xPath.evaluate("/JPK/Naglowek/Miesiac", document)).isEqualTo("12");
+        assertThat(xPath.evaluate("/JPK/Podmiot1/OsobaNiefizyczna/NIP", document)).isEqualTo("1234567890");
+        assertThat(xPath.evaluate("count(/JPK/Ewidencja/SprzedazWiersz)", document)).isEqualTo("1");
+        assertThat(xml).contains("<DowodSprzedazy>FV/1/2020, korekta</DowodSprzedazy><DataWystawienia>2020-12-01</DataWystawienia>"
+                + "<GTU_06>1</GTU_06><GTU_12>1</GTU_12><K_15>200.00</K_15><K_16>10.00</K_16><K_19>1000.00</K_19><K_20>246.00</K_20></SprzedazWiersz>");
+        assertThat(xml).contains("<NazwaKontrahenta>Jan \"JK\" Kowalski</NazwaKontrahenta>");
+        assertThat(xPath.evaluate("/JPK/Ewidencja/SprzedazCtrl/PodatekNalezny", document)).isEqualTo("256.00");
+        assertThat(xPath.evaluate("/JPK/Ewidencja/ZakupWiersz/K_43", document)).isEqualTo("23.00");
+        assertThat(xPath.evaluate("/JPK/Ewidencja/ZakupCtrl/LiczbaWierszyZakupow", document)).isEqualTo("1");
+    }
+
+    private static Position position(String name, int vatPercent, String gtuCode, String netto, String vat) {
+        BigDecimal totalNetto = new BigDecimal(netto);
+        BigDecimal totalVat = new BigDecimal(vat);
+        return Position.builder().name(name).amount(1).unitType("szt.").unitPriceNetto(totalNetto).vatPercent(vatPercent).gtuCode(gtuCode)
+                .totalAmountNetto(totalNetto).totalVat(totalVat).totalAmountBrutto(totalNetto.add(totalVat)).build();
+    }
+
+    private static String join(Flux<DataBuffer> content) {
+        DataBuffer joined = DataBufferUtils.join(content).block();
+        String text = joined.toString(StandardCharsets.UTF_8);
+        DataBufferUtils.release(joined);
+        return text;
+    }
+}
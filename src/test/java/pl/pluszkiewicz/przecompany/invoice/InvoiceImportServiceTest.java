@@ -0,0 +1,234 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.util.unit.DataSize;
+import pl.pluszkiewicz.przecompany.PdfUtils;
+import pl.pluszkiewicz.przecompany.company.Company;
+import pl.pluszkiewicz.przecompany.company.CompanyRepository;
+import pl.pluszkiewicz.przecompany.company.CompanyService;
+import pl.pluszkiewicz.przecompany.pdf.LayoutTemplateRegistry;
+import pl.pluszkiewicz.przecompany.pdf.PdfReadService;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class InvoiceImportServiceTest {
+    private InvoiceRepository invoiceRepository;
+    private InvoiceContentHashRepository invoiceContentHashRepository;
+    private InvoiceImportService invoiceImportService;
+
+    @TempDir
+    Path archiveDirectory;
+
+    @BeforeEach
+    public void setUp() {
+        invoiceRepository = Mockito.mock(InvoiceRepository.class);
+        when(invoiceRepository.insertUnordered(anyList())).thenAnswer(invocation -> {
+            List<Invoice> invoices = invocation.getArgument(0);
+            invoices.forEach(invoice -> invoice.setId(UUID.randomUUID().toString()));
+            return Mono.just(Map.of());
+        });
+        invoiceContentHashRepository = Mockito.mock(InvoiceContentHashRepository.class);
+        Map<String, InvoiceContentHash> storedHashes = new ConcurrentHashMap<>();
+        when(invoiceContentHashRepository.findById(anyString()))
+                .thenAnswer(invocation -> Mono.justOrEmpty(storedHashes.get(invocation.<String>getArgument(0))));
+        when(invoiceContentHashRepository.saveAll(anyIterable())).thenAnswer(invocation -> {
+            Iterable<InvoiceContentHash> contentHashes = invocation.getArgument(0);
+            return Flux.fromIterable(contentHashes).doOnNext(contentHash -> storedHashes.put(contentHash.getHash(), contentHash));
+        });
+        when(invoiceContentHashRepository.insert(any(InvoiceContentHash.class))).thenAnswer(invocation -> {
+            InvoiceContentHash contentHash = invocation.getArgument(0);
+            return storedHashes.putIfAbsent(contentHash.getHash(), contentHash) == null
+                    ? Mono.just(contentHash)
+                    : Mono.error(new DuplicateKeyException("E11000 duplicate key"));
+        });
+        when(invoiceContentHashRepository.deleteByHashAndInvoiceIdIsNullAndClaimedAtBefore(anyString(), any())).thenReturn(Mono.just(0L));
+        when(invoiceContentHashRepository.deleteByHashInAndInvoiceIdIsNull(any())).thenAnswer(invocation -> {
+            Collection<String> hashes = invocation.getArgument(0);
+            return Mono.just(hashes.stream().filter(hash -> storedHashes.computeIfPresent(hash,
+                    (key, contentHash) -> contentHash.getInvoiceId() == null ? null : contentHash) == null).count());
+        });
+        InvoiceContentHashIndex invoiceContentHashIndex = new InvoiceContentHashIndex(invoiceContentHashRepository, 1, Duration.ofMinutes(10));
+        InvoiceRollupService invoiceRollupService = Mockito.mock(InvoiceRollupService.class);
+        when(invoiceRollupService.applyAll(any())).thenReturn(Mono.empty());
+        CompanyRepository companyRepository = Mockito.mock(CompanyRepository.class);
+        when(companyRepository.findById(anyString())).thenReturn(Mono.empty());
+        when(companyRepository.save(any(Company.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        invoiceImportService = new InvoiceImportService(new PdfReadService(DataSize.ofKilobytes(4), new LayoutTemplateRegistry(List.of()), new SimpleMeterRegistry()), invoiceRepository,
+                invoiceContentHashIndex, invoiceRollupService, Mockito.mock(InvoiceCache.class),
+                new InvoiceCompanies(new CompanyService(companyRepository, 100)), 2, 2, archiveDirectory.toString());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        invoiceImportService.shutdown();
+    }
+
+    @Test
+    public void shouldImportPdfFilesAndArchivesInBatches() throws IOException {
+        //given
+        InvoiceImportFile january = file("january.pdf", invoicePdf("FV/1/2020", "24.01.2020"));
+        InvoiceImportFile broken = file("broken.pdf", "not a pdf".getBytes());
+        InvoiceImportFile archive = file("invoices.zip", zip(Map.of(
+                "april.pdf", invoicePdf("FV/4/2020", "13.04.2020"),
+                "mai.pdf", invoicePdf("FV/5/2020", "02.05.2020"),
+                "notes.txt", "skipped".getBytes())));
+
+        //when
+        List<InvoiceImportResult> results = invoiceImportService.importFiles(Flux.just(january, broken, archive))
+                .collectList().block();
+
+        //then
+        assertThat(results).hasSize(4);
+        assertThat(results).filteredOn(result -> result.getStatus() == InvoiceImportResult.Status.IMPORTED)
+                .extracting(InvoiceImportResult::getFileName)
+                .containsExactlyInAnyOrder("january.pdf", "invoices.zip/april.pdf", "invoices.zip/mai.pdf");
+        assertThat(results).filteredOn(result -> result.getStatus() == InvoiceImportResult.Status.IMPORTED)
+                .allSatisfy(result -> assertThat(result.getInvoiceId()).isNotNull());
+        assertThat(results).filteredOn(result -> result.getStatus() == InvoiceImportResult.Status.FAILED)
+                .extracting(InvoiceImportResult::getFileName)
+                .containsExactly("broken.pdf");
+        verify(invoiceRepository, times(2)).insertUnordered(anyList());
+        assertThat(Files.list(archiveDirectory)).isEmpty();
+    }
+
+    @Test
+    public void shouldNotParseSameContentTwice() {
+        //given
+        byte[] januaryPdf = invoicePdf("FV/1/2020", "24.01.2020");
+        byte[] aprilPdf = invoicePdf("FV/4/2020", "13.04.2020");
+        List<InvoiceImportResult> firstImport = invoiceImportService.importFiles(Flux.just(file("january.pdf", januaryPdf),
+                file("january-copy.pdf", januaryPdf), file("april.pdf", aprilPdf))).collectList().block();
+
+        //when
+        List<InvoiceImportResult> secondImport = invoiceImportService.importFiles(Flux.just(file("january-again.pdf", januaryPdf),
+                file("april-again.pdf", aprilPdf))).collectList().block();
+
+        //then
+        assertThat(firstImport).extracting(InvoiceImportResult::getFileName, InvoiceImportResult::getStatus)
+                .containsExactlyInAnyOrder(tuple("january.pdf", InvoiceImportResult.Status.IMPORTED),
+                        tuple("january-copy.pdf", InvoiceImportResult.Status.DUPLICATE),
+                        tuple("april.pdf", InvoiceImportResult.Status.IMPORTED));
+        assertThat(secondImport).extracting(InvoiceImportResult::getStatus)
+                .containsOnly(InvoiceImportResult.Status.DUPLICATE);
+        assertThat(secondImport).extracting(InvoiceImportResult::getInvoiceId)
+                .containsExactlyInAnyOrderElementsOf(firstImport.stream()
+                        .filter(result -> result.getStatus() == InvoiceImportResult.Status.IMPORTED)
+                        .map(InvoiceImportResult::getInvoiceId)
+                        .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void shouldReportEveryInvoiceOfPartiallyStoredBatch() {
+        //given
+        byte[] januaryPdf = invoicePdf("FV/1/2020", "24.01.2020");
+        byte[] aprilPdf = invoicePdf("FV/4/2020", "13.04.2020");
+        when(invoiceRepository.insertUnordered(anyList())).thenAnswer(invocation -> {
+            List<Invoice> invoices = invocation.getArgument(0);
+            invoices.forEach(invoice -> invoice.setId(UUID.randomUUID().toString()));
+            return Mono.just(Map.of(invoices.get(0).getTitle().equals("FV/1/2020") ? 0 : 1, "E11000 duplicate key"));
+        });
+
+        //when
+        List<InvoiceImportResult> results = invoiceImportService.importFiles(Flux.just(file("january.pdf", januaryPdf),
+                file("april.pdf", aprilPdf))).collectList().block();
+
+        //then
+        assertThat(results).extracting(InvoiceImportResult::getFileName, InvoiceImportResult::getStatus)
+                .containsExactlyInAnyOrder(tuple("january.pdf", InvoiceImportResult.Status.FAILED),
+                        tuple("april.pdf", InvoiceImportResult.Status.IMPORTED));
+        assertThat(results).filteredOn(result -> result.getStatus() == InvoiceImportResult.Status.FAILED)
+                .extracting(InvoiceImportResult::getError)
+                .containsExactly("Cannot save invoice: E11000 duplicate key");
+        verify(invoiceContentHashRepository).saveAll(Mockito.<Iterable<InvoiceContentHash>>argThat(contentHashes ->
+                contentHashes.iterator().hasNext() && contentHashes.iterator().next().getInvoiceId().equals(results.stream()
+                        .filter(result -> result.getStatus() == InvoiceImportResult.Status.IMPORTED)
+                        .findFirst().orElseThrow().getInvoiceId())));
+    }
+
+    @Test
+    public void shouldImportSameContentOnceWhenUploadedConcurrently() {
+        //given
+        byte[] januaryPdf = invoicePdf("FV/1/2020", "24.01.2020");
+
+        //when
+        List<InvoiceImportResult> results = Flux.range(0, 4)
+                .flatMap(i -> invoiceImportService.importFiles(Flux.just(file("january-" + i + ".pdf", januaryPdf))).subscribeOn(Schedulers.parallel()))
+                .collectList().block();
+
+        //then
+        assertThat(results).filteredOn(result -> result.getStatus() == InvoiceImportResult.Status.IMPORTED).hasSize(1);
+        verify(invoiceRepository, times(1)).insertUnordered(anyList());
+    }
+
+    @Test
+    public void shouldResolveCopiesAgainstResultOfFirstCopy() {
+        //given
+        byte[] broken = "not a pdf".getBytes();
+
+        //when
+        List<InvoiceImportResult> firstImport = invoiceImportService.importFiles(Flux.just(file("broken.pdf", broken),
+                file("broken-copy.pdf", broken))).collectList().block();
+        List<InvoiceImportResult> secondImport = invoiceImportService.importFiles(Flux.just(file("broken-again.pdf", broken)))
+                .collectList().block();
+
+        //then
+        assertThat(firstImport).extracting(InvoiceImportResult::getFileName, InvoiceImportResult::getStatus)
+                .containsExactly(tuple("broken.pdf", InvoiceImportResult.Status.FAILED),
+                        tuple("broken-copy.pdf", InvoiceImportResult.Status.FAILED));
+        assertThat(firstImport.get(1).getError()).isEqualTo(firstImport.get(0).getError());
+        assertThat(secondImport).extracting(InvoiceImportResult::getError)
+                .allSatisfy(error -> assertThat(error).startsWith("Cannot parse invoice"));
+    }
+
+    private static byte[] invoicePdf(String title, String settlementDate) {
+        return PdfUtils.createPdf("Faktura: " + title, "Data wystawienia: " + settlementDate);
+    }
+
+    private static InvoiceImportFile file(String name, byte[] content) {
+        return new InvoiceImportFile(name, Flux.just(new DefaultDataBufferFactory().wrap(content)));
+    }
+
+    private static byte[] zip(Map<String, byte[]> files) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(output)) {
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                zip.putArchiveEntry(new ZipArchiveEntry(file.getKey()));
+                zip.write(file.getValue());
+                zip.closeArchiveEntry();
+            }
+        }
+        return output.toByteArray();
+    }
+}
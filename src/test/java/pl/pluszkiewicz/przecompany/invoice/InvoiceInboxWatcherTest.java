@@ -0,0 +1,76 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+class InvoiceInboxWatcherTest {
+    private static final Duration SETTLE_TIME = Duration.ofMillis(200);
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private InvoiceInboxWatcher invoiceInboxWatcher;
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        invoiceInboxWatcher.stop();
+    }
+
+    @Test
+    public void shouldImportWaitingAndNewFilesAndMoveThemByResult(@TempDir Path inbox) throws Exception {
+        //given
+        List<String> importedFiles = new CopyOnWriteArrayList<>();
+        InvoiceImportService invoiceImportService = Mockito.mock(InvoiceImportService.class);
+        when(invoiceImportService.importFiles(any())).thenAnswer(invocation -> invocation.<Flux<InvoiceImportFile>>getArgument(0)
+                .concatMap(file -> DataBufferUtils.join(file.getContent())
+                        .map(content -> {
+                            String text = content.toString(StandardCharsets.UTF_8);
+                            DataBufferUtils.release(content);
+                            importedFiles.add(file.getName() + ":" + text);
+                            return InvoiceImportResult.builder()
+                                    .fileName(file.getName())
+                                    .status(text.startsWith("%PDF") ? InvoiceImportResult.Status.IMPORTED : InvoiceImportResult.Status.FAILED)
+                                    .build();
+                        })));
+        Files.writeString(inbox.resolve("waiting.pdf"), "%PDF waiting");
+        Files.writeString(inbox.resolve("notes.txt"), "not an invoice");
+        invoiceInboxWatcher = new InvoiceInboxWatcher(invoiceImportService, inbox.toString(), SETTLE_TIME, 10);
+
+        //when
+        invoiceInboxWatcher.start();
+        Path partial = inbox.resolve("scanned.pdf");
+        Files.writeString(partial, "%PDF ");
+        Thread.sleep(SETTLE_TIME.toMillis() / 2);
+        Files.writeString(partial, "%PDF scanned");
+        Files.writeString(inbox.resolve("broken.pdf"), "broken");
+
+        //then
+        awaitFile(inbox.resolve(InvoiceInboxWatcher.DONE_DIRECTORY).resolve("waiting.pdf"));
+        awaitFile(inbox.resolve(InvoiceInboxWatcher.DONE_DIRECTORY).resolve("scanned.pdf"));
+        awaitFile(inbox.resolve(InvoiceInboxWatcher.FAILED_DIRECTORY).resolve("broken.pdf"));
+        assertThat(importedFiles).containsExactlyInAnyOrder("waiting.pdf:%PDF waiting", "scanned.pdf:%PDF scanned", "broken.pdf:broken");
+        assertThat(inbox.resolve("notes.txt")).exists();
+    }
+
+    private static void awaitFile(Path file) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!Files.exists(file) && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(file).exists();
+    }
+}
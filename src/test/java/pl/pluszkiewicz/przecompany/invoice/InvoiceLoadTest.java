@@ -0,0 +1,300 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.WebClient;
+import pl.pluszkiewicz.przecompany.company.Address;
+import pl.pluszkiewicz.przecompany.company.Company;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.util.Objects.isNull;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Seeds a generated dataset into the embedded Mongo and drives the invoice endpoints over HTTP at a fixed concurrency.
+ * Latency percentiles and throughput of every endpoint are written as JSON to {@code load.report}, so results of two
+ * releases can be compared. Listings of the whole dataset are read to the end and run only load.full-listing-requests
+ * times. Excluded from the default build, run with: mvn -Pload-tests test [-Dload.invoices=...]
+ */
+@Tag("load")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class InvoiceLoadTest {
+    private static final String INVOICES_URL = "/invoices";
+    private static final LocalDate LAST_SETTLEMENT_DATE = LocalDate.of(2020, 12, 31);
+    private static final int SEED_BATCH_SIZE = 1000;
+    private static final int COMPANIES = 200;
+    private static final int MAX_POSITIONS = 5;
+    private static final int RANGE_DAYS = 90;
+    private static final int LISTING_PAGE_SIZE = 1000;
+    private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toNanos(1);
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private InvoiceRepository invoiceRepository;
+
+    @Autowired
+    private InvoiceCompanies invoiceCompanies;
+
+    @Value("${load.invoices:100000}")
+    private int invoices;
+
+    @Value("${load.years:5}")
+    private int years;
+
+    @Value("${load.requests:2000}")
+    private int requests;
+
+    @Value("${load.full-listing-requests:20}")
+    private int fullListingRequests;
+
+    @Value("${load.warmup-requests:200}")
+    private int warmupRequests;
+
+    @Value("${load.concurrency:16}")
+    private int concurrency;
+
+    @Value("${load.seed:42}")
+    private long seed;
+
+    @Value("${load.report:target/load-test-report.json}")
+    private String report;
+
+    private WebClient webClient;
+    private LocalDate firstSettlementDate;
+    private int settlementDays;
+
+    @BeforeAll
+    public void seed() {
+        webClient = WebClient.builder().baseUrl("http://localhost:" + port).build();
+        firstSettlementDate = LAST_SETTLEMENT_DATE.minusYears(years).plusDays(1);
+        settlementDays = (int) ChronoUnit.DAYS.between(firstSettlementDate, LAST_SETTLEMENT_DATE) + 1;
+
+        invoiceRepository.deleteAll().block();
+        // stored the way the service stores them, with sellers and buyers registered and referenced
+        Flux.range(0, invoices)
+                .map(this::seededInvoice)
+                .buffer(SEED_BATCH_SIZE)
+                .concatMap(batch -> invoiceCompanies.register(batch).then(Mono.defer(() -> invoiceRepository.insertUnordered(batch))))
+                .blockLast();
+    }
+
+    @Test
+    public void shouldReportLatencyAndThroughputPerEndpoint() throws IOException {
+        //when
+        List<EndpointResult> results = List.of(
+                run("GET /invoices (all, paged)", fullListingRequests, i -> getAllPages(INVOICES_URL + "?pageSize=" + LISTING_PAGE_SIZE, null)),
+                run("GET /invoices (all, NDJSON)", fullListingRequests, i -> webClient.get().uri(INVOICES_URL)
+                        .accept(MediaType.APPLICATION_NDJSON)
+                        .retrieve()
+                        .bodyToFlux(DataBuffer.class)
+                        .doOnNext(DataBufferUtils::release)
+                        .then()),
+                run("GET /invoices (month)", i -> {
+                    LocalDate month = randomDate(i);
+                    return get(INVOICES_URL + "?month=" + month.getMonthValue() + "&year=" + month.getYear());
+                }),
+                run("GET /invoices (range)", i -> {
+                    LocalDate from = randomDate(i);
+                    return get(INVOICES_URL + "?from=" + from + "&to=" + from.plusDays(RANGE_DAYS));
+                }),
+                run("GET /invoices/{id}", i -> get(INVOICES_URL + "/" + invoiceId(new Random(seed + i).nextInt(invoices)))),
+                run("POST /invoices", i -> webClient.post().uri(INVOICES_URL).bodyValue(newInvoice(i)).retrieve().toBodilessEntity().then()),
+                run("PUT /invoices/{id}", i -> {
+                    Invoice invoice = editedInvoice(i);
+                    return webClient.put().uri(INVOICES_URL + "/" + invoice.getId()).bodyValue(invoice).retrieve().toBodilessEntity().then();
+                }));
+        writeReport(results);
+
+        //then
+        assertThat(results).allMatch(result -> result.getErrors() == 0);
+    }
+
+    private EndpointResult run(String endpoint, IntFunction<Mono<Void>> request) {
+        return run(endpoint, requests, request);
+    }
+
+    private EndpointResult run(String endpoint, int requests, IntFunction<Mono<Void>> request) {
+        // warm-up requests use indexes after the measured ones, so POST and PUT do not touch the same invoices twice
+        Flux.range(requests, Math.min(warmupRequests, requests))
+                .flatMap(i -> request.apply(i).onErrorResume(e -> Mono.empty()), concurrency)
+                .blockLast();
+
+        Histogram latencies = new ConcurrentHistogram(HIGHEST_LATENCY, 3);
+        AtomicLong errors = new AtomicLong();
+        long start = System.nanoTime();
+        Flux.range(0, requests)
+                .flatMap(i -> timed(request.apply(i), latencies, errors), concurrency)
+                .blockLast();
+        long elapsed = System.nanoTime() - start;
+
+        return new EndpointResult(endpoint, requests, errors.get(), requests * (double) TimeUnit.SECONDS.toNanos(1) / elapsed,
+                millis(latencies.getValueAtPercentile(50)), millis(latencies.getValueAtPercentile(99)), millis(latencies.getMaxValue()));
+    }
+
+    private static Mono<Void> timed(Mono<Void> request, Histogram latencies, AtomicLong errors) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return request
+                    .doOnSuccess(ignored -> latencies.recordValue(Math.min(System.nanoTime() - start, HIGHEST_LATENCY)))
+                    .onErrorResume(e -> {
+                        errors.incrementAndGet();
+                        return Mono.empty();
+                    });
+        });
+    }
+
+    private Mono<Void> get(String uri) {
+        return webClient.get().uri(uri).retrieve().toBodilessEntity().then();
+    }
+
+    private Mono<Void> getAllPages(String uri, String pageToken) {
+        return webClient.get().uri(isNull(pageToken) ? uri : uri + "&pageToken=" + pageToken).retrieve().toBodilessEntity()
+                .flatMap(response -> {
+                    String nextPageToken = response.getHeaders().getFirst(InvoiceController.NEXT_PAGE_TOKEN_HEADER);
+                    return isNull(nextPageToken) ? Mono.<Void>empty() : getAllPages(uri, nextPageToken);
+                });
+    }
+
+    private void writeReport(List<EndpointResult> results) throws IOException {
+        LoadTestReport loadTestReport = new LoadTestReport(Instant.now().toString(), invoices, years, requests, concurrency, seed, results);
+        Path reportFile = Paths.get(report).toAbsolutePath();
+        Files.createDirectories(reportFile.getParent());
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(reportFile.toFile(), loadTestReport);
+    }
+
+    private Invoice seededInvoice(int index) {
+        Random random = new Random(seed + index);
+        Invoice invoice = invoice(random, "FV/" + index + "/LOAD");
+        invoice.setId(invoiceId(index));
+        invoice.setVersion(0L);
+        return invoice;
+    }
+
+    private Invoice newInvoice(int request) {
+        return invoice(new Random(seed - request), "FV/" + request + "/NEW");
+    }
+
+    private Invoice editedInvoice(int request) {
+        Invoice invoice = seededInvoice(request % invoices);
+        invoice.setTitle(invoice.getTitle() + "/EDITED");
+        invoice.setVersion(null);
+        return invoice;
+    }
+
+    private Invoice invoice(Random random, String title) {
+        List<Position> positions = IntStream.rangeClosed(1, 1 + random.nextInt(MAX_POSITIONS))
+                .mapToObj(position -> position(random, position))
+                .collect(Collectors.toCollection(ArrayList::new));
+        BigDecimal netto = positions.stream().map(Position::getTotalAmountNetto).reduce(BigDecimal.ZERO, BigDecimal::add);
+        BigDecimal vat = positions.stream().map(Position::getTotalVat).reduce(BigDecimal.ZERO, BigDecimal::add);
+        return Invoice.builder()
+                .title(title)
+                .settlementDate(firstSettlementDate.plusDays(random.nextInt(settlementDays)))
+                .amountNetto(netto)
+                .vat(vat)
+                .amountBrutto(netto.add(vat))
+                .seller(company(random.nextInt(COMPANIES)))
+                .buyer(company(random.nextInt(COMPANIES)))
+                .positions(positions)
+                .build();
+    }
+
+    private static Position position(Random random, int position) {
+        int amount = 1 + random.nextInt(10);
+        BigDecimal unitPrice = BigDecimal.valueOf(100 + random.nextInt(100_000), 2);
+        BigDecimal netto = unitPrice.multiply(BigDecimal.valueOf(amount));
+        BigDecimal vat = netto.multiply(new BigDecimal("0.23")).setScale(2, RoundingMode.HALF_UP);
+        return Position.builder()
+                .name("Position " + position)
+                .amount(amount)
+                .unitType("szt.")
+                .unitPriceNetto(unitPrice)
+                .vatPercent(23)
+                .totalAmountNetto(netto)
+                .totalVat(vat)
+                .totalAmountBrutto(netto.add(vat))
+                .build();
+    }
+
+    private static Company company(int index) {
+        return Company.builder()
+                .name("Company " + index)
+                .country("Polska")
+                .nip(1_000_000_000L + index)
+                .address(Address.builder().street("ul. Prosta").houseNumber(String.valueOf(index)).zipCode("00-001").city("Warszawa").build())
+                .build();
+    }
+
+    private LocalDate randomDate(int request) {
+        return firstSettlementDate.plusDays(new Random(seed + request).nextInt(settlementDays));
+    }
+
+    private static String invoiceId(int index) {
+        return String.format("%024x", index);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Data
+    @AllArgsConstructor
+    static class LoadTestReport {
+        private String timestamp;
+        private int invoices;
+        private int years;
+        private int requests;
+        private int concurrency;
+        private long seed;
+        private List<EndpointResult> endpoints;
+    }
+
+    @Data
+    @AllArgsConstructor
+    static class EndpointResult {
+        private String endpoint;
+        private int requests;
+        private long errors;
+        private double throughputPerSecond;
+        private double p50Millis;
+        private double p99Millis;
+        private double maxMillis;
+    }
+}
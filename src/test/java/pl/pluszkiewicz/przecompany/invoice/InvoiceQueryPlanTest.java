@@ -0,0 +1,181 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import pl.pluszkiewicz.przecompany.company.Address;
+import pl.pluszkiewicz.przecompany.company.Company;
+import pl.pluszkiewicz.przecompany.company.CompanyService;
+import pl.pluszkiewicz.przecompany.config.DecimalAmountMigration;
+import pl.pluszkiewicz.przecompany.job.PdfJobService;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Records every query the repositories and services send to Mongo and explains it, so a query that lost its index
+ * fails here instead of slowing down production. Inserts are not explained, they do not query - bulk inserts are
+ * covered through the company lookups, hash claims and rollup upserts around them. The rollup rebuild and the amount
+ * migration read whole collections on purpose and are left out.
+ */
+@SpringBootTest(properties = "pdf.jobs.workers=0")
+class InvoiceQueryPlanTest {
+    private static final Set<String> EXPLAINED_COMMANDS = Set.of("find", "delete", "update", "count", "aggregate", "findAndModify");
+    private static final Map<String, String> STATEMENT_LISTS = Map.of("delete", "deletes", "update", "updates");
+    private static final String COLLECTION_SCAN = "COLLSCAN";
+
+    @Autowired
+    private InvoiceRepository invoiceRepository;
+
+    @Autowired
+    private InvoiceContentHashRepository invoiceContentHashRepository;
+
+    @Autowired
+    private InvoiceService invoiceService;
+
+    @Autowired
+    private InvoiceStatsService invoiceStatsService;
+
+    @Autowired
+    private InvoiceRollupService invoiceRollupService;
+
+    @Autowired
+    private InvoiceContentHashIndex invoiceContentHashIndex;
+
+    @Autowired
+    private CompanyService companyService;
+
+    @Autowired
+    private PdfJobService pdfJobService;
+
+    @Autowired
+    private ReactiveMongoTemplate mongoTemplate;
+
+    @Autowired
+    private RecordedCommands recordedCommands;
+
+    @BeforeEach
+    public void setUp() {
+        // the amount migration scans invoices once in the background after startup, it must not be recorded
+        Mono.defer(() -> mongoTemplate.exists(Query.query(where("_id").is(DecimalAmountMigration.MIGRATION_ID)),
+                        DecimalAmountMigration.MIGRATIONS_COLLECTION))
+                .filter(Boolean::booleanValue)
+                .repeatWhenEmpty(repeat -> repeat.delayElements(Duration.ofMillis(100)))
+                .block(Duration.ofSeconds(30));
+        Invoice invoice = Invoice.builder().id("PLAN").title("PLAN_INVOICE").settlementDate(LocalDate.of(2020, 12, 13))
+                .seller(Company.builder().nip(1234567890L).build()).build();
+        invoiceRepository.save(invoice).block();
+        recordedCommands.clear();
+    }
+
+    @Test
+    public void shouldNotScanWholeCollectionInRepositoryQueries() {
+        //given
+        invoiceRepository.findById("PLAN").block();
+        invoiceService.getInvoicesBySettlementDateBetween(LocalDate.of(2020, 12, 1), LocalDate.of(2020, 12, 31)).collectList().block();
+        invoiceService.getInvoiceForMonthAndYear(12, 2020).collectList().block();
+        String nextPageToken = invoiceService.getInvoicePage(null, null, null, 1).block().getNextPageToken();
+        invoiceService.getInvoicePage(null, null, new InvoicePageToken(LocalDate.of(2020, 12, 1), "PLAN").encode(), 1).block();
+        invoiceService.getInvoiceSummaryPage(LocalDate.of(2020, 12, 1), LocalDate.of(2020, 12, 31), nextPageToken, 10).block();
+        invoiceService.getInvoiceFieldsPage(null, null, null, 10, List.of("title")).block();
+        invoiceService.searchInvoiceSummaries("PLAN_INVOICE", LocalDate.of(2020, 12, 1), null, null, 10).block();
+        invoiceStatsService.getTotals(InvoiceStatsGrouping.MONTH, LocalDate.of(2020, 1, 1), LocalDate.of(2020, 12, 31)).collectList().block();
+        invoiceStatsService.getTotals(InvoiceStatsGrouping.VAT_RATE, LocalDate.of(2020, 1, 1), null).collectList().block();
+        invoiceContentHashRepository.findById("HASH").block();
+        invoiceContentHashRepository.deleteByInvoiceId("PLAN").collectList().block();
+        invoiceService.patchInvoice("PLAN", Map.of("title", "PLAN_INVOICE")).block();
+        invoiceRepository.findAndRemove("PLAN", -1L).block();
+        Company seller = Company.builder().nip(1234567890L).name("Seller").country("Polska")
+                .address(Address.builder().street("ul. Prosta").zipCode("00-001").city("Warszawa").build()).build();
+        companyService.register(List.of(seller)).block();
+        companyService.getCompany(1234567890L).block();
+        invoiceService.addInvoices(Flux.just(Invoice.builder().title("BULK").settlementDate(LocalDate.of(2020, 12, 14)).seller(seller)
+                .amountBrutto(BigDecimal.ONE).build())).collectList().block();
+        invoiceRollupService.getRollup(YearMonth.of(2020, 12), InvoiceRollup.Scope.SELLER, 1234567890L).block();
+        invoiceContentHashIndex.claim("PLAN_HASH").block();
+        invoiceContentHashIndex.claim("PLAN_HASH").block();
+        invoiceContentHashIndex.release(List.of("PLAN_HASH")).block();
+        pdfJobService.claim().block();
+
+        //when
+        List<BsonDocument> commands = recordedCommands.getCommands();
+
+        //then
+        assertThat(commands).isNotEmpty();
+        for (BsonDocument command : commands) {
+            Document explained = mongoTemplate.executeCommand(new Document("explain", command).append("verbosity", "queryPlanner")).block();
+            assertThat(explained.toJson())
+                    .as("Query plan of %s", command.toJson())
+                    .doesNotContain("\"" + COLLECTION_SCAN + "\"");
+        }
+    }
+
+    static class RecordedCommands implements CommandListener {
+        private final List<BsonDocument> commands = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void commandStarted(CommandStartedEvent event) {
+            if (EXPLAINED_COMMANDS.contains(event.getCommandName())) {
+                BsonDocument command = new BsonDocument();
+                for (Map.Entry<String, BsonValue> entry : event.getCommand().entrySet()) {
+                    if (!entry.getKey().startsWith("$") && !"lsid".equals(entry.getKey()) && !"txnNumber".equals(entry.getKey())) {
+                        command.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                String statementList = STATEMENT_LISTS.get(event.getCommandName());
+                if (statementList == null) {
+                    commands.add(command);
+                    return;
+                }
+                // explain takes a single statement, bulk writes are explained statement by statement
+                for (BsonValue statement : command.getArray(statementList)) {
+                    commands.add(command.clone().append(statementList, new BsonArray(List.of(statement))));
+                }
+            }
+        }
+
+        List<BsonDocument> getCommands() {
+            return List.copyOf(commands);
+        }
+
+        void clear() {
+            commands.clear();
+        }
+    }
+
+    @TestConfiguration
+    static class QueryPlanConfiguration {
+        @Bean
+        RecordedCommands recordedCommands() {
+            return new RecordedCommands();
+        }
+
+        @Bean
+        MongoClientSettingsBuilderCustomizer recordingCustomizer(RecordedCommands recordedCommands) {
+            return settings -> settings.addCommandListener(recordedCommands);
+        }
+    }
+}
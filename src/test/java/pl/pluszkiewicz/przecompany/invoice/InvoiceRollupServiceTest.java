@@ -0,0 +1,185 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import pl.pluszkiewicz.przecompany.company.Company;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class InvoiceRollupServiceTest {
+    private ReactiveMongoTemplate mongoTemplate;
+    private SimpleMeterRegistry meterRegistry;
+    private InvoiceRollupService invoiceRollupService;
+
+    @BeforeEach
+    public void setUp() {
+        mongoTemplate = Mockito.mock(ReactiveMongoTemplate.class);
+        when(mongoTemplate.upsert(any(Query.class), any(Update.class), eq(InvoiceRollup.class))).thenReturn(Mono.empty());
+        meterRegistry = new SimpleMeterRegistry();
+        invoiceRollupService = new InvoiceRollupService(mongoTemplate, meterRegistry);
+    }
+
+    @Test
+    public void shouldIncrementMonthAndCompanyRollupsOfNewInvoice() {
+        //given
+        Invoice invoice = invoice(LocalDate.of(2020, 12, 13), "100.00", "23.00", "123.00");
+
+        //when
+        invoiceRollupService.apply(null, invoice).block();
+
+        //then
+        Map<String, Update> updates = capturedUpdates(3);
+        assertThat(updates).containsOnlyKeys("2020-12", "2020-12:seller:1234567890", "2020-12:buyer:9876543210");
+        assertThat(increments(updates.get("2020-12")))
+                .containsEntry("count", 1L)
+                .containsEntry("amountNetto", new Decimal128(new BigDecimal("100.00")))
+                .containsEntry("amountBrutto", new Decimal128(new BigDecimal("123.00")));
+    }
+
+    @Test
+    public void shouldIncrementOnlyDifferenceOfEditedInvoice() {
+        //given
+        Invoice previous = invoice(LocalDate.of(2020, 12, 13), "100.00", "23.00", "123.00");
+        Invoice current = invoice(LocalDate.of(2020, 12, 20), "110.00", "23.00", "133.00");
+
+        //when
+        invoiceRollupService.apply(previous, current).block();
+
+        //then
+        Map<String, Update> updates = capturedUpdates(3);
+        assertThat(increments(updates.get("2020-12")))
+                .containsEntry("count", 0L)
+                .containsEntry("amountNetto", new Decimal128(new BigDecimal("10.00")))
+                .containsEntry("vat", new Decimal128(new BigDecimal("0.00")))
+                .containsEntry("amountBrutto", new Decimal128(new BigDecimal("10.00")));
+    }
+
+    @Test
+    public void shouldMoveTotalsBetweenMonthsAndSkipUnchangedInvoice() {
+        //given
+        Invoice previous = invoice(LocalDate.of(2020, 11, 30), "100.00", "23.00", "123.00");
+        Invoice current = invoice(LocalDate.of(2020, 12, 1), "100.00", "23.00", "123.00");
+
+        //when
+        invoiceRollupService.apply(previous, current).block();
+        invoiceRollupService.apply(current, current).block();
+
+        //then
+        Map<String, Update> updates = capturedUpdates(6);
+        assertThat(increments(updates.get("2020-11"))).containsEntry("count", -1L)
+                .containsEntry("amountNetto", new Decimal128(new BigDecimal("-100.00")));
+        assertThat(increments(updates.get("2020-12"))).containsEntry("count", 1L);
+    }
+
+    @Test
+    public void shouldIgnoreInvoiceWithoutSettlementDate() {
+        //when
+        invoiceRollupService.apply(null, invoice(null, "1.00", "0.00", "1.00")).block();
+
+        //then
+        verify(mongoTemplate, never()).upsert(any(Query.class), any(Update.class), eq(InvoiceRollup.class));
+    }
+
+    @Test
+    public void shouldCountFailedUpdateOfStoredInvoicesWithoutFailing() {
+        //given
+        when(mongoTemplate.upsert(any(Query.class), any(Update.class), eq(InvoiceRollup.class))).thenReturn(Mono.error(new IllegalStateException("down")));
+
+        //when
+        invoiceRollupService.applyAll(List.of(invoice(LocalDate.of(2020, 12, 13), "100.00", "23.00", "123.00"))).block();
+
+        //then
+        assertThat(meterRegistry.get(InvoiceRollupService.FAILURES_COUNTER).counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRepeatRebuildWhenRollupsWereIncrementedMeanwhile() {
+        //given
+        AtomicInteger aggregations = new AtomicInteger();
+        mockRebuild(() -> {
+            if (aggregations.getAndIncrement() == 0) {
+                invoiceRollupService.apply(null, invoice(LocalDate.of(2020, 12, 13), "100.00", "23.00", "123.00")).block();
+            }
+        });
+
+        //when
+        Long count = invoiceRollupService.rebuild().block();
+
+        //then
+        assertThat(count).isZero();
+        verify(mongoTemplate, Mockito.times(6)).aggregate(any(Aggregation.class), eq(Invoice.class), eq(Document.class));
+    }
+
+    @Test
+    public void shouldRejectRebuildWhileRollupsKeepChanging() {
+        //given
+        mockRebuild(() -> invoiceRollupService.apply(null, invoice(LocalDate.of(2020, 12, 13), "100.00", "23.00", "123.00")).block());
+
+        //when
+        StepVerifier.create(invoiceRollupService.rebuild())
+
+                //then
+                .expectErrorMatches(e -> e instanceof ResponseStatusException && ((ResponseStatusException) e).getStatus() == HttpStatus.CONFLICT)
+                .verify();
+    }
+
+    private void mockRebuild(Runnable duringAggregation) {
+        when(mongoTemplate.dropCollection(anyString())).thenReturn(Mono.empty());
+        when(mongoTemplate.dropCollection(InvoiceRollup.class)).thenReturn(Mono.empty());
+        when(mongoTemplate.aggregate(any(Aggregation.class), eq(Invoice.class), eq(Document.class)))
+                .thenAnswer(invocation -> Flux.<Document>empty().doOnSubscribe(subscription -> duringAggregation.run()));
+    }
+
+    private Map<String, Update> capturedUpdates(int expectedUpdates) {
+        ArgumentCaptor<Query> queries = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> updates = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate, Mockito.times(expectedUpdates)).upsert(queries.capture(), updates.capture(), eq(InvoiceRollup.class));
+        List<Query> capturedQueries = queries.getAllValues();
+        return IntStream.range(0, capturedQueries.size()).boxed()
+                .collect(Collectors.toMap(i -> capturedQueries.get(i).getQueryObject().getString("_id"), i -> updates.getAllValues().get(i),
+                        (first, second) -> second));
+    }
+
+    private static Map<String, Object> increments(Update update) {
+        return update.getUpdateObject().get("$inc", Document.class);
+    }
+
+    private static Invoice invoice(LocalDate settlementDate, String netto, String vat, String brutto) {
+        return Invoice.builder()
+                .settlementDate(settlementDate)
+                .amountNetto(new BigDecimal(netto))
+                .vat(new BigDecimal(vat))
+                .amountBrutto(new BigDecimal(brutto))
+                .seller(Company.builder().nip(1234567890L).build())
+                .buyer(Company.builder().nip(9876543210L).build())
+                .build();
+    }
+}
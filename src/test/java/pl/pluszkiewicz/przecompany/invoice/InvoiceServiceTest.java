@@ -0,0 +1,302 @@
+package pl.pluszkiewicz.przecompany.invoice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import pl.pluszkiewicz.przecompany.company.Address;
+import pl.pluszkiewicz.przecompany.company.Company;
+import pl.pluszkiewicz.przecompany.company.CompanyRepository;
+import pl.pluszkiewicz.przecompany.company.CompanyService;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import javax.naming.directory.InvalidAttributeIdentifierException;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class InvoiceServiceTest {
+    private InvoiceRepository invoiceRepository;
+    private CompanyRepository companyRepository;
+    private InvoiceService invoiceService;
+
+    @BeforeEach
+    public void setUp() {
+        invoiceRepository = Mockito.mock(InvoiceRepository.class);
+        InvoiceRollupService invoiceRollupService = Mockito.mock(InvoiceRollupService.class);
+        when(invoiceRollupService.apply(any(), any())).thenReturn(Mono.empty());
+        when(invoiceRollupService.applyAll(any())).thenReturn(Mono.empty());
+        InvoiceContentHashIndex invoiceContentHashIndex = Mockito.mock(InvoiceContentHashIndex.class);
+        when(invoiceContentHashIndex.removeInvoice(any())).thenReturn(Mono.empty());
+        InvoiceImageService invoiceImageService = Mockito.mock(InvoiceImageService.class);
+        when(invoiceImageService.deleteImage(any())).thenReturn(Mono.empty());
+        companyRepository = Mockito.mock(CompanyRepository.class);
+        when(companyRepository.findById(anyString())).thenReturn(Mono.empty());
+        when(companyRepository.save(any(Company.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        InvoiceCompanies invoiceCompanies = new InvoiceCompanies(new CompanyService(companyRepository, 100));
+        invoiceService = new InvoiceService(invoiceRepository, invoiceContentHashIndex, invoiceImageService, invoiceRollupService, new InvoiceCache(Duration.ofMinutes(1), 10, 100),
+                invoiceCompanies, new ObjectMapper().findAndRegisterModules(), 2, 3, 10, 5, 2, 2);
+    }
+
+    @Test
+    public void shouldReturnPageWithTokenOfLastInvoice() {
+        //given
+        when(invoiceRepository.findPage(any(), any(), any(), anyInt(), any())).thenReturn(Flux.just(
+                Invoice.builder().id("1").settlementDate(LocalDate.of(2020, 12, 1)).build(),
+                Invoice.builder().id("2").settlementDate(LocalDate.of(2020, 12, 13)).build(),
+                Invoice.builder().id("3").settlementDate(LocalDate.of(2020, 12, 13)).build()));
+
+        //when
+        InvoicePage<Invoice> page = invoiceService.getInvoicePage(null, null, null, null).block();
+
+        //then
+        verify(invoiceRepository).findPage(isNull(), isNull(), isNull(), eq(3), isNull());
+        assertThat(page.getItems()).extracting(Invoice::getId).containsExactly("1", "2");
+        assertThat(InvoicePageToken.decode(page.getNextPageToken())).isEqualTo(new InvoicePageToken(LocalDate.of(2020, 12, 13), "2"));
+    }
+
+    @Test
+    public void shouldContinueAfterTokenWithCappedPageSize() {
+        //given
+        String pageToken = new InvoicePageToken(LocalDate.of(2020, 12, 13), "2").encode();
+        when(invoiceRepository.findPage(any(), any(), any(), anyInt(), any())).thenReturn(Flux.just(
+                Invoice.builder().id("3").title("INVOICE_3").settlementDate(LocalDate.of(2020, 12, 13)).build()));
+
+        //when
+        InvoicePage<InvoiceSummary> page = invoiceService.getInvoiceSummaryPage(null, null, pageToken, 1000).block();
+
+        //then
+        verify(invoiceRepository).findPage(isNull(), isNull(), eq(new InvoicePageToken(LocalDate.of(2020, 12, 13), "2")), eq(4),
+                eq(InvoiceSummary.FIELDS));
+        assertThat(page.getItems()).extracting(InvoiceSummary::getTitle).containsExactly("INVOICE_3");
+        assertThat(page.getNextPageToken()).isNull();
+    }
+
+    @Test
+    public void shouldInsertInvoicesInBatchesAndReportEveryItem() {
+        //given
+        when(invoiceRepository.insertUnordered(any()))
+                .thenReturn(Mono.just(Map.of(1, "E11000 duplicate key error")))
+                .thenReturn(Mono.just(Map.of()))
+                .thenReturn(Mono.error(new IllegalStateException("connection lost")));
+        Flux<Invoice> invoices = Flux.range(1, 5).map(i -> Invoice.builder().id(String.valueOf(i)).build());
+
+        //when
+        List<InvoiceBatchResult> results = invoiceService.addInvoices(invoices).collectList().block();
+
+        //then
+        verify(invoiceRepository, times(3)).insertUnordered(any());
+        assertThat(results).extracting(InvoiceBatchResult::getIndex).containsExactly(0L, 1L, 2L, 3L, 4L);
+        assertThat(results).extracting(InvoiceBatchResult::getStatus).containsExactly(InvoiceBatchResult.Status.CREATED,
+                InvoiceBatchResult.Status.FAILED, InvoiceBatchResult.Status.CREATED, InvoiceBatchResult.Status.CREATED,
+                InvoiceBatchResult.Status.FAILED);
+        assertThat(results).extracting(InvoiceBatchResult::getInvoiceId).containsExactly("1", null, "3", "4", null);
+        assertThat(results.get(1).getError()).contains("duplicate key");
+        assertThat(results.get(4).getError()).contains("connection lost");
+    }
+
+    @Test
+    public void shouldPageSearchResultsByOffsetUpToMaxResults() {
+        //given
+        when(invoiceRepository.search(eq("hosting"), any(), any(), anyInt(), anyInt(), any())).thenAnswer(invocation -> Flux
+                .range(invocation.<Integer>getArgument(3), invocation.<Integer>getArgument(4))
+                .map(i -> Invoice.builder().id(String.valueOf(i)).title("HOSTING_" + i).build()));
+
+        //when
+        InvoicePage<InvoiceSummary> first = invoiceService.searchInvoiceSummaries("hosting", null, null, null, null).block();
+        InvoicePage<InvoiceSummary> second = invoiceService.searchInvoiceSummaries("hosting", null, null, first.getNextPageToken(), null).block();
+        InvoicePage<InvoiceSummary> last = invoiceService.searchInvoiceSummaries("hosting", null, null, second.getNextPageToken(), null).block();
+
+        //then
+        assertThat(first.getItems()).extracting(InvoiceSummary::getId).containsExactly("0", "1");
+        assertThat(second.getItems()).extracting(InvoiceSummary::getId).containsExactly("2", "3");
+        assertThat(last.getItems()).extracting(InvoiceSummary::getId).containsExactly("4");
+        assertThat(last.getNextPageToken()).isNull();
+        verify(invoiceRepository).search("hosting", null, null, 4, 2, InvoiceSummary.FIELDS);
+        StepVerifier.create(invoiceService.searchInvoiceSummaries(" ", null, null, null, null))
+                .expectError(ResponseStatusException.class)
+                .verify();
+    }
+
+    @Test
+    public void shouldRejectInvalidPageToken() {
+        StepVerifier.create(invoiceService.getInvoicePage(null, null, "not a token", null))
+                .expectError(ResponseStatusException.class)
+                .verify();
+    }
+
+    @Test
+    public void shouldServeRepeatedLookupsFromCacheUntilInvoiceIsEdited() throws InvalidAttributeIdentifierException {
+        //given
+        Invoice invoice = Invoice.builder().id("1").title("INVOICE_1").settlementDate(LocalDate.of(2020, 12, 13)).build();
+        Invoice edited = Invoice.builder().id("1").title("EDITED").settlementDate(LocalDate.of(2020, 12, 13)).build();
+        when(invoiceRepository.findById("1")).thenReturn(Mono.just(invoice), Mono.just(edited));
+        when(invoiceRepository.findAndUpdate(eq("1"), isNull(), any(), eq(false))).thenReturn(Mono.just(invoice));
+
+        //when
+        invoiceService.getInvoiceById("1").block();
+        Invoice cached = invoiceService.getInvoiceById("1").block();
+        invoiceService.editInvoice("1", edited).block();
+        Invoice reloaded = invoiceService.getInvoiceById("1").block();
+
+        //then
+        assertThat(cached.getTitle()).isEqualTo("INVOICE_1");
+        assertThat(reloaded.getTitle()).isEqualTo("EDITED");
+        verify(invoiceRepository, times(2)).findById("1");
+        InvoiceCacheStats stats = invoiceService.getCacheStats().get(InvoiceCache.INVOICES_BY_ID);
+        assertThat(stats.getHitCount()).isEqualTo(1);
+        assertThat(stats.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotCacheInvoiceReadBeforeItWasEdited() throws Exception {
+        //given
+        Invoice invoice = Invoice.builder().id("1").title("INVOICE_1").build();
+        Invoice edited = Invoice.builder().id("1").title("EDITED").build();
+        Sinks.One<Invoice> staleRead = Sinks.one();
+        Queue<Mono<Invoice>> reads = new ArrayDeque<>(List.of(staleRead.asMono(), Mono.just(edited)));
+        when(invoiceRepository.findById("1")).thenAnswer(invocation -> reads.poll());
+        when(invoiceRepository.findAndUpdate(eq("1"), isNull(), any(), eq(false))).thenReturn(Mono.just(invoice));
+
+        //when
+        CompletableFuture<Invoice> read = invoiceService.getInvoiceById("1").toFuture();
+        invoiceService.editInvoice("1", edited).block();
+        staleRead.tryEmitValue(invoice);
+        Invoice reloaded = invoiceService.getInvoiceById("1").block();
+
+        //then
+        assertThat(read.get().getTitle()).isEqualTo("INVOICE_1");
+        assertThat(reloaded.getTitle()).isEqualTo("EDITED");
+        verify(invoiceRepository, times(2)).findById("1");
+    }
+
+    @Test
+    public void shouldCacheMonthUntilOneOfItsInvoicesIsWritten() {
+        //given
+        Invoice invoice = Invoice.builder().id("1").settlementDate(LocalDate.of(2020, 12, 13)).build();
+        AtomicInteger loads = new AtomicInteger();
+        when(invoiceRepository.stream(eq(LocalDate.of(2020, 12, 1)), eq(LocalDate.of(2021, 1, 1)), anyInt(), isNull()))
+                .thenAnswer(invocation -> {
+                    loads.incrementAndGet();
+                    return Flux.just(invoice);
+                });
+        when(invoiceRepository.insert(any(Invoice.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        when(invoiceRepository.insertUnordered(any())).thenReturn(Mono.just(Map.of()));
+        when(invoiceRepository.findAndUpdate(eq("1"), isNull(), any(), eq(false))).thenReturn(Mono.just(invoice));
+        when(invoiceRepository.findAndRemove("1", null)).thenReturn(Mono.just(invoice));
+        Invoice december = Invoice.builder().settlementDate(LocalDate.of(2020, 12, 24)).build();
+
+        //when
+        List<Invoice> first = invoiceService.getInvoiceForMonthAndYear(12, 2020).collectList().block();
+        invoiceService.getInvoiceForMonthAndYear(12, 2020).collectList().block();
+        invoiceService.addInvoice(december).block();
+        invoiceService.getInvoiceForMonthAndYear(12, 2020).collectList().block();
+        invoiceService.patchInvoice("1", Map.of("settlementDate", "2020-11-30")).block();
+        invoiceService.getInvoiceForMonthAndYear(12, 2020).collectList().block();
+        invoiceService.addInvoices(Flux.just(Invoice.builder().id("2").settlementDate(LocalDate.of(2020, 12, 31)).build())).blockLast();
+        invoiceService.getInvoiceForMonthAndYear(12, 2020).collectList().block();
+        invoiceService.removeInvoice("1").block();
+        invoiceService.getInvoiceForMonthAndYear(12, 2020).collectList().block();
+
+        //then
+        assertThat(first).containsExactly(invoice);
+        assertThat(loads).hasValue(5);
+        assertThat(invoiceService.getCacheStats().get(InvoiceCache.INVOICES_BY_MONTH).getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldSetOnlyPatchedFieldsAndBumpVersion() {
+        //given
+        Invoice invoice = Invoice.builder().id("1").title("INVOICE_1").amountNetto(new BigDecimal("10.00")).version(3L).build();
+        when(invoiceRepository.findAndUpdate(eq("1"), eq(3L), any(), eq(false))).thenReturn(Mono.just(invoice));
+        Map<String, Object> patch = new HashMap<>();
+        patch.put("version", 3);
+        patch.put("settlementDate", "2020-12-13");
+        patch.put("amountNetto", 12.5);
+        patch.put("title", null);
+
+        //when
+        Invoice patched = invoiceService.patchInvoice("1", patch).block();
+
+        //then
+        Map<String, Object> changes = new HashMap<>();
+        changes.put("settlementDate", LocalDate.of(2020, 12, 13));
+        changes.put("amountNetto", new BigDecimal("12.5"));
+        changes.put("title", null);
+        verify(invoiceRepository).findAndUpdate("1", 3L, changes, false);
+        assertThat(patched.getTitle()).isNull();
+        assertThat(patched.getSettlementDate()).isEqualTo(LocalDate.of(2020, 12, 13));
+        assertThat(patched.getAmountNetto()).isEqualByComparingTo("12.5");
+        assertThat(patched.getVersion()).isEqualTo(4L);
+    }
+
+    @Test
+    public void shouldRejectPatchOfUnknownField() {
+        StepVerifier.create(invoiceService.patchInvoice("1", Map.of("number", "FV/1")))
+                .expectErrorSatisfies(e -> assertThat(((ResponseStatusException) e).getStatus()).isEqualTo(HttpStatus.BAD_REQUEST))
+                .verify();
+    }
+
+    @Test
+    public void shouldReportConflictWhenInvoiceWasModifiedConcurrently() throws InvalidAttributeIdentifierException {
+        //given
+        when(invoiceRepository.findAndUpdate(eq("1"), eq(2L), any(), eq(false))).thenReturn(Mono.empty());
+        when(invoiceRepository.findAndRemove("1", 2L)).thenReturn(Mono.empty());
+        when(invoiceRepository.existsById("1")).thenReturn(Mono.just(true));
+
+        //when
+        Mono<Invoice> edit = invoiceService.editInvoice("1", Invoice.builder().id("1").title("EDITED").version(2L).build());
+        Mono<Invoice> remove = invoiceService.removeInvoice("1", 2L);
+
+        //then
+        StepVerifier.create(edit)
+                .expectErrorSatisfies(e -> assertThat(((ResponseStatusException) e).getStatus()).isEqualTo(HttpStatus.CONFLICT))
+                .verify();
+        StepVerifier.create(remove)
+                .expectErrorSatisfies(e -> assertThat(((ResponseStatusException) e).getStatus()).isEqualTo(HttpStatus.CONFLICT))
+                .verify();
+    }
+
+    @Test
+    public void shouldStoreCompanyReferencesAndJoinRegisteredCompaniesOnRead() {
+        //given
+        Company acme = Company.builder().name("ACME").country("Polska").nip(1234567890L)
+                .address(Address.builder().city("Kraków").build()).build();
+        when(invoiceRepository.insert(any(Invoice.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        //when
+        Invoice saved = invoiceService.addInvoice(Invoice.builder().title("INVOICE_1").seller(acme).build()).block();
+        Invoice joined = invoiceService.joinCompanies(saved).block();
+
+        //then
+        verify(companyRepository).save(Company.builder().id("1234567890").name("ACME").country("Polska").nip(1234567890L)
+                .address(Address.builder().city("Kraków").build()).build());
+        assertThat(saved.getSeller()).isEqualTo(Company.builder().nip(1234567890L).name("ACME").build());
+        assertThat(joined.getSeller().getName()).isEqualTo("ACME");
+        assertThat(joined.getSeller().getAddress().getCity()).isEqualTo("Kraków");
+        assertThat(joined.getBuyer()).isNull();
+        assertThat(saved.getSeller().getAddress()).isNull();
+    }
+}
@@ -0,0 +1,102 @@
+package pl.pluszkiewicz.przecompany.job;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Claims, renews and finishes jobs against Mongo. Workers are disabled, so only the test claims jobs.
+ */
+@SpringBootTest(properties = "pdf.jobs.workers=0")
+class PdfJobServiceTest {
+
+    @Autowired
+    private PdfJobRepository pdfJobRepository;
+
+    @Autowired
+    private PdfJobService pdfJobService;
+
+    @BeforeEach
+    public void setUp() {
+        pdfJobRepository.deleteAll().block();
+    }
+
+    @Test
+    public void shouldClaimQueuedJobsOldestFirstAndOnlyOnce() {
+        //given
+        Instant now = Instant.now();
+        pdfJobRepository.insert(job("newer", PdfJob.Status.QUEUED, 0, now, null)).block();
+        pdfJobRepository.insert(job("older", PdfJob.Status.QUEUED, 0, now.minus(1, ChronoUnit.MINUTES), null)).block();
+
+        //when
+        PdfJob first = pdfJobService.claim().block();
+        PdfJob second = pdfJobService.claim().block();
+        PdfJob third = pdfJobService.claim().block();
+
+        //then
+        assertThat(first.getId()).isEqualTo("older");
+        assertThat(first.getStatus()).isEqualTo(PdfJob.Status.PROCESSING);
+        assertThat(first.getAttempts()).isEqualTo(1);
+        assertThat(first.getLeaseExpiresAt()).isAfter(now);
+        assertThat(second.getId()).isEqualTo("newer");
+        assertThat(third).isNull();
+    }
+
+    @Test
+    public void shouldReclaimOnlyJobWhoseLeaseExpired() {
+        //given
+        Instant now = Instant.now();
+        PdfJob abandoned = pdfJobRepository.insert(job("abandoned", PdfJob.Status.PROCESSING, 1, now.minus(2, ChronoUnit.MINUTES),
+                now.minus(1, ChronoUnit.MINUTES))).block();
+        pdfJobRepository.insert(job("running", PdfJob.Status.PROCESSING, 1, now.minus(3, ChronoUnit.MINUTES),
+                now.plus(1, ChronoUnit.MINUTES))).block();
+
+        //when
+        PdfJob reclaimed = pdfJobService.claim().block();
+        PdfJob none = pdfJobService.claim().block();
+
+        //then
+        assertThat(reclaimed.getId()).isEqualTo("abandoned");
+        assertThat(reclaimed.getAttempts()).isEqualTo(2);
+        assertThat(none).isNull();
+        assertThat(pdfJobService.complete(abandoned, "INVOICE", false).block()).isNull();
+        assertThat(pdfJobRepository.findById("abandoned").block().getStatus()).isEqualTo(PdfJob.Status.PROCESSING);
+    }
+
+    @Test
+    public void shouldRenewOnlyLeaseStillHeld() {
+        //given
+        pdfJobRepository.insert(job("slow", PdfJob.Status.QUEUED, 0, Instant.now(), null)).block();
+        PdfJob claimed = pdfJobService.claim().block();
+        PdfJob previousAttempt = PdfJob.builder().id(claimed.getId()).attempts(claimed.getAttempts() - 1).build();
+
+        //when
+        PdfJob renewed = pdfJobService.renew(claimed).block();
+        PdfJob lost = pdfJobService.renew(previousAttempt).block();
+
+        //then
+        assertThat(renewed.getLeaseExpiresAt()).isAfterOrEqualTo(claimed.getLeaseExpiresAt());
+        assertThat(renewed.getAttempts()).isEqualTo(1);
+        assertThat(lost).isNull();
+    }
+
+    private static PdfJob job(String id, PdfJob.Status status, int attempts, Instant createdAt, Instant leaseExpiresAt) {
+        return PdfJob.builder()
+                .id(id)
+                .fileName(id + ".pdf")
+                .contentId(new ObjectId().toHexString())
+                .status(status)
+                .attempts(attempts)
+                .createdAt(createdAt)
+                .updatedAt(createdAt)
+                .leaseExpiresAt(leaseExpiresAt)
+                .build();
+    }
+}
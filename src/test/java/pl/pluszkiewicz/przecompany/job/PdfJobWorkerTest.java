@@ -0,0 +1,149 @@
+package pl.pluszkiewicz.przecompany.job;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.util.unit.DataSize;
+import pl.pluszkiewicz.przecompany.PdfUtils;
+import pl.pluszkiewicz.przecompany.invoice.Invoice;
+import pl.pluszkiewicz.przecompany.invoice.InvoiceContentHash;
+import pl.pluszkiewicz.przecompany.invoice.InvoiceContentHashIndex;
+import pl.pluszkiewicz.przecompany.invoice.InvoiceService;
+import pl.pluszkiewicz.przecompany.pdf.LayoutTemplateRegistry;
+import pl.pluszkiewicz.przecompany.pdf.PdfReadService;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PdfJobWorkerTest {
+    private PdfJobService pdfJobService;
+    private InvoiceService invoiceService;
+    private InvoiceContentHashIndex invoiceContentHashIndex;
+    private PdfJobWorker pdfJobWorker;
+
+    @BeforeEach
+    public void setUp() {
+        pdfJobService = Mockito.mock(PdfJobService.class);
+        when(pdfJobService.complete(any(), any(), anyBoolean())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        when(pdfJobService.fail(any(), anyString())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        when(pdfJobService.renew(any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        invoiceService = Mockito.mock(InvoiceService.class);
+        when(invoiceService.addInvoice(any())).thenAnswer(invocation -> {
+            Invoice invoice = new Invoice(invocation.<Invoice>getArgument(0));
+            invoice.setId("INVOICE");
+            return Mono.just(invoice);
+        });
+        invoiceContentHashIndex = Mockito.mock(InvoiceContentHashIndex.class);
+        when(invoiceContentHashIndex.claim(anyString())).thenReturn(Mono.empty());
+        when(invoiceContentHashIndex.register(any())).thenReturn(Mono.empty());
+        when(invoiceContentHashIndex.release(any())).thenReturn(Mono.empty());
+        PdfReadService pdfReadService = new PdfReadService(DataSize.ofKilobytes(4), new LayoutTemplateRegistry(List.of()), new SimpleMeterRegistry());
+        pdfJobWorker = new PdfJobWorker(pdfJobService, pdfReadService, invoiceService, invoiceContentHashIndex, 2, 3, Duration.ofSeconds(1),
+                Duration.ofMillis(20));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        pdfJobWorker.shutdown();
+    }
+
+    @Test
+    public void shouldProcessClaimedJobsUntilQueueIsEmpty() {
+        //given
+        PdfJob january = job("january", 1);
+        PdfJob broken = job("broken", 1);
+        claimInOrder(january, broken);
+        when(pdfJobService.readContent(january)).thenReturn(content(PdfUtils.createPdf("Faktura: FV/1/2020", "Data wystawienia: 24.01.2020")));
+        when(pdfJobService.readContent(broken)).thenReturn(content("not a pdf".getBytes()));
+
+        //when
+        pdfJobWorker.processQueued().block();
+
+        //then
+        verify(invoiceService).addInvoice(argThat(invoice -> "FV/1/2020".equals(invoice.getTitle())));
+        verify(invoiceContentHashIndex).register(argThat(hashes -> hashes.size() == 1 && "INVOICE".equals(hashes.get(0).getInvoiceId())));
+        verify(pdfJobService).complete(january, "INVOICE", false);
+        verify(pdfJobService).fail(eq(broken), startsWith("Cannot process invoice"));
+        verify(invoiceContentHashIndex).release(argThat(hashes -> hashes.size() == 1));
+    }
+
+    @Test
+    public void shouldCompleteDuplicateWithoutParsing() {
+        //given
+        PdfJob job = job("duplicate", 1);
+        claimInOrder(job);
+        when(pdfJobService.readContent(job)).thenReturn(content(PdfUtils.createPdf("Faktura: FV/1/2020")));
+        when(invoiceContentHashIndex.claim(anyString())).thenReturn(Mono.just(InvoiceContentHash.builder().hash("HASH").invoiceId("EXISTING").build()));
+
+        //when
+        pdfJobWorker.processQueued().block();
+
+        //then
+        verify(pdfJobService).complete(job, "EXISTING", true);
+        verify(invoiceService, never()).addInvoice(any());
+    }
+
+    @Test
+    public void shouldFailJobAbandonedTooManyTimes() {
+        //given
+        PdfJob job = job("crashing", 4);
+        claimInOrder(job);
+
+        //when
+        pdfJobWorker.processQueued().block();
+
+        //then
+        verify(pdfJobService).fail(job, "Abandoned after 3 attempts");
+        verify(pdfJobService, never()).readContent(any());
+    }
+
+    @Test
+    public void shouldRenewLeaseWhileJobIsProcessed() {
+        //given
+        PdfJob job = job("slow", 1);
+        claimInOrder(job);
+        when(pdfJobService.readContent(job)).thenReturn(content(PdfUtils.createPdf("Faktura: FV/1/2020", "Data wystawienia: 24.01.2020")));
+        doAnswer(invocation -> Mono.delay(Duration.ofMillis(200)).thenReturn(Invoice.builder().id("INVOICE").build()))
+                .when(invoiceService).addInvoice(any());
+
+        //when
+        pdfJobWorker.processQueued().block();
+
+        //then
+        verify(pdfJobService, atLeastOnce()).renew(job);
+        verify(pdfJobService).complete(job, "INVOICE", false);
+    }
+
+    private void claimInOrder(PdfJob... jobs) {
+        Queue<PdfJob> queue = new ArrayDeque<>(List.of(jobs));
+        when(pdfJobService.claim()).thenAnswer(invocation -> Mono.justOrEmpty(queue.poll()));
+    }
+
+    private static PdfJob job(String id, int attempts) {
+        return PdfJob.builder().id(id).fileName(id + ".pdf").status(PdfJob.Status.PROCESSING).attempts(attempts).build();
+    }
+
+    private static Flux<DataBuffer> content(byte[] pdf) {
+        return Flux.just(new DefaultDataBufferFactory().wrap(pdf));
+    }
+}
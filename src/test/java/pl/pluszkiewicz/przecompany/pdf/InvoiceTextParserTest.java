@@ -0,0 +1,144 @@
+package pl.pluszkiewicz.przecompany.pdf;
+
+import org.junit.jupiter.api.Test;
+import pl.pluszkiewicz.przecompany.invoice.Invoice;
+import pl.pluszkiewicz.przecompany.invoice.Position;
+
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class InvoiceTextParserTest {
+    public static final String PDF_BLANK_LINE = "\u00A0";
+
+    public static String[] sampleInvoiceText() {
+        return new String[]{
+                "Faktura: FV/12/2020",
+                "Data wystawienia: 13.12.2020",
+                "Sprzedawca",
+                "ACME Sp. z o.o.",
+                "ul. Prosta 12/3",
+                "00-001 Warszawa",
+                "Polska",
+                "NIP: 1234567890",
+                PDF_BLANK_LINE,
+                "Jan Kowalski Software",
+                "ul. Krzywa 5",
+                "30-001 Nowy Targ",
+                "Polska",
+                "NIP: 9876543210",
+                PDF_BLANK_LINE,
+                "Lp Nazwa Ilość J.m. Cena netto VAT GTU Wartość netto Wartość VAT Wartość brutto",
+                "",
+                "",
+                "",
+                "",
+                "1 Usługa hostingowa 2,00 szt. 500,00 23 % GTU_12 1 000,00 230,00 1 230,00",
+                "2 Domena 1,00 szt. 200,00 23 %  200,00 46,00 246,00",
+                PDF_BLANK_LINE,
+                "Razem: 1 200,00 276,00 1 476,00"
+        };
+    }
+
+    @Test
+    public void shouldMapInvoiceInSinglePass() throws ParseException {
+        //when
+        Invoice invoice = new InvoiceTextParser().parse(sampleInvoiceText());
+
+        //then
+        assertThat(invoice.getTitle()).isEqualTo("FV/12/2020");
+        assertThat(invoice.getSettlementDate()).isEqualTo(LocalDate.of(2020, 12, 13));
+        assertThat(invoice.getAmountNetto()).isEqualTo(new BigDecimal("1200.00"));
+        assertThat(invoice.getVat()).isEqualTo(new BigDecimal("276.00"));
+        assertThat(invoice.getAmountBrutto()).isEqualTo(new BigDecimal("1476.00"));
+
+        assertThat(invoice.getSeller().getName()).isEqualTo("ACME Sp. z o.o.");
+        assertThat(invoice.getSeller().getNip()).isEqualTo(1234567890L);
+        assertThat(invoice.getSeller().getAddress().getStreet()).isEqualTo("ul. Prosta");
+        assertThat(invoice.getSeller().getAddress().getHouseNumber()).isEqualTo("12");
+        assertThat(invoice.getSeller().getAddress().getApartmentNumber()).isEqualTo("3");
+        assertThat(invoice.getBuyer().getName()).isEqualTo("Jan Kowalski Software");
+        assertThat(invoice.getBuyer().getNip()).isEqualTo(9876543210L);
+        assertThat(invoice.getBuyer().getAddress().getCity()).isEqualTo("Nowy Targ");
+
+        assertThat(invoice.getPositions()).hasSize(2);
+        Position hosting = invoice.getPositions().get(0);
+        assertThat(hosting.getName()).isEqualTo("Usługa hostingowa");
+        assertThat(hosting.getAmount()).isEqualTo(2);
+        assertThat(hosting.getUnitPriceNetto()).isEqualTo(new BigDecimal("500.00"));
+        assertThat(hosting.getVatPercent()).isEqualTo(23);
+        assertThat(hosting.getGtuCode()).isEqualTo("GTU_12");
+        assertThat(hosting.getTotalAmountBrutto()).isEqualTo(new BigDecimal("1230.00"));
+        assertThat(invoice.getPositions().get(1).getGtuCode()).isEmpty();
+    }
+
+    @Test
+    public void shouldMapInvoiceWithAddedLines() throws ParseException {
+        //given
+        List<String> pdfText = new ArrayList<>(Arrays.asList(sampleInvoiceText()));
+        pdfText.add(1, "Miejsce wystawienia: Warszawa");
+        pdfText.add(pdfText.indexOf("ACME Sp. z o.o.") + 1, "Oddział Kraków");
+        pdfText.add(pdfText.indexOf("NIP: 1234567890") + 1, "e-mail: biuro@acme.pl");
+        pdfText.add(pdfText.indexOf("30-001 Nowy Targ") + 1, "NIP: 9876543210");
+        pdfText.remove(pdfText.lastIndexOf("NIP: 9876543210"));
+        pdfText.add(pdfText.indexOf(sampleInvoiceText()[15]) + 1, "(PLN)");
+
+        //when
+        Invoice invoice = new InvoiceTextParser().parse(pdfText.toArray(String[]::new));
+
+        //then
+        assertThat(invoice.getTitle()).isEqualTo("FV/12/2020");
+        assertThat(invoice.getSeller().getName()).isEqualTo("ACME Sp. z o.o.");
+        assertThat(invoice.getSeller().getAddress().getStreet()).isEqualTo("ul. Prosta");
+        assertThat(invoice.getSeller().getAddress().getCity()).isEqualTo("Warszawa");
+        assertThat(invoice.getSeller().getCountry()).isEqualTo("Polska");
+        assertThat(invoice.getSeller().getNip()).isEqualTo(1234567890L);
+        assertThat(invoice.getBuyer().getName()).isEqualTo("Jan Kowalski Software");
+        assertThat(invoice.getBuyer().getCountry()).isNull();
+        assertThat(invoice.getBuyer().getNip()).isEqualTo(9876543210L);
+        assertThat(invoice.getPositions()).hasSize(2);
+        assertThat(invoice.getAmountBrutto()).isEqualTo(new BigDecimal("1476.00"));
+    }
+
+    @Test
+    public void shouldCountPositionLinesThatDoNotMatch() throws ParseException {
+        //given
+        String[] pdfText = sampleInvoiceText();
+        pdfText[Arrays.asList(pdfText).indexOf("2 Domena 1,00 szt. 200,00 23 %  200,00 46,00 246,00")] = "2 Domena (cena do uzgodnienia)";
+        InvoiceTextParser parser = new InvoiceTextParser();
+
+        //when
+        Invoice invoice = parser.parse(pdfText);
+
+        //then
+        assertThat(invoice.getPositions()).hasSize(1);
+        assertThat(parser.getSkippedPositions()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldParsePolishAmountsWithoutPrecisionLoss() throws ParseException {
+        assertThat(InvoiceTextParser.parseAmount("1 234,56")).isEqualTo(new BigDecimal("1234.56"));
+        assertThat(InvoiceTextParser.parseAmount("1 234 567,89")).isEqualTo(new BigDecimal("1234567.89"));
+        assertThat(InvoiceTextParser.parseAmount("0,10")).isEqualTo(new BigDecimal("0.10"));
+        assertThat(InvoiceTextParser.parseAmount("-12,30")).isEqualTo(new BigDecimal("-12.30"));
+        assertThat(InvoiceTextParser.parseAmount("99999999999999,99")).isEqualTo(new BigDecimal("99999999999999.99"));
+        assertThatThrownBy(() -> InvoiceTextParser.parseAmount("12a,00")).isInstanceOf(ParseException.class);
+    }
+
+    @Test
+    public void shouldTellThousandsDotFromDecimalDot() throws ParseException {
+        assertThat(InvoiceTextParser.parseAmount("1.234,56")).isEqualTo(new BigDecimal("1234.56"));
+        assertThat(InvoiceTextParser.parseAmount("1.234.567")).isEqualTo(new BigDecimal("1234567"));
+        assertThat(InvoiceTextParser.parseAmount("1.250")).isEqualTo(new BigDecimal("1250"));
+        assertThat(InvoiceTextParser.parseAmount("12.50")).isEqualTo(new BigDecimal("12.50"));
+        assertThat(InvoiceTextParser.parseAmount("1234.5")).isEqualTo(new BigDecimal("1234.5"));
+        assertThatThrownBy(() -> InvoiceTextParser.parseAmount("1.23.45")).isInstanceOf(ParseException.class);
+        assertThatThrownBy(() -> InvoiceTextParser.parseAmount("12,50.3")).isInstanceOf(ParseException.class);
+    }
+}
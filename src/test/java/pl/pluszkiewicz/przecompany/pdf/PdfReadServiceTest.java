@@ -0,0 +1,145 @@
+package pl.pluszkiewicz.przecompany.pdf;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.util.unit.DataSize;
+import pl.pluszkiewicz.przecompany.PdfUtils;
+import pl.pluszkiewicz.przecompany.PdfUtils.TextBlock;
+import pl.pluszkiewicz.przecompany.invoice.Invoice;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PdfReadServiceTest {
+    private static final int CHUNK_SIZE = 512;
+    private static final String TEST_LAYOUTS = "classpath:test-layouts/*.json";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final PdfReadService pdfReadService = new PdfReadService(DataSize.ofKilobytes(1), new LayoutTemplateRegistry(TEST_LAYOUTS), meterRegistry);
+    private final byte[] pdf = PdfUtils.createPdf("Faktura: FV/1/2020", "Data wystawienia: 24.01.2020");
+
+    @Test
+    public void shouldReadMappedPdfFile(@TempDir Path tempDir) throws IOException {
+        //given
+        Path pdfFile = Files.write(tempDir.resolve("invoice.pdf"), pdf);
+
+        //when
+        String[] pdfText = pdfReadService.readPdf(pdfFile.toFile());
+
+        //then
+        assertThat(pdfText).contains("Faktura: FV/1/2020", "Data wystawienia: 24.01.2020");
+    }
+
+    @Test
+    public void shouldReadPdfFromInputStream() throws IOException {
+        //when
+        String[] pdfText = pdfReadService.readPdf(new ByteArrayInputStream(pdf));
+
+        //then
+        assertThat(pdfText).contains("Faktura: FV/1/2020");
+    }
+
+    @Test
+    public void shouldReadPdfFromDataBuffersSpilledToScratchFile() {
+        //given
+        DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+        Flux<DataBuffer> content = Flux.range(0, (pdf.length + CHUNK_SIZE - 1) / CHUNK_SIZE)
+                .map(chunk -> bufferFactory.wrap(Arrays.copyOfRange(pdf, chunk * CHUNK_SIZE, Math.min(pdf.length, (chunk + 1) * CHUNK_SIZE))));
+
+        //when
+        String[] pdfText = pdfReadService.readPdf(content, Schedulers.boundedElastic()).block();
+
+        //then
+        assertThat(pdfText).contains("Faktura: FV/1/2020", "Data wystawienia: 24.01.2020");
+    }
+
+    @Test
+    public void shouldReadInvoiceRegionsOfMatchingLayout() throws IOException, ParseException {
+        //given
+        byte[] twoColumnPdf = PdfUtils.createPdf(
+                new TextBlock(40, 40, "ACME Layout v1", "Faktura: FV/7/2020", "Data wystawienia: 13.07.2020"),
+                new TextBlock(40, 200, "Sprzedawca", "ACME Sp. z o.o.", "ul. Prosta 12/3", "00-001 Warszawa", "Polska", "NIP: 1234567890"),
+                new TextBlock(320, 200, "Nabywca", "Jan Kowalski Software", "ul. Krzywa 5", "30-001 Nowy Targ", "Polska", "NIP: 9876543210"),
+                new TextBlock(40, 320, "1 Hosting 1,00 szt. 100,00 23 % GTU_12 100,00 23,00 123,00"),
+                new TextBlock(40, 400, "Razem: 100,00 23,00 123,00"));
+
+        //when
+        Invoice invoice = pdfReadService.readInvoice(pdfReadService.bufferPdf(new ByteArrayInputStream(twoColumnPdf)));
+
+        //then
+        assertThat(invoice.getTitle()).isEqualTo("FV/7/2020");
+        assertThat(invoice.getSettlementDate()).isEqualTo(LocalDate.of(2020, 7, 13));
+        assertThat(invoice.getSeller().getName()).isEqualTo("ACME Sp. z o.o.");
+        assertThat(invoice.getSeller().getNip()).isEqualTo(1234567890L);
+        assertThat(invoice.getBuyer().getName()).isEqualTo("Jan Kowalski Software");
+        assertThat(invoice.getBuyer().getAddress().getCity()).isEqualTo("Nowy Targ");
+        assertThat(invoice.getPositions()).hasSize(1);
+        assertThat(invoice.getPositions().get(0).getTotalAmountBrutto()).isEqualTo(new BigDecimal("123.00"));
+        assertThat(invoice.getAmountBrutto()).isEqualTo(new BigDecimal("123.00"));
+    }
+
+    @Test
+    public void shouldFallBackToFullTextWhenNoLayoutMatches() throws IOException, ParseException {
+        //when
+        Invoice invoice = pdfReadService.readInvoice(pdfReadService.bufferPdf(new ByteArrayInputStream(pdf)));
+
+        //then
+        assertThat(invoice.getTitle()).isEqualTo("FV/1/2020");
+        assertThat(invoice.getSettlementDate()).isEqualTo(LocalDate.of(2020, 1, 24));
+    }
+
+    @Test
+    public void shouldTimeReadStagesAndCountMissingInvoiceParts() throws IOException, ParseException {
+        //when
+        pdfReadService.readInvoice(pdfReadService.bufferPdf(new ByteArrayInputStream(pdf)));
+
+        //then
+        for (String stage : List.of("parse", "layout", "text", "map")) {
+            assertThat(meterRegistry.get(PdfReadService.READ_TIMER).tag("stage", stage).timer().count()).isEqualTo(1);
+        }
+        assertThat(meterRegistry.get(PdfReadService.PARSE_FAILURES_COUNTER).tag("reason", "amounts").counter().count()).isEqualTo(1);
+        assertThat(meterRegistry.get(PdfReadService.PARSE_FAILURES_COUNTER).tag("reason", "seller").counter().count()).isEqualTo(1);
+        assertThat(meterRegistry.find(PdfReadService.PARSE_FAILURES_COUNTER).tag("reason", "title").counter()).isNull();
+    }
+
+    @Test
+    public void shouldReadRegionsOfLayoutWithAddedLines() throws IOException, ParseException {
+        //given
+        byte[] shiftedPdf = PdfUtils.createPdf(
+                new TextBlock(40, 40, "ACME Layout v1", "Miejsce wystawienia: Warszawa", "Faktura: FV/8/2020", "Data wystawienia: 03.08.2020"),
+                new TextBlock(40, 200, "Sprzedawca", "ACME Sp. z o.o.", "Oddzial Krakow", "ul. Prosta 12/3", "00-001 Warszawa", "Polska",
+                        "NIP: 1234567890", "tel. 12 345 67 89"),
+                new TextBlock(320, 200, "Nabywca", "Jan Kowalski Software", "ul. Krzywa 5", "30-001 Nowy Targ", "NIP: 9876543210"),
+                new TextBlock(40, 320, "1 Hosting 1,00 szt. 100,00 23 % GTU_12 100,00 23,00 123,00",
+                        "2 Domena 1,00 szt. 50,00 23 % GTU_12 50,00 11,50 61,50"),
+                new TextBlock(40, 400, "Razem: 150,00 34,50 184,50"));
+
+        //when
+        Invoice invoice = pdfReadService.readInvoice(pdfReadService.bufferPdf(new ByteArrayInputStream(shiftedPdf)));
+
+        //then
+        assertThat(invoice.getTitle()).isEqualTo("FV/8/2020");
+        assertThat(invoice.getSettlementDate()).isEqualTo(LocalDate.of(2020, 8, 3));
+        assertThat(invoice.getSeller().getName()).isEqualTo("ACME Sp. z o.o.");
+        assertThat(invoice.getSeller().getAddress().getStreet()).isEqualTo("ul. Prosta");
+        assertThat(invoice.getSeller().getAddress().getCity()).isEqualTo("Warszawa");
+        assertThat(invoice.getSeller().getNip()).isEqualTo(1234567890L);
+        assertThat(invoice.getBuyer().getNip()).isEqualTo(9876543210L);
+        assertThat(invoice.getPositions()).hasSize(2);
+        assertThat(invoice.getAmountBrutto()).isEqualTo(new BigDecimal("184.50"));
+    }
+}